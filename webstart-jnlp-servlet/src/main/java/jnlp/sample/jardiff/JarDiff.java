@@ -42,21 +42,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 
 /**
@@ -73,9 +74,8 @@ public class JarDiff
 {
     private static final int DEFAULT_READ_SIZE = 2048;
 
-    private static byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-
-    private static byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
+    // Jars with more entries than this have their entries compared by several fork/join tasks
+    private static final int MATCH_TASK_SIZE = 64;
 
     private static ResourceBundle _resources = null;
 
@@ -111,6 +111,9 @@ public class JarDiff
 
         try
         {
+            // Compare the contents first, the passes below only depend on their outcome
+            String[] bestMatches = findBestMatches( oldJar, newJar );
+
             Iterator entries;
             HashMap moved = new HashMap();
             HashSet visited = new HashSet();
@@ -125,16 +128,13 @@ public class JarDiff
             // and new.jar )
             // and for files that cannot be implicitly moved, we will either
             // find out whether it is moved or new (modified)
-            entries = newJar.getJarEntries();
-            if ( entries != null )
             {
-                while ( entries.hasNext() )
+                for ( int index = 0; index < newJar.size(); index++ )
                 {
-                    JarEntry newEntry = (JarEntry) entries.next();
-                    String newname = newEntry.getName();
+                    String newname = newJar.getName( index );
 
-                    // Return best match of contents, will return a name match if possible
-                    String oldname = oldJar.getBestMatch( newJar, newEntry );
+                    // Best match of contents, a name match if possible
+                    String oldname = bestMatches[index];
                     if ( oldname == null )
                     {
                         // New or modified entry
@@ -208,18 +208,15 @@ public class JarDiff
                         }
                     }
                 }
-            } //if (entries != null)
+            }
 
             // SECOND PASS: <deleted files> = <oldjarnames> - <implicitmoves> -
             // <source of move commands> - <new or modified entries>
             ArrayList deleted = new ArrayList();
-            entries = oldJar.getJarEntries();
-            if ( entries != null )
             {
-                while ( entries.hasNext() )
+                for ( int index = 0; index < oldJar.size(); index++ )
                 {
-                    JarEntry oldEntry = (JarEntry) entries.next();
-                    String oldName = oldEntry.getName();
+                    String oldName = oldJar.getName( index );
                     if ( !implicit.contains( oldName ) && !moveSrc.contains( oldName ) &&
                             !newEntries.contains( oldName ) )
                     {
@@ -261,29 +258,36 @@ public class JarDiff
                 }
             }
 
-            JarOutputStream jos = new JarOutputStream( os );
-
-            // Write out all the MOVEs and REMOVEs
-            createIndex( jos, deleted, moved );
-
-            // Put in New and Modified entries
-            entries = newEntries.iterator();
-            if ( entries != null )
+            // New and modified entries are copied from the new jar without being inflated and deflated again
+            RawZipFile newRawJar = new RawZipFile( new File( newPath ) );
+            try
             {
+                RawZipWriter jos = new RawZipWriter( os );
 
-                while ( entries.hasNext() )
+                // Write out all the MOVEs and REMOVEs
+                createIndex( jos, deleted, moved );
+
+                // Put in New and Modified entries, in the order of the new jar so the manifest
+                // and signature files stay first, as JarInputStream expects them
+                for ( int index = 0; index < newJar.size(); index++ )
                 {
-                    String newName = (String) entries.next();
-                    if ( _debug )
+                    String newName = newJar.getName( index );
+                    if ( newEntries.remove( newName ) )
                     {
-                        System.out.println( "New File: " + newName );
+                        if ( _debug )
+                        {
+                            System.out.println( "New File: " + newName );
+                        }
+                        jos.copyEntry( newRawJar, newRawJar.getEntry( newName ) );
                     }
-                    writeEntry( jos, newJar.getEntryByName( newName ), newJar );
                 }
-            }
 
-            jos.finish();
-            jos.close();
+                jos.close();
+            }
+            finally
+            {
+                newRawJar.close();
+            }
 
         }
         catch ( IOException ioE )
@@ -311,6 +315,90 @@ public class JarDiff
         } // finally
     }
 
+    /**
+     * Finds the best match in the old jar for each entry of the new jar, in the order of
+     * the entries of the new jar. The entries of large jars are compared by fork/join tasks.
+     *
+     * @param oldJar the old jar
+     * @param newJar the new jar
+     * @return the name of the matching entry of the old jar, or null, for each entry of the new jar
+     * @throws IOException if a jar cannot be read
+     */
+    private static String[] findBestMatches( JarFile2 oldJar, JarFile2 newJar )
+            throws IOException
+    {
+        String[] bestMatches = new String[newJar.size()];
+        MatchTask task = new MatchTask( oldJar, newJar, bestMatches, 0, bestMatches.length );
+        try
+        {
+            if ( bestMatches.length <= MATCH_TASK_SIZE )
+            {
+                task.compute();
+            }
+            else
+            {
+                ForkJoinPool.commonPool().invoke( task );
+            }
+        }
+        catch ( UncheckedIOException uioe )
+        {
+            throw uioe.getCause();
+        }
+        return bestMatches;
+    }
+
+    /**
+     * Finds the best matches for a range of entries of the new jar, splitting large ranges.
+     */
+    private static class MatchTask
+            extends RecursiveAction
+    {
+        private final JarFile2 _oldJar;
+
+        private final JarFile2 _newJar;
+
+        private final String[] _bestMatches;
+
+        private final int _from;
+
+        private final int _to;
+
+        MatchTask( JarFile2 oldJar, JarFile2 newJar, String[] bestMatches, int from, int to )
+        {
+            _oldJar = oldJar;
+            _newJar = newJar;
+            _bestMatches = bestMatches;
+            _from = from;
+            _to = to;
+        }
+
+        protected void compute()
+        {
+            if ( _to - _from > MATCH_TASK_SIZE )
+            {
+                int middle = ( _from + _to ) >>> 1;
+                invokeAll( new MatchTask( _oldJar, _newJar, _bestMatches, _from, middle ),
+                           new MatchTask( _oldJar, _newJar, _bestMatches, middle, _to ) );
+                return;
+            }
+
+            // Buffers are per task, so entries and patches can be compared concurrently
+            byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
+            byte[] newBytes = new byte[DEFAULT_READ_SIZE];
+            try
+            {
+                for ( int i = _from; i < _to; i++ )
+                {
+                    _bestMatches[i] = _oldJar.getBestMatch( _newJar, i, oldBytes, newBytes );
+                }
+            }
+            catch ( IOException ioe )
+            {
+                throw new UncheckedIOException( ioe );
+            }
+        }
+    }
+
     /**
      * Writes the index file out to <code>jos</code>.
      * <code>oldEntries</code> gives the names of the files that were removed,
@@ -321,7 +409,7 @@ public class JarDiff
      * @param movedMap   TODO
      * @throws IOException TODO
      */
-    private static void createIndex( JarOutputStream jos, List oldEntries, Map movedMap )
+    private static void createIndex( RawZipWriter jos, List oldEntries, Map movedMap )
             throws IOException
     {
         StringWriter writer = new StringWriter();
@@ -355,12 +443,10 @@ public class JarDiff
             writer.write( "\r\n" );
         }
 
-        JarEntry je = new JarEntry( INDEX_NAME );
         byte[] bytes = writer.toString().getBytes( "UTF-8" );
 
         writer.close();
-        jos.putNextEntry( je );
-        jos.write( bytes, 0, bytes.length );
+        jos.writeEntry( INDEX_NAME, System.currentTimeMillis(), bytes );
     }
 
     private static void writeEscapedString( Writer writer, String string )
@@ -395,58 +481,25 @@ public class JarDiff
         }
     }
 
-    private static void writeEntry( JarOutputStream jos, JarEntry entry, JarFile2 file )
-            throws IOException
-    {
-        writeEntry( jos, entry, file.getJarFile().getInputStream( entry ) );
-    }
-
-    private static void writeEntry( JarOutputStream jos, JarEntry entry, InputStream data )
-            throws IOException
-    {
-        jos.putNextEntry( entry );
-
-        try
-        {
-            // Read the entry
-            int size = data.read( newBytes );
-
-            while ( size != -1 )
-            {
-                jos.write( newBytes, 0, size );
-                size = data.read( newBytes );
-            }
-        }
-        catch ( IOException ioE )
-        {
-            throw ioE;
-        }
-        finally
-        {
-            try
-            {
-                data.close();
-            }
-            catch ( IOException e )
-            {
-                //Ignore
-            }
-        }
-    }
-
-
     /**
      * JarFile2 wraps a JarFile providing some convenience methods.
+     * <p>
+     * The entries are indexed in parallel arrays in the order of the central directory, plus
+     * one array of CRCs and entry positions sorted by CRC. Entries are looked up by name
+     * through the JarFile itself.
      */
     private static class JarFile2
     {
         private JarFile _jar;
 
-        private List _entries;
+        private String[] _names;
 
-        private HashMap _nameToEntryMap;
+        private long[] _crcs;
 
-        private HashMap _crcToEntryMap;
+        private long[] _sizes;
+
+        // CRC in the upper bits and position in the lower bits of each entry, sorted
+        private long[] _crcIndex;
 
         public JarFile2( String path )
                 throws IOException
@@ -460,113 +513,110 @@ public class JarDiff
             return _jar;
         }
 
-        public Iterator getJarEntries()
+        public int size()
         {
-            return _entries.iterator();
+            return _names.length;
+        }
+
+        public String getName( int index )
+        {
+            return _names[index];
         }
 
         public JarEntry getEntryByName( String name )
         {
-            return (JarEntry) _nameToEntryMap.get( name );
+            JarEntry entry = _jar.getJarEntry( name );
+            // JarFile also finds a directory entry by its name without the trailing slash
+            return ( entry == null || !entry.getName().equals( name ) ) ? null : entry;
         }
 
         /**
-         * @param oldIS TODO
-         * @param newIS TODO
-         * @return true if the two InputStreams differ.
+         * Compares an entry of this jar with an entry of another jar by content.
+         *
+         * @return true if the two entries differ.
          */
-        private static boolean differs( InputStream oldIS, InputStream newIS )
+        private boolean differs( JarEntry thisEntry, JarFile2 file, JarEntry entry, byte[] oldBytes, byte[] newBytes )
                 throws IOException
         {
-            int newSize = 0;
-            int oldSize;
-            int total = 0;
-            boolean retVal = false;
-
+            InputStream oldIS = getJarFile().getInputStream( thisEntry );
             try
             {
-                while ( newSize != -1 )
+                InputStream newIS = file.getJarFile().getInputStream( entry );
+                try
                 {
-                    newSize = newIS.read( newBytes );
-                    oldSize = oldIS.read( oldBytes );
-
-                    if ( newSize != oldSize )
-                    {
-                        if ( _debug )
-                        {
-                            System.out.println( "\tread sizes differ: " + newSize + " " + oldSize + " total " + total );
-                        }
-                        retVal = true;
-                        break;
-                    }
-                    if ( newSize > 0 )
-                    {
-                        while ( --newSize >= 0 )
-                        {
-                            total++;
-                            if ( newBytes[newSize] != oldBytes[newSize] )
-                            {
-                                if ( _debug )
-                                {
-                                    System.out.println( "\tbytes differ at " + total );
-                                }
-                                retVal = true;
-                                break;
-                            }
-                            if ( retVal )
-                            {
-                                //Jump out
-                                break;
-                            }
-                            newSize = 0;
-                        }
-                    }
+                    return differs( oldIS, newIS, oldBytes, newBytes );
+                }
+                finally
+                {
+                    newIS.close();
                 }
             }
-            catch ( IOException ioE )
+            finally
             {
-                throw ioE;
+                oldIS.close();
             }
-            finally
+        }
+
+        /**
+         * Compares the first DEFAULT_READ_SIZE bytes of two entries with the same CRC and size,
+         * the rest is trusted to the CRC as it always has been. A first read may return less from
+         * a deflated entry than from a stored one; such entries have always been different, which
+         * keeps patches the same as before.
+         *
+         * @return true if the two InputStreams differ.
+         */
+        private static boolean differs( InputStream oldIS, InputStream newIS, byte[] oldBytes, byte[] newBytes )
+                throws IOException
+        {
+            int newSize = newIS.read( newBytes, 0, DEFAULT_READ_SIZE );
+            int oldSize = oldIS.read( oldBytes, 0, DEFAULT_READ_SIZE );
+
+            if ( newSize != oldSize )
             {
-                try
+                if ( _debug )
                 {
-                    oldIS.close();
+                    System.out.println( "\tread sizes differ: " + newSize + " " + oldSize );
                 }
-                catch ( IOException e )
-                {
-                    //Ignore
-                }
-                try
-                {
-                    newIS.close();
-                }
-                catch ( IOException e )
+                return true;
+            }
+            for ( int i = 0; i < newSize; i++ )
+            {
+                if ( newBytes[i] != oldBytes[i] )
                 {
-                    //Ignore
+                    if ( _debug )
+                    {
+                        System.out.println( "\tbytes differ at " + ( i + 1 ) );
+                    }
+                    return true;
                 }
             }
-            return retVal;
+            return false;
         }
 
-        public String getBestMatch( JarFile2 file, JarEntry entry )
+        /**
+         * @param file  the other jar
+         * @param index position of the entry in the other jar
+         * @return the name of the entry of this jar with the same name and content, else of any
+         *         entry with the same content, or null
+         */
+        public String getBestMatch( JarFile2 file, int index, byte[] oldBytes, byte[] newBytes )
                 throws IOException
         {
             // check for same name and same content, return name if found
-            if ( contains( file, entry ) )
+            if ( contains( file, index, oldBytes, newBytes ) )
             {
-                return ( entry.getName() );
+                return file.getName( index );
             }
 
             // return name of same content file or null
-            return ( hasSameContent( file, entry ) );
+            return ( hasSameContent( file, index, oldBytes, newBytes ) );
         }
 
-        public boolean contains( JarFile2 f, JarEntry e )
+        public boolean contains( JarFile2 f, int index, byte[] oldBytes, byte[] newBytes )
                 throws IOException
         {
 
-            JarEntry thisEntry = getEntryByName( e.getName() );
+            JarEntry thisEntry = getEntryByName( f.getName( index ) );
 
             // Look up name in 'this' Jar2File - if not exist return false
             if ( thisEntry == null )
@@ -574,117 +624,102 @@ public class JarDiff
                 return false;
             }
 
-            // Check CRC - if no match - return false
-            if ( thisEntry.getCrc() != e.getCrc() )
+            // Check CRC and size - if no match - return false
+            if ( thisEntry.getCrc() != f._crcs[index] || thisEntry.getSize() != f._sizes[index] )
             {
                 return false;
             }
 
             // Check contents - if no match - return false
-            InputStream oldIS = getJarFile().getInputStream( thisEntry );
-            InputStream newIS = f.getJarFile().getInputStream( e );
-            boolean retValue = differs( oldIS, newIS );
-
-            return !retValue;
+            return !differs( thisEntry, f, f.getEntryByName( f.getName( index ) ), oldBytes, newBytes );
         }
 
-        public String hasSameContent( JarFile2 file, JarEntry entry )
+        public String hasSameContent( JarFile2 file, int index, byte[] oldBytes, byte[] newBytes )
                 throws IOException
         {
+            long crc = file._crcs[index];
+            if ( crc < 0 )
+            {
+                return null;
+            }
 
-            String thisName = null;
-
-            Long crcL = entry.getCrc();
-
-            // check if this jar contains files with the passed in entry's crc
-            if ( _crcToEntryMap.containsKey( crcL ) )
+            // go through the entries of this jar with the same crc, in the order of the jar
+            JarEntry entry = null;
+            for ( int i = findFirst( crc ); i < _crcIndex.length && ( _crcIndex[i] >>> 31 ) == crc; i++ )
             {
-                // get the Linked List with files with the crc
-                LinkedList ll = (LinkedList) _crcToEntryMap.get( crcL );
-                // go through the list and check for content match
-                ListIterator li = ll.listIterator( 0 );
-                while ( li.hasNext() )
+                int thisIndex = (int) ( _crcIndex[i] & Integer.MAX_VALUE );
+                if ( _sizes[thisIndex] != file._sizes[index] )
                 {
-                    JarEntry thisEntry = (JarEntry) li.next();
-
-                    // check for content match
-                    InputStream oldIS = getJarFile().getInputStream( thisEntry );
-                    InputStream newIS = file.getJarFile().getInputStream( entry );
+                    continue;
+                }
 
-                    if ( !differs( oldIS, newIS ) )
-                    {
-                        thisName = thisEntry.getName();
-                        return thisName;
-                    }
+                // check for content match
+                if ( entry == null )
+                {
+                    entry = file.getEntryByName( file.getName( index ) );
+                }
+                JarEntry thisEntry = getEntryByName( _names[thisIndex] );
+                if ( thisEntry != null && !differs( thisEntry, file, entry, oldBytes, newBytes ) )
+                {
+                    return _names[thisIndex];
                 }
             }
 
-            return thisName;
-
+            return null;
         }
 
+        /**
+         * @return the position in the CRC index of the first entry with the given CRC, or where it would be
+         */
+        private int findFirst( long crc )
+        {
+            int i = Arrays.binarySearch( _crcIndex, crc << 31 );
+            return i < 0 ? -i - 1 : i;
+        }
 
         private void index()
-                throws IOException
         {
-            Enumeration entries = _jar.entries();
-
-            _nameToEntryMap = new HashMap();
-            _crcToEntryMap = new HashMap();
+            int count = _jar.size();
+            String[] names = new String[count];
+            long[] crcs = new long[count];
+            long[] sizes = new long[count];
+            long[] crcIndex = new long[count];
+            int indexed = 0;
+            int n = 0;
 
-            _entries = new ArrayList();
             if ( _debug )
             {
                 System.out.println( "indexing: " + _jar.getName() );
             }
-            if ( entries != null )
+            Enumeration entries = _jar.entries();
+            while ( entries.hasMoreElements() && n < count )
             {
-                while ( entries.hasMoreElements() )
-                {
-                    JarEntry entry = (JarEntry) entries.nextElement();
-
-                    long crc = entry.getCrc();
-
-                    Long crcL = new Long( crc );
-
-                    if ( _debug )
-                    {
-                        System.out.println( "\t" + entry.getName() + " CRC " + crc );
-                    }
-
-                    _nameToEntryMap.put( entry.getName(), entry );
-                    _entries.add( entry );
-
-                    // generate the CRC to entries map
-                    if ( _crcToEntryMap.containsKey( crcL ) )
-                    {
-                        // key exist, add the entry to the correcponding
-                        // linked list
+                JarEntry entry = (JarEntry) entries.nextElement();
 
-                        // get the linked list
-                        LinkedList ll = (LinkedList) _crcToEntryMap.get( crcL );
+                long crc = entry.getCrc();
 
-                        // put in the new entry
-                        ll.add( entry );
-
-                        // put it back in the hash map
-                        _crcToEntryMap.put( crcL, ll );
-                    }
-                    else
-                    {
-                        // create a new entry in the hashmap for the new key
-
-                        // first create the linked list and put in the new
-                        // entry
-                        LinkedList ll = new LinkedList();
-                        ll.add( entry );
-
-                        // create the new entry in the hashmap
-                        _crcToEntryMap.put( crcL, ll );
-                    }
+                if ( _debug )
+                {
+                    System.out.println( "\t" + entry.getName() + " CRC " + crc );
+                }
 
+                names[n] = entry.getName();
+                crcs[n] = crc;
+                sizes[n] = entry.getSize();
+                // CRCs are 32 bits, positions 31 bits
+                if ( crc >= 0 )
+                {
+                    crcIndex[indexed++] = ( crc << 31 ) | n;
                 }
+                n++;
             }
+
+            _names = n == count ? names : Arrays.copyOf( names, n );
+            _crcs = n == count ? crcs : Arrays.copyOf( crcs, n );
+            _sizes = n == count ? sizes : Arrays.copyOf( sizes, n );
+            _crcIndex = indexed == count ? crcIndex : Arrays.copyOf( crcIndex, indexed );
+            // Entries with the same CRC stay in the order of the jar
+            Arrays.sort( _crcIndex );
         }
 
     } // end of class JarFile2
@@ -43,7 +43,6 @@ import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,9 +50,7 @@ import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.Set;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
 /**
@@ -68,12 +65,6 @@ import java.util.zip.ZipEntry;
 public class JarDiffPatcher
         implements JarDiffConstants, Patcher
 {
-    private static final int DEFAULT_READ_SIZE = 2048;
-
-    private static byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-
-    private static byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
-
     private static ResourceBundle _resources = JarDiff.getResources();
 
     public static ResourceBundle getResources()
@@ -86,57 +77,53 @@ public class JarDiffPatcher
     {
         File oldFile = new File( oldJarPath );
         File diffFile = new File( jarDiffPath );
-        JarOutputStream jos = new JarOutputStream( result );
-        JarFile oldJar = new JarFile( oldFile );
-        JarFile jarDiff = new JarFile( diffFile );
-        Set<String> ignoreSet = new HashSet<>();
-        Map<String, String> renameMap = new HashMap<>();
+        // Entries are copied from the old jar and the JarDiff as they are stored, so signed
+        // entries stay identical and nothing is inflated and deflated again
+        RawZipWriter jos = new RawZipWriter( result );
+        RawZipFile oldJar = new RawZipFile( oldFile );
+        RawZipFile jarDiff = null;
+        try
+        {
+            jarDiff = new RawZipFile( diffFile );
+            Set<String> ignoreSet = new HashSet<>();
+            Map<String, String> renameMap = new HashMap<>();
 
-        determineNameMapping( jarDiff, ignoreSet, renameMap );
+            determineNameMapping( diffFile, ignoreSet, renameMap );
 
-        // get all keys in renameMap
-        String[] keys = renameMap.keySet().toArray( new String[renameMap.size()] );
+            // get all keys in renameMap
+            String[] keys = renameMap.keySet().toArray( new String[renameMap.size()] );
 
-        // Files to implicit move
-        Set<String> oldjarNames = new HashSet<>();
+            // Files to implicit move
+            Set<String> oldjarNames = new HashSet<>();
 
-        Enumeration<JarEntry> oldEntries = oldJar.entries();
-        if ( oldEntries != null )
-        {
-            while ( oldEntries.hasMoreElements() )
+            for ( RawZipFile.Entry entry : oldJar.getEntries() )
             {
-                oldjarNames.add( ( oldEntries.nextElement() ).getName() );
+                oldjarNames.add( entry.getName() );
             }
-        }
 
-        // size depends on the three parameters below, which is
-        // basically the counter for each loop that do the actual
-        // writes to the output file
-        // since oldjarNames.size() changes in the first two loop
-        // below, we need to adjust the size accordingly also when
-        // oldjarNames.size() changes
-        double size = oldjarNames.size() + keys.length + jarDiff.size();
-        double currentEntry = 0;
-
-        // Handle all remove commands
-        oldjarNames.removeAll( ignoreSet );
-        size -= ignoreSet.size();
-
-        // Add content from JARDiff
-        Enumeration<JarEntry> entries = jarDiff.entries();
-        if ( entries != null )
-        {
-            while ( entries.hasMoreElements() )
+            // size depends on the three parameters below, which is
+            // basically the counter for each loop that do the actual
+            // writes to the output file
+            // since oldjarNames.size() changes in the first two loop
+            // below, we need to adjust the size accordingly also when
+            // oldjarNames.size() changes
+            double size = oldjarNames.size() + keys.length + jarDiff.getEntries().size();
+            double currentEntry = 0;
+
+            // Handle all remove commands
+            oldjarNames.removeAll( ignoreSet );
+            size -= ignoreSet.size();
+
+            // Add content from JARDiff
+            for ( RawZipFile.Entry entry : jarDiff.getEntries() )
             {
-                JarEntry entry = entries.nextElement();
-
                 if ( !INDEX_NAME.equals( entry.getName() ) )
                 {
 
                     updateDelegate( delegate, currentEntry, size );
                     currentEntry++;
 
-                    writeEntry( jos, entry, jarDiff );
+                    jos.copyEntry( jarDiff, entry );
 
                     // Remove entry from oldjarNames since no implicit
                     //move is needed
@@ -156,66 +143,66 @@ public class JarDiffPatcher
                     size--;
                 }
             }
-        }
 
-        // go through the renameMap and apply move for each entry
-        for ( String newName : keys )
-        {
+            // go through the renameMap and apply move for each entry
+            for ( String newName : keys )
+            {
 
-            // Apply move <oldName> <newName> command
-            String oldName = renameMap.get( newName );
+                // Apply move <oldName> <newName> command
+                String oldName = renameMap.get( newName );
 
-            // Get source JarEntry
-            JarEntry oldEntry = oldJar.getJarEntry( oldName );
+                // Get source entry
+                RawZipFile.Entry oldEntry = oldJar.getEntry( oldName );
 
-            if ( oldEntry == null )
-            {
-                String moveCmd = MOVE_COMMAND + oldName + " " + newName;
-                handleException( "jardiff.error.badmove", moveCmd );
-            }
+                if ( oldEntry == null )
+                {
+                    String moveCmd = MOVE_COMMAND + oldName + " " + newName;
+                    handleException( "jardiff.error.badmove", moveCmd );
+                }
 
-            // Create dest JarEntry
-            JarEntry newEntry = new JarEntry( newName );
-            newEntry.setTime( oldEntry.getTime() );
-            newEntry.setSize( oldEntry.getSize() );
-            newEntry.setCompressedSize( oldEntry.getCompressedSize() );
-            newEntry.setCrc( oldEntry.getCrc() );
-            newEntry.setMethod( oldEntry.getMethod() );
-            newEntry.setExtra( oldEntry.getExtra() );
-            newEntry.setComment( oldEntry.getComment() );
+                updateDelegate( delegate, currentEntry, size );
+                currentEntry++;
 
-            updateDelegate( delegate, currentEntry, size );
-            currentEntry++;
+                // Copy it under the new name, keeping its time, CRC, sizes and extra fields
+                jos.copyEntry( oldJar, oldEntry, newName );
 
-            writeEntry( jos, newEntry, oldJar.getInputStream( oldEntry ) );
+                // Remove entry from oldjarNames since no implicit
+                //move is needed
+                boolean wasInOld = oldjarNames.remove( oldName );
 
-            // Remove entry from oldjarNames since no implicit
-            //move is needed
-            boolean wasInOld = oldjarNames.remove( oldName );
+                // Update progress counters. If it was in old, we do
+                // not need an implicit move, so adjust total size.
+                if ( wasInOld )
+                {
+                    size--;
+                }
 
-            // Update progress counters. If it was in old, we do
-            // not need an implicit move, so adjust total size.
-            if ( wasInOld )
-            {
-                size--;
             }
 
-        }
+            // implicit move, in the order of the old jar so META-INF stays in front
+            for ( RawZipFile.Entry entry : oldJar.getEntries() )
+            {
+                if ( oldjarNames.remove( entry.getName() ) )
+                {
+                    updateDelegate( delegate, currentEntry, size );
+                    currentEntry++;
 
-        // implicit move
-        for ( String name : oldjarNames )
-        {
-            JarEntry entry = oldJar.getJarEntry( name );
+                    jos.copyEntry( oldJar, entry );
+                }
+            }
 
             updateDelegate( delegate, currentEntry, size );
-            currentEntry++;
 
-            writeEntry( jos, entry, oldJar );
+            jos.finish();
+        }
+        finally
+        {
+            oldJar.close();
+            if ( jarDiff != null )
+            {
+                jarDiff.close();
+            }
         }
-
-        updateDelegate( delegate, currentEntry, size );
-
-        jos.finish();
     }
 
     private void updateDelegate( Patcher.PatchDelegate delegate, double currentSize, double size )
@@ -226,15 +213,28 @@ public class JarDiffPatcher
         }
     }
 
-    private void determineNameMapping( JarFile jarDiff, Set<String> ignoreSet, Map<String, String> renameMap )
+    private void determineNameMapping( File diffFile, Set<String> ignoreSet, Map<String, String> renameMap )
             throws IOException
     {
-        InputStream is = jarDiff.getInputStream( jarDiff.getEntry( INDEX_NAME ) );
-
-        if ( is == null )
+        JarFile jarDiff = new JarFile( diffFile );
+        try
         {
-            handleException( "jardiff.error.noindex", null );
+            ZipEntry index = jarDiff.getEntry( INDEX_NAME );
+            if ( index == null )
+            {
+                handleException( "jardiff.error.noindex", null );
+            }
+            determineNameMapping( jarDiff.getInputStream( index ), ignoreSet, renameMap );
+        }
+        finally
+        {
+            jarDiff.close();
         }
+    }
+
+    private void determineNameMapping( InputStream is, Set<String> ignoreSet, Map<String, String> renameMap )
+            throws IOException
+    {
         LineNumberReader indexReader = new LineNumberReader( new InputStreamReader( is, "UTF-8" ) );
         String line = indexReader.readLine();
 
@@ -348,29 +348,4 @@ public class JarDiffPatcher
         }
         return sub;
     }
-
-    private void writeEntry( JarOutputStream jos, JarEntry entry, JarFile file )
-            throws IOException
-    {
-        writeEntry( jos, entry, file.getInputStream( entry ) );
-    }
-
-    private void writeEntry( JarOutputStream jos, JarEntry entry, InputStream data )
-            throws IOException
-    {
-        //Create a new ZipEntry to clear the compressed size. 5079423
-        jos.putNextEntry( new ZipEntry( entry.getName() ) );
-
-        // Read the entry
-        int size = data.read( newBytes );
-
-        while ( size != -1 )
-        {
-            jos.write( newBytes, 0, size );
-            size = data.read( newBytes );
-        }
-        data.close();
-    }
 }
-
-
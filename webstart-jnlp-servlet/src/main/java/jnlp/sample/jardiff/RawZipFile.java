@@ -0,0 +1,378 @@
+/*
+ * @(#)RawZipFile.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.jardiff;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file and gives access to the raw, still compressed,
+ * data of its entries, so they can be copied to another zip without inflating and
+ * deflating them again.
+ */
+class RawZipFile
+{
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    static final int END_SIGNATURE = 0x06054b50;
+
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int ZIP64_EXTRA_ID = 0x0001;
+
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int END_SIZE = 22;
+
+    private static final int ZIP64_END_SIZE = 56;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private final RandomAccessFile _file;
+
+    private final FileChannel _channel;
+
+    private final List<Entry> _entries = new ArrayList<Entry>();
+
+    private final Map<String, Entry> _nameToEntry = new HashMap<String, Entry>();
+
+    /**
+     * An entry as described by the central directory.
+     */
+    static final class Entry
+    {
+        final String _name;
+
+        final int _flags;
+
+        final int _method;
+
+        final int _dosTime;
+
+        final long _crc;
+
+        final long _compressedSize;
+
+        final long _size;
+
+        final long _localHeaderOffset;
+
+        final byte[] _extra;
+
+        final byte[] _comment;
+
+        Entry( String name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+               long localHeaderOffset, byte[] extra, byte[] comment )
+        {
+            _name = name;
+            _flags = flags;
+            _method = method;
+            _dosTime = dosTime;
+            _crc = crc;
+            _compressedSize = compressedSize;
+            _size = size;
+            _localHeaderOffset = localHeaderOffset;
+            _extra = extra;
+            _comment = comment;
+        }
+
+        String getName()
+        {
+            return _name;
+        }
+    }
+
+    RawZipFile( File file )
+            throws IOException
+    {
+        _file = new RandomAccessFile( file, "r" );
+        _channel = _file.getChannel();
+        try
+        {
+            readCentralDirectory();
+        }
+        catch ( IOException ioe )
+        {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return the entries in the order of the central directory
+     */
+    List<Entry> getEntries()
+    {
+        return _entries;
+    }
+
+    /**
+     * @return the entry with the given name, or null
+     */
+    Entry getEntry( String name )
+    {
+        return _nameToEntry.get( name );
+    }
+
+    /**
+     * Reads the local header of an entry.
+     *
+     * @return the extra field of the local header
+     */
+    byte[] readLocalExtra( Entry entry )
+            throws IOException
+    {
+        ByteBuffer header = read( entry._localHeaderOffset, LOCAL_HEADER_SIZE );
+        if ( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE )
+        {
+            throw new ZipException( "Invalid local header for " + entry._name );
+        }
+        int nameLength = header.getShort( 26 ) & 0xFFFF;
+        int extraLength = header.getShort( 28 ) & 0xFFFF;
+        return toArray( read( entry._localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength ) );
+    }
+
+    /**
+     * @return the position of the compressed data of an entry
+     */
+    long getDataOffset( Entry entry )
+            throws IOException
+    {
+        ByteBuffer header = read( entry._localHeaderOffset, LOCAL_HEADER_SIZE );
+        if ( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE )
+        {
+            throw new ZipException( "Invalid local header for " + entry._name );
+        }
+        return entry._localHeaderOffset + LOCAL_HEADER_SIZE + ( header.getShort( 26 ) & 0xFFFF ) +
+                ( header.getShort( 28 ) & 0xFFFF );
+    }
+
+    /**
+     * Reads part of the compressed data of an entry.
+     *
+     * @return the number of bytes read
+     */
+    int readData( long position, ByteBuffer buffer )
+            throws IOException
+    {
+        return _channel.read( buffer, position );
+    }
+
+    void close()
+            throws IOException
+    {
+        _file.close();
+    }
+
+    private void readCentralDirectory()
+            throws IOException
+    {
+        long length = _channel.size();
+        if ( length < END_SIZE )
+        {
+            throw new ZipException( "Not a zip file" );
+        }
+
+        // The end record is followed by a comment of up to 64k
+        int tailLength = (int) Math.min( length, END_SIZE + 0xFFFF );
+        ByteBuffer tail = read( length - tailLength, tailLength );
+        int end = -1;
+        for ( int i = tailLength - END_SIZE; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == END_SIGNATURE && i + END_SIZE + ( tail.getShort( i + 20 ) & 0xFFFF ) <= tailLength )
+            {
+                end = i;
+                break;
+            }
+        }
+        if ( end < 0 )
+        {
+            throw new ZipException( "End of central directory not found" );
+        }
+        long endOffset = length - tailLength + end;
+        long count = tail.getShort( end + 10 ) & 0xFFFF;
+        long centralSize = tail.getInt( end + 12 ) & ZIP64_MAGIC;
+        long centralOffset = tail.getInt( end + 16 ) & ZIP64_MAGIC;
+
+        if ( count == ZIP64_MAGIC_COUNT || centralSize == ZIP64_MAGIC || centralOffset == ZIP64_MAGIC )
+        {
+            if ( endOffset >= ZIP64_LOCATOR_SIZE )
+            {
+                ByteBuffer locator = read( endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE );
+                if ( locator.getInt( 0 ) == ZIP64_LOCATOR_SIGNATURE )
+                {
+                    ByteBuffer zip64End = read( locator.getLong( 8 ), ZIP64_END_SIZE );
+                    if ( zip64End.getInt( 0 ) != ZIP64_END_SIGNATURE )
+                    {
+                        throw new ZipException( "Invalid zip64 end of central directory" );
+                    }
+                    count = zip64End.getLong( 32 );
+                    centralSize = zip64End.getLong( 40 );
+                    centralOffset = zip64End.getLong( 48 );
+                }
+            }
+        }
+
+        if ( centralSize > Integer.MAX_VALUE || centralOffset + centralSize > length )
+        {
+            throw new ZipException( "Invalid central directory" );
+        }
+
+        ByteBuffer central = read( centralOffset, (int) centralSize );
+        int position = 0;
+        for ( long i = 0; i < count; i++ )
+        {
+            if ( position + CENTRAL_HEADER_SIZE > centralSize || central.getInt( position ) != CENTRAL_HEADER_SIGNATURE )
+            {
+                throw new ZipException( "Invalid central directory header" );
+            }
+            int flags = central.getShort( position + 8 ) & 0xFFFF;
+            int method = central.getShort( position + 10 ) & 0xFFFF;
+            int dosTime = central.getInt( position + 12 );
+            long crc = central.getInt( position + 16 ) & ZIP64_MAGIC;
+            long compressedSize = central.getInt( position + 20 ) & ZIP64_MAGIC;
+            long size = central.getInt( position + 24 ) & ZIP64_MAGIC;
+            int nameLength = central.getShort( position + 28 ) & 0xFFFF;
+            int extraLength = central.getShort( position + 30 ) & 0xFFFF;
+            int commentLength = central.getShort( position + 32 ) & 0xFFFF;
+            long localHeaderOffset = central.getInt( position + 42 ) & ZIP64_MAGIC;
+
+            byte[] name = new byte[nameLength];
+            byte[] extra = new byte[extraLength];
+            byte[] comment = new byte[commentLength];
+            central.position( position + CENTRAL_HEADER_SIZE );
+            central.get( name ).get( extra ).get( comment );
+            central.clear();
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            if ( size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC )
+            {
+                ByteBuffer zip64 = findExtra( extra, ZIP64_EXTRA_ID );
+                if ( zip64 == null )
+                {
+                    throw new ZipException( "Missing zip64 extra field" );
+                }
+                if ( size == ZIP64_MAGIC )
+                {
+                    size = zip64.getLong();
+                }
+                if ( compressedSize == ZIP64_MAGIC )
+                {
+                    compressedSize = zip64.getLong();
+                }
+                if ( localHeaderOffset == ZIP64_MAGIC )
+                {
+                    localHeaderOffset = zip64.getLong();
+                }
+            }
+
+            Entry entry = new Entry( new String( name, StandardCharsets.UTF_8 ), flags, method, dosTime, crc,
+                                     compressedSize, size, localHeaderOffset, extra, comment );
+            _entries.add( entry );
+            // Like ZipFile, the last entry of a name wins
+            _nameToEntry.put( entry._name, entry );
+        }
+    }
+
+    /**
+     * @return the data of the extra field with the given id, or null
+     */
+    static ByteBuffer findExtra( byte[] extra, int id )
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( extra ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buffer.remaining() >= 4 )
+        {
+            int headerId = buffer.getShort() & 0xFFFF;
+            int dataSize = buffer.getShort() & 0xFFFF;
+            if ( dataSize > buffer.remaining() )
+            {
+                break;
+            }
+            if ( headerId == id )
+            {
+                ByteBuffer data = buffer.slice().order( ByteOrder.LITTLE_ENDIAN );
+                data.limit( dataSize );
+                return data;
+            }
+            buffer.position( buffer.position() + dataSize );
+        }
+        return null;
+    }
+
+    private ByteBuffer read( long position, int length )
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( buffer.hasRemaining() )
+        {
+            if ( _channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] toArray( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get( bytes );
+        return bytes;
+    }
+}
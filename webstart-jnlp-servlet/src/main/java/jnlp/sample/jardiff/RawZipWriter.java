@@ -0,0 +1,414 @@
+/*
+ * @(#)RawZipWriter.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.jardiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file whose entries are either deflated from bytes in memory, or copied
+ * from another zip file as is: the compressed data, CRC, sizes, time and extra fields of a
+ * copied entry are taken verbatim, only its name may change. Copied entries are neither
+ * inflated nor deflated again, so signed entries stay byte for byte what was signed.
+ * <p>
+ * Like JarOutputStream, the first entry is marked with the JAR magic extra field.
+ */
+class RawZipWriter
+{
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+
+    private static final int UTF8_FLAG = 0x800;
+
+    private static final int JAR_MAGIC = 0xCAFE;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream _out;
+
+    private final List<RawZipFile.Entry> _entries = new ArrayList<RawZipFile.Entry>();
+
+    private long _written;
+
+    private boolean _finished;
+
+    RawZipWriter( OutputStream out )
+    {
+        _out = out;
+    }
+
+    /**
+     * Writes an entry deflating the given bytes.
+     */
+    void writeEntry( String name, long time, byte[] data )
+            throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, data.length );
+
+        Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream( data.length / 2 + 64 );
+        try
+        {
+            deflater.setInput( data );
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while ( !deflater.finished() )
+            {
+                compressed.write( buffer, 0, deflater.deflate( buffer ) );
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        addEntry( name, 0, ZipEntry.DEFLATED, javaToDosTime( time ), crc.getValue(), compressed.size(), data.length,
+                  new byte[0], new byte[0], new byte[0] );
+        compressed.writeTo( _out );
+        _written += compressed.size();
+    }
+
+    /**
+     * Copies an entry of another zip file under its own name.
+     */
+    void copyEntry( RawZipFile file, RawZipFile.Entry entry )
+            throws IOException
+    {
+        copyEntry( file, entry, entry.getName() );
+    }
+
+    /**
+     * Copies an entry of another zip file under the given name.
+     */
+    void copyEntry( RawZipFile file, RawZipFile.Entry entry, String name )
+            throws IOException
+    {
+        addEntry( name, entry._flags & ~DATA_DESCRIPTOR_FLAG, entry._method, entry._dosTime, entry._crc,
+                  entry._compressedSize, entry._size, file.readLocalExtra( entry ), entry._extra, entry._comment );
+
+        long position = file.getDataOffset( entry );
+        long remaining = entry._compressedSize;
+        byte[] buffer = new byte[(int) Math.min( BUFFER_SIZE, Math.max( remaining, 1 ) )];
+        while ( remaining > 0 )
+        {
+            ByteBuffer chunk = ByteBuffer.wrap( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+            int read = file.readData( position, chunk );
+            if ( read < 0 )
+            {
+                throw new EOFException( "Unexpected end of " + entry.getName() );
+            }
+            _out.write( buffer, 0, read );
+            position += read;
+            remaining -= read;
+        }
+        _written += entry._compressedSize;
+    }
+
+    /**
+     * Writes the central directory.
+     */
+    void finish()
+            throws IOException
+    {
+        if ( _finished )
+        {
+            return;
+        }
+        _finished = true;
+
+        long centralOffset = _written;
+        for ( RawZipFile.Entry entry : _entries )
+        {
+            writeCentralHeader( entry );
+        }
+        long centralSize = _written - centralOffset;
+
+        int count = _entries.size();
+        boolean zip64 = count >= RawZipFile.ZIP64_MAGIC_COUNT || centralSize >= RawZipFile.ZIP64_MAGIC ||
+                centralOffset >= RawZipFile.ZIP64_MAGIC;
+        if ( zip64 )
+        {
+            long zip64EndOffset = _written;
+            ByteBuffer zip64End = newBuffer( 56 + 20 );
+            zip64End.putInt( RawZipFile.ZIP64_END_SIGNATURE );
+            zip64End.putLong( 44 );
+            zip64End.putShort( (short) 45 );
+            zip64End.putShort( (short) 45 );
+            zip64End.putInt( 0 );
+            zip64End.putInt( 0 );
+            zip64End.putLong( count );
+            zip64End.putLong( count );
+            zip64End.putLong( centralSize );
+            zip64End.putLong( centralOffset );
+            zip64End.putInt( RawZipFile.ZIP64_LOCATOR_SIGNATURE );
+            zip64End.putInt( 0 );
+            zip64End.putLong( zip64EndOffset );
+            zip64End.putInt( 1 );
+            write( zip64End );
+        }
+
+        ByteBuffer end = newBuffer( 22 );
+        end.putInt( RawZipFile.END_SIGNATURE );
+        end.putShort( (short) 0 );
+        end.putShort( (short) 0 );
+        end.putShort( (short) Math.min( count, RawZipFile.ZIP64_MAGIC_COUNT ) );
+        end.putShort( (short) Math.min( count, RawZipFile.ZIP64_MAGIC_COUNT ) );
+        end.putInt( (int) Math.min( centralSize, RawZipFile.ZIP64_MAGIC ) );
+        end.putInt( (int) Math.min( centralOffset, RawZipFile.ZIP64_MAGIC ) );
+        end.putShort( (short) 0 );
+        write( end );
+        _out.flush();
+    }
+
+    /**
+     * Finishes the zip file and closes the underlying stream.
+     */
+    void close()
+            throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            _out.close();
+        }
+    }
+
+    /**
+     * Writes the local header of an entry and records it for the central directory.
+     */
+    private void addEntry( String name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                           byte[] localExtra, byte[] centralExtra, byte[] comment )
+            throws IOException
+    {
+        if ( _finished )
+        {
+            throw new ZipException( "Zip file already finished" );
+        }
+        if ( _entries.isEmpty() )
+        {
+            localExtra = addJarMagic( localExtra );
+            centralExtra = addJarMagic( centralExtra );
+        }
+        RawZipFile.Entry entry =
+                new RawZipFile.Entry( name, flags | UTF8_FLAG, method, dosTime, crc, compressedSize, size, _written,
+                                      removeZip64( centralExtra ), comment );
+        _entries.add( entry );
+
+        boolean zip64 = size >= RawZipFile.ZIP64_MAGIC || compressedSize >= RawZipFile.ZIP64_MAGIC;
+        byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+        localExtra = removeZip64( localExtra );
+        int extraLength = localExtra.length + ( zip64 ? 20 : 0 );
+        checkLength( name, nameBytes.length + extraLength );
+
+        ByteBuffer header = newBuffer( 30 + nameBytes.length + extraLength );
+        header.putInt( RawZipFile.LOCAL_HEADER_SIGNATURE );
+        header.putShort( (short) version( method, zip64 ) );
+        header.putShort( (short) entry._flags );
+        header.putShort( (short) method );
+        header.putInt( dosTime );
+        header.putInt( (int) crc );
+        header.putInt( (int) ( zip64 ? RawZipFile.ZIP64_MAGIC : compressedSize ) );
+        header.putInt( (int) ( zip64 ? RawZipFile.ZIP64_MAGIC : size ) );
+        header.putShort( (short) nameBytes.length );
+        header.putShort( (short) extraLength );
+        header.put( nameBytes );
+        if ( zip64 )
+        {
+            header.putShort( (short) RawZipFile.ZIP64_EXTRA_ID );
+            header.putShort( (short) 16 );
+            header.putLong( size );
+            header.putLong( compressedSize );
+        }
+        header.put( localExtra );
+        write( header );
+    }
+
+    private void writeCentralHeader( RawZipFile.Entry entry )
+            throws IOException
+    {
+        boolean zip64Size = entry._size >= RawZipFile.ZIP64_MAGIC;
+        boolean zip64CompressedSize = entry._compressedSize >= RawZipFile.ZIP64_MAGIC;
+        boolean zip64Offset = entry._localHeaderOffset >= RawZipFile.ZIP64_MAGIC;
+        int zip64Length = ( zip64Size ? 8 : 0 ) + ( zip64CompressedSize ? 8 : 0 ) + ( zip64Offset ? 8 : 0 );
+        boolean zip64 = zip64Length > 0;
+
+        byte[] nameBytes = entry._name.getBytes( StandardCharsets.UTF_8 );
+        int extraLength = entry._extra.length + ( zip64 ? 4 + zip64Length : 0 );
+        checkLength( entry._name, nameBytes.length + extraLength + entry._comment.length );
+
+        ByteBuffer header = newBuffer( 46 + nameBytes.length + extraLength + entry._comment.length );
+        header.putInt( RawZipFile.CENTRAL_HEADER_SIGNATURE );
+        header.putShort( (short) version( entry._method, zip64 ) );
+        header.putShort( (short) version( entry._method, zip64 ) );
+        header.putShort( (short) entry._flags );
+        header.putShort( (short) entry._method );
+        header.putInt( entry._dosTime );
+        header.putInt( (int) entry._crc );
+        header.putInt( (int) ( zip64CompressedSize ? RawZipFile.ZIP64_MAGIC : entry._compressedSize ) );
+        header.putInt( (int) ( zip64Size ? RawZipFile.ZIP64_MAGIC : entry._size ) );
+        header.putShort( (short) nameBytes.length );
+        header.putShort( (short) extraLength );
+        header.putShort( (short) entry._comment.length );
+        header.putShort( (short) 0 );
+        header.putShort( (short) 0 );
+        header.putInt( 0 );
+        header.putInt( (int) ( zip64Offset ? RawZipFile.ZIP64_MAGIC : entry._localHeaderOffset ) );
+        header.put( nameBytes );
+        if ( zip64 )
+        {
+            header.putShort( (short) RawZipFile.ZIP64_EXTRA_ID );
+            header.putShort( (short) zip64Length );
+            if ( zip64Size )
+            {
+                header.putLong( entry._size );
+            }
+            if ( zip64CompressedSize )
+            {
+                header.putLong( entry._compressedSize );
+            }
+            if ( zip64Offset )
+            {
+                header.putLong( entry._localHeaderOffset );
+            }
+        }
+        header.put( entry._extra );
+        header.put( entry._comment );
+        write( header );
+    }
+
+    private void write( ByteBuffer buffer )
+            throws IOException
+    {
+        _out.write( buffer.array(), 0, buffer.position() );
+        _written += buffer.position();
+    }
+
+    private static ByteBuffer newBuffer( int size )
+    {
+        return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private static int version( int method, boolean zip64 )
+    {
+        return zip64 ? 45 : method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    private static void checkLength( String name, int length )
+            throws ZipException
+    {
+        if ( length > 0xFFFF )
+        {
+            throw new ZipException( "Header too large for " + name );
+        }
+    }
+
+    /**
+     * @return the extra field without its zip64 block, which is rewritten from the actual sizes and offset
+     */
+    private static byte[] removeZip64( byte[] extra )
+    {
+        if ( RawZipFile.findExtra( extra, RawZipFile.ZIP64_EXTRA_ID ) == null )
+        {
+            return extra;
+        }
+        ByteBuffer in = ByteBuffer.wrap( extra ).order( ByteOrder.LITTLE_ENDIAN );
+        ByteBuffer out = newBuffer( extra.length );
+        while ( in.remaining() >= 4 )
+        {
+            int start = in.position();
+            int headerId = in.getShort() & 0xFFFF;
+            int dataSize = Math.min( in.getShort() & 0xFFFF, in.remaining() );
+            in.position( in.position() + dataSize );
+            if ( headerId != RawZipFile.ZIP64_EXTRA_ID )
+            {
+                out.put( extra, start, 4 + dataSize );
+            }
+        }
+        out.flip();
+        byte[] result = new byte[out.remaining()];
+        out.get( result );
+        return result;
+    }
+
+    /**
+     * @return the extra field starting with the JAR magic, as JarOutputStream writes the first entry
+     */
+    private static byte[] addJarMagic( byte[] extra )
+    {
+        if ( RawZipFile.findExtra( extra, JAR_MAGIC ) != null )
+        {
+            return extra;
+        }
+        ByteBuffer result = newBuffer( extra.length + 4 );
+        result.putShort( (short) JAR_MAGIC );
+        result.putShort( (short) 0 );
+        result.put( extra );
+        return result.array();
+    }
+
+    /**
+     * @return the MS-DOS date and time of a Java time in the local time zone, like ZipEntry
+     */
+    private static int javaToDosTime( long time )
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis( time );
+        int year = calendar.get( Calendar.YEAR );
+        if ( year < 1980 )
+        {
+            return ( 1 << 21 ) | ( 1 << 16 );
+        }
+        return ( year - 1980 ) << 25 | ( calendar.get( Calendar.MONTH ) + 1 ) << 21 |
+                calendar.get( Calendar.DAY_OF_MONTH ) << 16 | calendar.get( Calendar.HOUR_OF_DAY ) << 11 |
+                calendar.get( Calendar.MINUTE ) << 5 | calendar.get( Calendar.SECOND ) >> 1;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * @(#)AsyncDownloadWriter.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes the body of a file download without holding the request thread until the
+ * transfer is complete. Implementations need a Servlet 3.1 container; the servlet
+ * loads one by name when the async-downloads init-param is set, so the servlet
+ * itself keeps running on Servlet 2.5.
+ */
+public interface AsyncDownloadWriter
+{
+    /**
+     * Name of the implementation compiled by the servlet31 build profile
+     */
+    String IMPLEMENTATION = "jnlp.sample.servlet.AsyncFileDownloadWriter";
+
+    /**
+     * Starts writing part of a file to the response. The headers of the response
+     * have been set already.
+     *
+     * @param request  the request being answered
+     * @param response the response to write the file to
+     * @param file     the file, closed by the writer once the transfer is over if true is returned
+     * @param start    offset of the first byte to write
+     * @param length   number of bytes to write
+     * @return false if the request cannot be handled asynchronously and must be answered as usual
+     * @throws IOException if the response cannot be written
+     */
+    boolean write( HttpServletRequest request, HttpServletResponse response, RandomAccessFile file, long start,
+                   long length )
+            throws IOException;
+}
@@ -0,0 +1,365 @@
+/*
+ * @(#)CompressedVariantCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps gzip compressed copies of resources that have no pre-compressed .gz file
+ * next to them. The first request that accepts gzip queues the resource to be
+ * compressed in the background; it and the requests arriving while the resource is
+ * being compressed get the uncompressed resource, so no request waits for it.
+ * <p>
+ * Variants are stored as files in a directory below the servlet temporary directory,
+ * keyed by path and last modified time. The directory belongs to a single instance,
+ * which deletes it when destroyed. The least recently used variants are deleted
+ * when the total size exceeds the budget. Resources that do not get smaller are
+ * remembered too, so they are not compressed again. Responses open the file of a
+ * variant when they are created, so a variant evicted while it is being sent is
+ * still read in full.
+ */
+public class CompressedVariantCache
+{
+    // Number of resources waiting to be compressed, further ones are queued again by a later request
+    private static final int QUEUE_SIZE = 64;
+
+    private final File _directory;
+
+    private final long _maxBytes;
+
+    private final int _minSize;
+
+    private final Logger _log;
+
+    // Guarded by itself, in access order for eviction
+    private final LinkedHashMap<String, Variant> _variants = new LinkedHashMap<String, Variant>( 64, 0.75f, true );
+
+    private long _totalBytes;
+
+    private final ConcurrentMap<String, Boolean> _inProgress = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Compresses resources in the background, one at a time
+     */
+    private final ThreadPoolExecutor _executor;
+
+    /**
+     * A compressed copy of a resource
+     */
+    static final class Variant
+    {
+        private final long _lastModified;
+
+        private final File _file;     // null if compressing did not make the resource smaller
+
+        private final String _etag;
+
+        private final long _size;
+
+        Variant( long lastModified, File file, String etag )
+        {
+            _lastModified = lastModified;
+            _file = file;
+            _etag = etag;
+            _size = ( file == null ) ? 0 : file.length();
+        }
+
+        File getFile()
+        {
+            return _file;
+        }
+
+        String getETag()
+        {
+            return _etag;
+        }
+
+        long getSize()
+        {
+            return _size;
+        }
+    }
+
+    /**
+     * @param directory empty directory to store the variants in
+     * @param maxBytes  total size of the variants kept
+     * @param minSize   smallest resource worth compressing
+     * @param log       logger
+     */
+    public CompressedVariantCache( File directory, long maxBytes, int minSize, Logger log )
+    {
+        _directory = directory;
+        _maxBytes = maxBytes;
+        _minSize = minSize;
+        _log = log;
+        _executor = new ThreadPoolExecutor( 1, 1, 60, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue<Runnable>( QUEUE_SIZE ),
+                                            new ThreadFactory()
+                                            {
+                                                public Thread newThread( Runnable r )
+                                                {
+                                                    Thread thread = new Thread( r, "jnlp-gzip-compressor" );
+                                                    thread.setDaemon( true );
+                                                    return thread;
+                                                }
+                                            } );
+        _executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Tells whether a resource is worth compressing: it must not be compressed already,
+     * which rules out .gz files and images, and it must not be too small.
+     *
+     * @param metadata metadata of the uncompressed resource
+     * @return true if a compressed variant may be sent
+     */
+    public boolean isEligible( ResourceMetadata metadata )
+    {
+        if ( !metadata.exists() || metadata.getPath().endsWith( ".gz" ) )
+        {
+            return false;
+        }
+        String mimeType = metadata.getMimeType();
+        if ( mimeType != null && mimeType.startsWith( "image/" ) )
+        {
+            return false;
+        }
+        return metadata.getContentLength() >= _minSize;
+    }
+
+    /**
+     * Returns the compressed variant of a resource, queueing the resource to be compressed if needed.
+     *
+     * @param metadata metadata of an eligible uncompressed resource
+     * @return the variant, or null if the uncompressed resource must be sent
+     */
+    public Variant getVariant( final ResourceMetadata metadata )
+    {
+        String key = metadata.getPath();
+        synchronized ( _variants )
+        {
+            Variant variant = _variants.get( key );
+            if ( variant != null )
+            {
+                if ( variant._lastModified == metadata.getLastModified() )
+                {
+                    return ( variant._file != null ) ? variant : null;
+                }
+                remove( key );
+            }
+        }
+        if ( _inProgress.putIfAbsent( key, Boolean.TRUE ) == null )
+        {
+            try
+            {
+                _executor.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            add( metadata );
+                        }
+                        finally
+                        {
+                            _inProgress.remove( metadata.getPath() );
+                        }
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException ree )
+            {
+                // Too many resources queued, or destroyed
+                _inProgress.remove( key );
+            }
+        }
+        return null;
+    }
+
+    /* Runs on the compressor thread */
+    private void add( ResourceMetadata metadata )
+    {
+        Variant variant = compress( metadata );
+        if ( variant != null )
+        {
+            synchronized ( _variants )
+            {
+                remove( metadata.getPath() );
+                _variants.put( metadata.getPath(), variant );
+                _totalBytes += variant.getSize();
+                // A variant larger than the whole budget is evicted right away
+                evict();
+            }
+        }
+    }
+
+    private Variant compress( ResourceMetadata metadata )
+    {
+        File file = null;
+        try
+        {
+            file = File.createTempFile( "variant", ".gz", _directory );
+            InputStream in = metadata.getResource().openStream();
+            OutputStream out = new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+            try
+            {
+                byte[] buffer = new byte[32 * 1024];
+                int read;
+                while ( ( read = in.read( buffer ) ) != -1 )
+                {
+                    out.write( buffer, 0, read );
+                }
+            }
+            finally
+            {
+                in.close();
+                out.close();
+            }
+            if ( file.length() >= metadata.getContentLength() )
+            {
+                file.delete();
+                return new Variant( metadata.getLastModified(), null, null );
+            }
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "Compressed " + metadata.getPath() + " from " + metadata.getContentLength() + " to " +
+                                       file.length() + " bytes" );
+            }
+            return new Variant( metadata.getLastModified(), file, ETagCache.computeETag( file ) );
+        }
+        catch ( IOException ioe )
+        {
+            _log.addDebug( "Unable to compress " + metadata.getPath(), ioe );
+            if ( file != null )
+            {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /* Must be called with the lock held */
+    private void remove( String key )
+    {
+        Variant variant = _variants.remove( key );
+        if ( variant != null )
+        {
+            _totalBytes -= variant.getSize();
+            if ( variant._file != null )
+            {
+                variant._file.delete();
+            }
+        }
+    }
+
+    /* Must be called with the lock held */
+    private void evict()
+    {
+        for ( Iterator<Map.Entry<String, Variant>> it = _variants.entrySet().iterator();
+              it.hasNext() && _totalBytes > _maxBytes; )
+        {
+            Variant variant = it.next().getValue();
+            it.remove();
+            _totalBytes -= variant.getSize();
+            if ( variant._file != null )
+            {
+                variant._file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops compressing, resources still queued are not compressed, and deletes the variants
+     * with their directory
+     */
+    public void destroy()
+    {
+        _executor.shutdownNow();
+        synchronized ( _variants )
+        {
+            _variants.clear();
+            _totalBytes = 0;
+        }
+        File[] files = _directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+        _directory.delete();
+    }
+
+    /**
+     * @return the number of resources compressed, including those that did not get smaller
+     */
+    public int size()
+    {
+        synchronized ( _variants )
+        {
+            return _variants.size();
+        }
+    }
+
+    /**
+     * @return the total size of the variants on disk
+     */
+    public long getTotalBytes()
+    {
+        synchronized ( _variants )
+        {
+            return _totalBytes;
+        }
+    }
+}
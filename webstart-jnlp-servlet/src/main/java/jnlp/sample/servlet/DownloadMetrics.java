@@ -0,0 +1,396 @@
+/*
+ * @(#)DownloadMetrics.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the download servlet: requests by outcome, latency histograms of the
+ * lookup, generate and send phases of a request, and bytes served by mime type, along
+ * with the counters of the JNLP file cache, the JarDiff handler and the catalog.
+ * <p>
+ * Recording only adds to striped counters and fixed histogram buckets, so it neither
+ * locks nor allocates once a mime type has been seen.
+ */
+public class DownloadMetrics
+        implements DownloadMetricsMXBean
+{
+    // Outcomes of a request, indices into OUTCOMES
+    static final int OUTCOME_OK = 0;
+
+    static final int OUTCOME_NO_CONTENT = 8;
+
+    static final int OUTCOME_NOT_MODIFIED = 9;
+
+    static final int OUTCOME_NOT_FOUND = 10;
+
+    static final int OUTCOME_INTERNAL_ERROR = 11;
+
+    static final int OUTCOME_OTHER = 12;
+
+    private static final String[] OUTCOMES =
+            { "STS_00_OK", "ERR_10_NO_RESOURCE", "ERR_11_NO_VERSION", "ERR_20_UNSUP_OS", "ERR_21_UNSUP_ARCH",
+                    "ERR_22_UNSUP_LOCALE", "ERR_23_UNSUP_JRE", "ERR_99_UNKNOWN", "204", "304", "404", "500",
+                    "OTHER" };
+
+    // Phases of a request, indices into PHASES
+    static final int PHASE_LOOKUP = 0;
+
+    static final int PHASE_GENERATE = 1;
+
+    static final int PHASE_SEND = 2;
+
+    private static final String[] PHASES = { "lookup", "generate", "send" };
+
+    // Upper bounds of the latency buckets, powers of two from 1 microsecond to 33 seconds
+    private static final long[] BUCKET_BOUNDS = new long[26];
+
+    static
+    {
+        for ( int i = 0; i < BUCKET_BOUNDS.length; i++ )
+        {
+            BUCKET_BOUNDS[i] = 1L << i;
+        }
+    }
+
+    // Mime types counted separately, the others are counted together
+    private static final int MAX_MIME_TYPES = 64;
+
+    private static final String OTHER_MIME_TYPE = "other";
+
+    private final LongAdder[] _outcomes = newAdders( OUTCOMES.length );
+
+    // One more bucket than bounds, for the latencies above the last bound
+    private final LongAdder[][] _latencies = new LongAdder[PHASES.length][];
+
+    private final LongAdder[] _latencyNanos = newAdders( PHASES.length );
+
+    private final ConcurrentMap<String, LongAdder> _bytes = new ConcurrentHashMap<String, LongAdder>();
+
+    // Counter of each content type seen, content types with parameters share the counter of their mime type
+    private final ConcurrentMap<String, LongAdder> _contentTypes = new ConcurrentHashMap<String, LongAdder>();
+
+    private final JnlpFileCache _jnlpFiles;
+
+    private final JarDiffHandler _jarDiffs;
+
+    private final ResourceCatalog _catalog;
+
+    /**
+     * @param jnlpFiles cache of generated JNLP files, or null
+     * @param jarDiffs  JarDiff handler, or null
+     * @param catalog   resource catalog, or null
+     */
+    public DownloadMetrics( JnlpFileCache jnlpFiles, JarDiffHandler jarDiffs, ResourceCatalog catalog )
+    {
+        _jnlpFiles = jnlpFiles;
+        _jarDiffs = jarDiffs;
+        _catalog = catalog;
+        for ( int i = 0; i < PHASES.length; i++ )
+        {
+            _latencies[i] = newAdders( BUCKET_BOUNDS.length + 1 );
+        }
+    }
+
+    /**
+     * Records the response sent for a request.
+     *
+     * @param status        HTTP status of the response
+     * @param contentType   content type of the response, or null
+     * @param contentLength length of the body, or -1 if not known
+     * @param hasBody       false for responses to HEAD requests
+     */
+    void recordResponse( int status, String contentType, long contentLength, boolean hasBody )
+    {
+        switch ( status )
+        {
+            case 200:
+            case 206:
+                _outcomes[OUTCOME_OK].increment();
+                break;
+            case 204:
+                _outcomes[OUTCOME_NO_CONTENT].increment();
+                break;
+            case 304:
+                _outcomes[OUTCOME_NOT_MODIFIED].increment();
+                break;
+            case 404:
+                _outcomes[OUTCOME_NOT_FOUND].increment();
+                break;
+            case 500:
+                _outcomes[OUTCOME_INTERNAL_ERROR].increment();
+                break;
+            default:
+                _outcomes[OUTCOME_OTHER].increment();
+        }
+        if ( hasBody && contentLength > 0 && ( status == 200 || status == 206 ) )
+        {
+            getBytesCounter( contentType ).add( contentLength );
+        }
+    }
+
+    /**
+     * Records a JNLP error response, sent with HTTP status 200.
+     *
+     * @param jnlpErrorCode one of the DownloadResponse.ERR_ codes
+     */
+    void recordJnlpError( int jnlpErrorCode )
+    {
+        int outcome;
+        switch ( jnlpErrorCode )
+        {
+            case DownloadResponse.ERR_10_NO_RESOURCE:
+                outcome = 1;
+                break;
+            case DownloadResponse.ERR_11_NO_VERSION:
+                outcome = 2;
+                break;
+            case DownloadResponse.ERR_20_UNSUP_OS:
+                outcome = 3;
+                break;
+            case DownloadResponse.ERR_21_UNSUP_ARCH:
+                outcome = 4;
+                break;
+            case DownloadResponse.ERR_22_UNSUP_LOCALE:
+                outcome = 5;
+                break;
+            case DownloadResponse.ERR_23_UNSUP_JRE:
+                outcome = 6;
+                break;
+            case DownloadResponse.ERR_99_UNKNOWN:
+                outcome = 7;
+                break;
+            default:
+                outcome = OUTCOME_OTHER;
+        }
+        _outcomes[outcome].increment();
+    }
+
+    /**
+     * Records the time a request spent in a phase.
+     *
+     * @param phase one of the PHASE_ constants
+     * @param nanos the time, in nanoseconds
+     */
+    void recordLatency( int phase, long nanos )
+    {
+        long micros = Math.max( 0, TimeUnit.NANOSECONDS.toMicros( nanos ) );
+        int bucket = ( micros <= 1 ) ? 0 : Math.min( 64 - Long.numberOfLeadingZeros( micros - 1 ),
+                                                      BUCKET_BOUNDS.length );
+        _latencies[phase][bucket].increment();
+        _latencyNanos[phase].add( nanos );
+    }
+
+    public Map<String, Long> getRequestCounts()
+    {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for ( int i = 0; i < OUTCOMES.length; i++ )
+        {
+            counts.put( OUTCOMES[i], _outcomes[i].sum() );
+        }
+        return counts;
+    }
+
+    public long[] getLatencyBucketBounds()
+    {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    public Map<String, long[]> getLatencyHistograms()
+    {
+        Map<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+        for ( int i = 0; i < PHASES.length; i++ )
+        {
+            long[] counts = new long[_latencies[i].length];
+            for ( int j = 0; j < counts.length; j++ )
+            {
+                counts[j] = _latencies[i][j].sum();
+            }
+            histograms.put( PHASES[i], counts );
+        }
+        return histograms;
+    }
+
+    public Map<String, Long> getLatencyTotalMicros()
+    {
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        for ( int i = 0; i < PHASES.length; i++ )
+        {
+            totals.put( PHASES[i], TimeUnit.NANOSECONDS.toMicros( _latencyNanos[i].sum() ) );
+        }
+        return totals;
+    }
+
+    public Map<String, Long> getBytesServed()
+    {
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for ( Map.Entry<String, LongAdder> entry : _bytes.entrySet() )
+        {
+            bytes.put( entry.getKey(), entry.getValue().sum() );
+        }
+        return bytes;
+    }
+
+    public long getJarDiffGeneratedCount()
+    {
+        return _jarDiffs == null ? 0 : _jarDiffs.getGeneratedCount();
+    }
+
+    public long getJarDiffServedCount()
+    {
+        return _jarDiffs == null ? 0 : _jarDiffs.getServedCount();
+    }
+
+    public long getJarDiffDiscardedCount()
+    {
+        return _jarDiffs == null ? 0 : _jarDiffs.getDiscardedCount();
+    }
+
+    public long getJnlpCacheHitCount()
+    {
+        return _jnlpFiles == null ? 0 : _jnlpFiles.getHitCount();
+    }
+
+    public long getJnlpCacheMissCount()
+    {
+        return _jnlpFiles == null ? 0 : _jnlpFiles.getMissCount();
+    }
+
+    public double getJnlpCacheHitRatio()
+    {
+        long hits = getJnlpCacheHitCount();
+        long total = hits + getJnlpCacheMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getCatalogScanCount()
+    {
+        return _catalog == null ? 0 : _catalog.getScanCount();
+    }
+
+    /**
+     * Writes the metrics as text, one "name{labels} value" line per value. Histogram
+     * buckets are cumulative, with the upper bound in microseconds as the le label.
+     *
+     * @param pw writer
+     */
+    public void writeText( PrintWriter pw )
+    {
+        for ( Map.Entry<String, Long> count : getRequestCounts().entrySet() )
+        {
+            pw.println( "jnlp_requests_total{outcome=\"" + count.getKey() + "\"} " + count.getValue() );
+        }
+        Map<String, Long> totals = getLatencyTotalMicros();
+        for ( Map.Entry<String, long[]> histogram : getLatencyHistograms().entrySet() )
+        {
+            String phase = histogram.getKey();
+            long[] counts = histogram.getValue();
+            long cumulative = 0;
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                cumulative += counts[i];
+                String bound = ( i < BUCKET_BOUNDS.length ) ? String.valueOf( BUCKET_BOUNDS[i] ) : "+Inf";
+                pw.println( "jnlp_latency_micros_bucket{phase=\"" + phase + "\",le=\"" + bound + "\"} " + cumulative );
+            }
+            pw.println( "jnlp_latency_micros_sum{phase=\"" + phase + "\"} " + totals.get( phase ) );
+            pw.println( "jnlp_latency_micros_count{phase=\"" + phase + "\"} " + cumulative );
+        }
+        for ( Map.Entry<String, Long> bytes : getBytesServed().entrySet() )
+        {
+            pw.println( "jnlp_bytes_served_total{mime=\"" + bytes.getKey() + "\"} " + bytes.getValue() );
+        }
+        pw.println( "jnlp_jardiff_generated_total " + getJarDiffGeneratedCount() );
+        pw.println( "jnlp_jardiff_served_total " + getJarDiffServedCount() );
+        pw.println( "jnlp_jardiff_discarded_total " + getJarDiffDiscardedCount() );
+        pw.println( "jnlp_file_cache_hits_total " + getJnlpCacheHitCount() );
+        pw.println( "jnlp_file_cache_misses_total " + getJnlpCacheMissCount() );
+        pw.println( "jnlp_file_cache_hit_ratio " + getJnlpCacheHitRatio() );
+        pw.println( "jnlp_catalog_scans_total " + getCatalogScanCount() );
+    }
+
+    private LongAdder getBytesCounter( String contentType )
+    {
+        if ( contentType == null )
+        {
+            contentType = OTHER_MIME_TYPE;
+        }
+        LongAdder counter = _contentTypes.get( contentType );
+        if ( counter != null )
+        {
+            return counter;
+        }
+        // Parameters such as the charset are not part of the mime type
+        int semicolon = contentType.indexOf( ';' );
+        String mimeType = ( semicolon == -1 ? contentType : contentType.substring( 0, semicolon ) ).trim();
+        if ( mimeType.length() == 0 || ( _bytes.size() >= MAX_MIME_TYPES && !_bytes.containsKey( mimeType ) ) )
+        {
+            mimeType = OTHER_MIME_TYPE;
+        }
+        counter = _bytes.get( mimeType );
+        if ( counter == null )
+        {
+            LongAdder created = new LongAdder();
+            counter = _bytes.putIfAbsent( mimeType, created );
+            if ( counter == null )
+            {
+                counter = created;
+            }
+        }
+        if ( _contentTypes.size() < MAX_MIME_TYPES * 2 )
+        {
+            _contentTypes.putIfAbsent( contentType, counter );
+        }
+        return counter;
+    }
+
+    private static LongAdder[] newAdders( int count )
+    {
+        LongAdder[] adders = new LongAdder[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * @(#)DownloadMetricsMXBean.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link DownloadMetrics}, registered by the download servlet
+ * as jnlp.sample.servlet:type=DownloadMetrics with the context path and servlet name.
+ */
+public interface DownloadMetricsMXBean
+{
+    /**
+     * @return the number of requests by outcome: the JNLP status or error code of the
+     *         response, or the HTTP status for responses that carry none
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * @return the upper bounds of the latency histogram buckets, in microseconds; the last
+     *         bucket counts everything above the last bound
+     */
+    long[] getLatencyBucketBounds();
+
+    /**
+     * @return the latency histograms by phase: lookup, generate and send
+     */
+    Map<String, long[]> getLatencyHistograms();
+
+    /**
+     * @return the total time spent in each phase, in microseconds
+     */
+    Map<String, Long> getLatencyTotalMicros();
+
+    /**
+     * @return the number of body bytes sent by mime type
+     */
+    Map<String, Long> getBytesServed();
+
+    long getJarDiffGeneratedCount();
+
+    long getJarDiffServedCount();
+
+    long getJarDiffDiscardedCount();
+
+    long getJnlpCacheHitCount();
+
+    long getJnlpCacheMissCount();
+
+    /**
+     * @return the share of JNLP file requests answered from the cache, 0 if there were none
+     */
+    double getJnlpCacheHitRatio();
+
+    long getCatalogScanCount();
+}
@@ -36,18 +36,31 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.VersionID;
+
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.MissingResourceException;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A class used to encapsulate a file response, and
@@ -59,6 +72,32 @@ abstract public class DownloadResponse
 
     private static final String HEADER_JNLP_VERSION = "x-java-jnlp-version-id";
 
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String HEADER_VARY = "Vary";
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String ARG_VERSION_ID = "version-id";
+
+    private static final String BYTES_UNIT = "bytes";
+
     private static final String JNLP_ERROR_MIMETYPE = "application/x-java-jnlp-error";
 
     public static final int STS_00_OK = 0;
@@ -83,6 +122,113 @@ abstract public class DownloadResponse
     // HTTP Compression RFC 2616 : Standard header for HTTP Compression
     public static final String GZIP_ENCODING = "gzip";
 
+    // Content encoding of pack200 files compressed with gzip, understood by Java Web Start
+    public static final String PACK200_GZIP_ENCODING = "pack200-gzip";
+
+    // How file content is written: with a byte[] copy loop (default), with
+    // FileChannel.transferTo, or through memory-mapped windows of the file. The last two
+    // write to the container's output stream as a channel when it is a WritableByteChannel;
+    // any other stream takes a byte[], which the file is then copied to in large chunks,
+    // from its memory-mapped windows in the mapped mode. Those two also let a container
+    // that offers it send the file itself (Tomcat sendfile)
+    public static final String TRANSFER_STREAM = "stream";
+
+    public static final String TRANSFER_CHANNEL = "channel";
+
+    public static final String TRANSFER_MAPPED = "mapped";
+
+    // Request attributes of containers that can send a file themselves (Tomcat sendfile)
+    private static final String ATTR_SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String ATTR_SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String ATTR_SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String ATTR_SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Size of the part of a file that is mapped at a time in TRANSFER_MAPPED mode
+    private static final long MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    // Size of the chunks copied to an output stream that is not a channel, in TRANSFER_CHANNEL and TRANSFER_MAPPED mode
+    private static final int LARGE_CHUNK_SIZE = 256 * 1024;
+
+    // Default Cache-Control values: the content behind an exact version-id never changes,
+    // while JNLP files and resources fetched without a version-id must be revalidated
+    public static final String DEFAULT_CACHE_CONTROL_VERSIONED = "public, max-age=31536000, immutable";
+
+    public static final String DEFAULT_CACHE_CONTROL_UNVERSIONED = "no-cache";
+
+    public static final String DEFAULT_CACHE_CONTROL_JNLP = "no-cache";
+
+    /**
+     * @param encoding the Accept-Encoding of a request, may be null
+     * @return true if the request accepts gzip content
+     */
+    static boolean acceptsGzip( String encoding )
+    {
+        return getEncodingQuality( encoding, GZIP_ENCODING ) > 0;
+    }
+
+    /**
+     * Returns the quality value an Accept-Encoding header gives to a content coding,
+     * following RFC 7231: a coding that is not listed gets the value of "*", if any;
+     * identity is acceptable unless excluded explicitly or through "*;q=0".
+     *
+     * @param acceptEncoding the Accept-Encoding of a request, may be null
+     * @param coding         the content coding, null for identity
+     * @return the quality value between 0 (not acceptable) and 1
+     */
+    static float getEncodingQuality( String acceptEncoding, String coding )
+    {
+        boolean identity = ( coding == null );
+        if ( identity )
+        {
+            coding = "identity";
+        }
+        if ( acceptEncoding == null )
+        {
+            return identity ? 1 : 0;
+        }
+        float wildcard = -1;
+        StringTokenizer st = new StringTokenizer( acceptEncoding, "," );
+        while ( st.hasMoreTokens() )
+        {
+            String element = st.nextToken();
+            float quality = 1;
+            int semicolon = element.indexOf( ';' );
+            if ( semicolon != -1 )
+            {
+                String param = element.substring( semicolon + 1 ).trim();
+                element = element.substring( 0, semicolon );
+                if ( param.startsWith( "q=" ) || param.startsWith( "Q=" ) )
+                {
+                    try
+                    {
+                        quality = Float.parseFloat( param.substring( 2 ).trim() );
+                    }
+                    catch ( NumberFormatException nfe )
+                    {
+                        quality = 0;
+                    }
+                }
+            }
+            element = element.trim();
+            if ( element.equalsIgnoreCase( coding ) )
+            {
+                return quality;
+            }
+            if ( element.equals( "*" ) )
+            {
+                wildcard = quality;
+            }
+        }
+        if ( wildcard >= 0 )
+        {
+            return wildcard;
+        }
+        return identity ? 1 : 0;
+    }
+
     public DownloadResponse()
     { /* do nothing */ }
 
@@ -100,6 +246,35 @@ abstract public class DownloadResponse
     abstract void sendRespond( HttpServletResponse response )
             throws IOException;
 
+    /**
+     * Post information to an HttpResponse, knowing the request it answers.
+     * Responses that do not depend on the request ignore it.
+     *
+     * @param request  the request being answered, may be null
+     * @param response the response to write
+     * @throws IOException if the response cannot be written
+     */
+    void sendRespond( HttpServletRequest request, HttpServletResponse response )
+            throws IOException
+    {
+        sendRespond( response );
+    }
+
+    /**
+     * Post information to an HttpResponse, sending files the way the servlet is configured to.
+     * Responses that are not sent from a file ignore the settings.
+     *
+     * @param request  the request being answered, may be null
+     * @param response the response to write
+     * @param settings how files are sent
+     * @throws IOException if the response cannot be written
+     */
+    void sendRespond( HttpServletRequest request, HttpServletResponse response, DownloadSettings settings )
+            throws IOException
+    {
+        sendRespond( request, response );
+    }
+
     /**
      * Factory methods for error responses
      *
@@ -126,28 +301,200 @@ abstract public class DownloadResponse
 
     static DownloadResponse getNotModifiedResponse()
     {
-        return new NotModifiedResponse();
+        return new NotModifiedResponse( null );
     }
 
     static DownloadResponse getHeadRequestResponse( String mimeType, String versionId, long lastModified,
-                                                    int contentLength )
+                                                    long contentLength )
     {
-        return new HeadRequestResponse( mimeType, versionId, lastModified, contentLength );
+        return getHeadRequestResponse( mimeType, versionId, lastModified, contentLength, null );
+    }
+
+    static DownloadResponse getHeadRequestResponse( String mimeType, String versionId, long lastModified,
+                                                    long contentLength, String etag )
+    {
+        return new HeadRequestResponse( mimeType, versionId, lastModified, contentLength, etag );
     }
 
     static DownloadResponse getFileDownloadResponse( byte[] content, String mimeType, long timestamp, String versionId )
     {
-        return new ByteArrayFileDownloadResponse( content, mimeType, versionId, timestamp );
+        return getFileDownloadResponse( content, mimeType, timestamp, versionId, -1 );
+    }
+
+    /**
+     * @param gzipMinSize content of at least this size also gets a gzip variant, -1 disables it
+     */
+    static DownloadResponse getFileDownloadResponse( byte[] content, String mimeType, long timestamp, String versionId,
+                                                     int gzipMinSize )
+    {
+        return new ByteArrayFileDownloadResponse( content, mimeType, versionId, timestamp, gzipMinSize );
     }
 
     static DownloadResponse getFileDownloadResponse( URL resource, String mimeType, long timestamp, String versionId )
     {
-        return new ResourceFileDownloadResponse( resource, mimeType, versionId, timestamp );
+        return getFileDownloadResponse( resource, mimeType, timestamp, versionId, null, false );
+    }
+
+    /**
+     * @param varyEncoding true if another content encoding of the resource could have been chosen
+     */
+    static DownloadResponse getFileDownloadResponse( URL resource, String mimeType, long timestamp, String versionId,
+                                                     String etag, boolean varyEncoding )
+    {
+        return new ResourceFileDownloadResponse( resource, mimeType, versionId, timestamp, etag, varyEncoding );
     }
 
     static DownloadResponse getFileDownloadResponse( File file, String mimeType, long timestamp, String versionId )
     {
-        return new DiskFileDownloadResponse( file, mimeType, versionId, timestamp );
+        return getFileDownloadResponse( file, mimeType, timestamp, versionId, null );
+    }
+
+    static DownloadResponse getFileDownloadResponse( File file, String mimeType, long timestamp, String versionId,
+                                                     String etag )
+    {
+        return getFileDownloadResponse( file, mimeType, timestamp, versionId, etag, false );
+    }
+
+    /**
+     * @param varyEncoding true if another content encoding of the file could have been chosen
+     */
+    static DownloadResponse getFileDownloadResponse( File file, String mimeType, long timestamp, String versionId,
+                                                     String etag, boolean varyEncoding )
+    {
+        return new DiskFileDownloadResponse( file, mimeType, versionId, timestamp, etag, varyEncoding );
+    }
+
+    /**
+     * Same as {@link #getFileDownloadResponse(File, String, long, String, String, boolean)}, for
+     * a file that its cache may delete once handed out: the file is opened now, read through
+     * that handle, and closed once the response has been sent.
+     *
+     * @throws IOException if the file cannot be opened, e.g. as it is gone already
+     */
+    static DownloadResponse getOpenFileDownloadResponse( File file, String mimeType, long timestamp, String versionId,
+                                                         String etag, boolean varyEncoding )
+            throws IOException
+    {
+        return new OpenFileDownloadResponse( file, mimeType, versionId, timestamp, etag, varyEncoding );
+    }
+
+    /**
+     * Evaluates the validators of a conditional GET or HEAD request. If-None-Match takes
+     * precedence over If-Modified-Since, as RFC 7232 requires: when a client sends an
+     * entity tag, the last modified time, which may differ between the nodes of a
+     * cluster, is not looked at.
+     *
+     * @param request      the request, may be null
+     * @param etag         the entity tag of the content, may be null
+     * @param lastModified the last modified time of the content, 0 if unknown
+     * @return true if a 304 Not Modified can be answered
+     */
+    static boolean isNotModified( HttpServletRequest request, String etag, long lastModified )
+    {
+        if ( request == null )
+        {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader( HEADER_IF_NONE_MATCH );
+        if ( ifNoneMatch != null )
+        {
+            return etag != null && matchesETag( ifNoneMatch, etag, false );
+        }
+        long ifModifiedSince;
+        try
+        {
+            ifModifiedSince = request.getDateHeader( HEADER_IF_MODIFIED_SINCE );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            return false;
+        }
+        return ifModifiedSince != -1 && lastModified != 0 && ( lastModified / 1000 ) <= ( ifModifiedSince / 1000 );
+    }
+
+    /**
+     * Matches an entity tag against the list of an If-None-Match or If-Range header.
+     *
+     * @param strong true for the strong comparison of If-Range, false for the weak comparison of If-None-Match
+     */
+    private static boolean matchesETag( String header, String etag, boolean strong )
+    {
+        StringTokenizer st = new StringTokenizer( header, "," );
+        while ( st.hasMoreTokens() )
+        {
+            String candidate = st.nextToken().trim();
+            if ( !strong && candidate.equals( "*" ) )
+            {
+                return true;
+            }
+            if ( candidate.startsWith( "W/" ) )
+            {
+                if ( strong )
+                {
+                    continue;
+                }
+                candidate = candidate.substring( 2 );
+            }
+            if ( candidate.equals( etag ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a request asks for one exact version of a resource, e.g. version-id=1.2.3
+     * but not 1.2+ or 1.2*. A response to such a request can never change.
+     */
+    private static boolean isExactVersionRequest( HttpServletRequest request )
+    {
+        if ( request == null )
+        {
+            return false;
+        }
+        String version = request.getParameter( ARG_VERSION_ID );
+        if ( version == null || ( version = version.trim() ).length() == 0 || version.indexOf( ' ' ) != -1 )
+        {
+            return false;
+        }
+        return new VersionID( version ).isSimpleVersion();
+    }
+
+    /* Answers 304 Not Modified, without a body */
+    private static void sendNotModified( HttpServletResponse response, String etag, long lastModified )
+    {
+        response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+        if ( etag != null )
+        {
+            response.setHeader( HEADER_ETAG, etag );
+        }
+        if ( lastModified != 0 )
+        {
+            response.setDateHeader( HEADER_LASTMOD, lastModified );
+        }
+    }
+
+    // Marker returned when a Range request cannot be satisfied
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    /* Skips the given number of bytes of a stream, InputStream.skip may skip less */
+    private static void skipFully( InputStream in, long count )
+            throws IOException
+    {
+        while ( count > 0 )
+        {
+            long skipped = in.skip( count );
+            if ( skipped <= 0 )
+            {
+                if ( in.read() == -1 )
+                {
+                    throw new IOException( "Unexpected end of content" );
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
     }
 
     //
@@ -157,10 +504,17 @@ abstract public class DownloadResponse
     static private class NotModifiedResponse
             extends DownloadResponse
     {
+        private String _etag;
+
+        NotModifiedResponse( String etag )
+        {
+            _etag = etag;
+        }
+
         public void sendRespond( HttpServletResponse response )
                 throws IOException
         {
-            response.sendError( HttpServletResponse.SC_NOT_MODIFIED );
+            sendNotModified( response, _etag, 0 );
         }
     }
 
@@ -193,14 +547,17 @@ abstract public class DownloadResponse
 
         private long _lastModified;
 
-        private int _contentLength;
+        private long _contentLength;
 
-        HeadRequestResponse( String mimeType, String versionId, long lastModified, int contentLength )
+        private String _etag;
+
+        HeadRequestResponse( String mimeType, String versionId, long lastModified, long contentLength, String etag )
         {
             _mimeType = mimeType;
             _versionId = versionId;
             _lastModified = lastModified;
             _contentLength = contentLength;
+            _etag = etag;
         }
 
         /**
@@ -209,9 +566,27 @@ abstract public class DownloadResponse
         public void sendRespond( HttpServletResponse response )
                 throws IOException
         {
+            sendRespond( null, response );
+        }
+
+        /**
+         * Post information to an HttpResponse, or 304 if the validators of the request still match
+         */
+        void sendRespond( HttpServletRequest request, HttpServletResponse response )
+                throws IOException
+        {
+            if ( isNotModified( request, _etag, _lastModified ) )
+            {
+                sendNotModified( response, _etag, _lastModified );
+                return;
+            }
             // Set header information
             response.setContentType( _mimeType );
-            response.setContentLength( _contentLength );
+            // setContentLength takes an int, which cannot hold the length of files over 2 GB
+            if ( _contentLength >= 0 )
+            {
+                response.setHeader( HEADER_CONTENT_LENGTH, Long.toString( _contentLength ) );
+            }
             if ( _versionId != null )
             {
                 response.setHeader( HEADER_JNLP_VERSION, _versionId );
@@ -220,7 +595,11 @@ abstract public class DownloadResponse
             {
                 response.setDateHeader( HEADER_LASTMOD, _lastModified );
             }
-            response.sendError( HttpServletResponse.SC_OK );
+            if ( _etag != null )
+            {
+                response.setHeader( HEADER_ETAG, _etag );
+            }
+            response.setStatus( HttpServletResponse.SC_OK );
         }
     }
 
@@ -229,8 +608,11 @@ abstract public class DownloadResponse
     {
         private String _message;
 
+        private int _jnlpErrorCode;
+
         public JnlpErrorResponse( int jnlpErrorCode )
         {
+            _jnlpErrorCode = jnlpErrorCode;
             String msg = Integer.toString( jnlpErrorCode );
             String dsc = "No description";
             try
@@ -252,6 +634,11 @@ abstract public class DownloadResponse
 
         ;
 
+        int getJnlpErrorCode()
+        {
+            return _jnlpErrorCode;
+        }
+
         public String toString()
         {
             return super.toString() + "[" + _message + "]";
@@ -304,21 +691,193 @@ abstract public class DownloadResponse
             return _lastModified;
         }
 
-        abstract int getContentLength()
+        abstract long getContentLength()
                 throws IOException;
 
         abstract InputStream getContent()
                 throws IOException;
 
+        /**
+         * @return the quoted strong entity tag of the content, or null if none is known
+         */
+        abstract String getETag();
+
+        /**
+         * @return the content encoding, or null for identity
+         */
+        String getContentEncoding()
+        {
+            if ( _fileName == null || !_fileName.endsWith( ".gz" ) )
+            {
+                return null;
+            }
+            return _fileName.endsWith( ".pack.gz" ) ? PACK200_GZIP_ENCODING : GZIP_ENCODING;
+        }
+
+        /**
+         * Returns the variant of the content to send in answer to a request, e.g. a
+         * compressed one. Responses with a single variant return themselves.
+         */
+        FileDownloadResponse getVariant( HttpServletRequest request )
+        {
+            return this;
+        }
+
+        /**
+         * @return true if the content is a JNLP file
+         */
+        boolean isJnlpFile()
+        {
+            return false;
+        }
+
+        /**
+         * @return true if the content could have been sent with another content encoding
+         */
+        boolean isVaryEncoding()
+        {
+            return false;
+        }
+
+        /**
+         * Returns the Cache-Control value for this response: JNLP files use their own policy,
+         * a versioned resource is immutable when an exact version-id was asked for, anything
+         * else uses the policy for unversioned resources.
+         *
+         * @return the Cache-Control value, or an empty string to leave the header out
+         */
+        String getCacheControl( HttpServletRequest request, DownloadSettings settings )
+        {
+            if ( isJnlpFile() )
+            {
+                return settings.getCacheControlJnlp();
+            }
+            if ( getVersionId() != null && isExactVersionRequest( request ) )
+            {
+                return settings.getCacheControlVersioned();
+            }
+            return settings.getCacheControlUnversioned();
+        }
+
+        /**
+         * @return the file on local disk holding the content, or null if the content is not a local file
+         */
+        File getFile()
+        {
+            return null;
+        }
+
+        /**
+         * @return the file holding the content, opened for reading; the caller closes it
+         */
+        RandomAccessFile openFile()
+                throws IOException
+        {
+            return new RandomAccessFile( getFile(), "r" );
+        }
+
+        /**
+         * @return true if the container may be handed the name of the file, to open and send it itself
+         */
+        boolean isSendableByName()
+        {
+            return true;
+        }
+
         /**
          * Post information to an HttpResponse
          */
         public void sendRespond( HttpServletResponse response )
                 throws IOException
         {
+            sendRespond( null, response );
+        }
+
+        /**
+         * @return true if parts of the content can be sent in answer to a Range request
+         */
+        boolean isRangeSupported()
+        {
+            return false;
+        }
+
+        /**
+         * Post information to an HttpResponse
+         */
+        void sendRespond( HttpServletRequest request, HttpServletResponse response )
+                throws IOException
+        {
+            sendRespond( request, response, DownloadSettings.DEFAULT );
+        }
+
+        /**
+         * Post information to an HttpResponse
+         */
+        void sendRespond( HttpServletRequest request, HttpServletResponse response, DownloadSettings settings )
+                throws IOException
+        {
+            FileDownloadResponse variant = getVariant( request );
+            if ( variant != this )
+            {
+                variant.sendRespond( request, response, settings );
+                return;
+            }
+
+            // Validator and caching headers, which a 304 answer repeats
+            String cacheControl = getCacheControl( request, settings );
+            if ( cacheControl.length() > 0 )
+            {
+                response.setHeader( HEADER_CACHE_CONTROL, cacheControl );
+            }
+            if ( isVaryEncoding() )
+            {
+                response.setHeader( HEADER_VARY, HEADER_ACCEPT_ENCODING );
+            }
+
+            String etag = getETag();
+            if ( isNotModified( request, etag, getLastModified() ) )
+            {
+                sendNotModified( response, etag, getLastModified() );
+                return;
+            }
+            if ( etag != null )
+            {
+                response.setHeader( HEADER_ETAG, etag );
+            }
+
+            long length = getContentLength();
+            long start = 0;
+            long count = length;
+            boolean partial = false;
+            if ( isRangeSupported() && length >= 0 )
+            {
+                response.setHeader( HEADER_ACCEPT_RANGES, BYTES_UNIT );
+                long[] range = getRequestedRange( request, length );
+                if ( range == UNSATISFIABLE_RANGE )
+                {
+                    response.setHeader( HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + length );
+                    response.setContentLength( 0 );
+                    response.setStatus( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+                    return;
+                }
+                if ( range != null )
+                {
+                    start = range[0];
+                    count = range[1] - range[0] + 1;
+                    partial = true;
+                }
+            }
+
             // Set header information
+            if ( partial )
+            {
+                response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+                response.setHeader( HEADER_CONTENT_RANGE,
+                                    BYTES_UNIT + " " + start + "-" + ( start + count - 1 ) + "/" + length );
+            }
             response.setContentType( getMimeType() );
-            response.setContentLength( getContentLength() );
+            // setContentLength takes an int, which cannot hold the length of files over 2 GB
+            response.setHeader( HEADER_CONTENT_LENGTH, Long.toString( count ) );
             if ( getVersionId() != null )
             {
                 response.setHeader( HEADER_JNLP_VERSION, getVersionId() );
@@ -327,29 +886,41 @@ abstract public class DownloadResponse
             {
                 response.setDateHeader( HEADER_LASTMOD, getLastModified() );
             }
-            if ( _fileName != null )
+            if ( getContentEncoding() != null )
+            {
+                response.setHeader( CONTENT_ENCODING, getContentEncoding() );
+            }
+            else if ( _fileName != null )
             {
+                response.setHeader( CONTENT_ENCODING, null );
+            }
 
-                if ( _fileName.endsWith( ".gz" ) )
-                {
-                    response.setHeader( CONTENT_ENCODING, GZIP_ENCODING );
-                }
-                else
+            // Send contents, a local file through a single handle
+            File file = getFile();
+            if ( file != null )
+            {
+                if ( !sendFileByName( request, file, start, count, settings ) )
                 {
-                    response.setHeader( CONTENT_ENCODING, null );
+                    sendFile( request, response, openFile(), start, count, settings );
                 }
+                return;
             }
-
-            // Send contents
             InputStream in = getContent();
             OutputStream out = response.getOutputStream();
             try
             {
+                if ( partial )
+                {
+                    skipFully( in, start );
+                }
                 byte[] bytes = new byte[32 * 1024];
+                long remaining = partial ? count : Long.MAX_VALUE;
                 int read;
-                while ( ( read = in.read( bytes ) ) != -1 )
+                while ( remaining > 0 &&
+                        ( read = in.read( bytes, 0, (int) Math.min( bytes.length, remaining ) ) ) != -1 )
                 {
                     out.write( bytes, 0, read );
+                    remaining -= read;
                 }
             }
             finally
@@ -361,6 +932,211 @@ abstract public class DownloadResponse
             }
         }
 
+        /**
+         * Returns the single byte range a request asks for, as first and last byte
+         * position. A request for several ranges, a malformed Range header or an
+         * If-Range validator that does not match the content is answered with the
+         * whole content, as RFC 7233 allows.
+         *
+         * @return the range, null for the whole content, or UNSATISFIABLE_RANGE
+         */
+        private long[] getRequestedRange( HttpServletRequest request, long length )
+        {
+            if ( request == null )
+            {
+                return null;
+            }
+            String range = request.getHeader( HEADER_RANGE );
+            if ( range == null )
+            {
+                return null;
+            }
+            range = range.trim();
+            if ( !range.startsWith( BYTES_UNIT + "=" ) || range.indexOf( ',' ) != -1 || !isIfRangeMatch( request ) )
+            {
+                return null;
+            }
+            range = range.substring( BYTES_UNIT.length() + 1 ).trim();
+            int dash = range.indexOf( '-' );
+            if ( dash == -1 )
+            {
+                return null;
+            }
+            long first;
+            long last;
+            try
+            {
+                String from = range.substring( 0, dash ).trim();
+                String to = range.substring( dash + 1 ).trim();
+                if ( from.length() == 0 )
+                {
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong( to );
+                    if ( suffix <= 0 )
+                    {
+                        return UNSATISFIABLE_RANGE;
+                    }
+                    first = Math.max( 0, length - suffix );
+                    last = length - 1;
+                }
+                else
+                {
+                    first = Long.parseLong( from );
+                    last = ( to.length() == 0 ) ? length - 1 : Math.min( Long.parseLong( to ), length - 1 );
+                }
+            }
+            catch ( NumberFormatException nfe )
+            {
+                return null;
+            }
+            if ( first < 0 || last < first )
+            {
+                return ( first >= length ) ? UNSATISFIABLE_RANGE : null;
+            }
+            return new long[]{first, last};
+        }
+
+        /**
+         * A Range request only applies if the If-Range validator, when present, still
+         * matches the content. An entity tag must match strongly; an HTTP date must
+         * match the last modified time to the second.
+         */
+        boolean isIfRangeMatch( HttpServletRequest request )
+        {
+            String ifRange = request.getHeader( HEADER_IF_RANGE );
+            if ( ifRange == null )
+            {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            if ( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) )
+            {
+                return getETag() != null && matchesETag( ifRange, getETag(), true );
+            }
+            try
+            {
+                long date = request.getDateHeader( HEADER_IF_RANGE );
+                return getLastModified() != 0 && date / 1000 == getLastModified() / 1000;
+            }
+            catch ( IllegalArgumentException iae )
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Hands a part of a local file to a container that offers to send files itself
+         * (Tomcat sendfile), in the channel and mapped transfer modes only, so the stream mode
+         * keeps writing the file through the servlet.
+         *
+         * @return false if the file must be written by the servlet
+         */
+        private boolean sendFileByName( HttpServletRequest request, File file, long start, long length,
+                                        DownloadSettings settings )
+                throws IOException
+        {
+            if ( request == null || TRANSFER_STREAM.equals( settings.getFileTransferMode() ) ||
+                    !Boolean.TRUE.equals( request.getAttribute( ATTR_SENDFILE_SUPPORT ) ) || !isSendableByName() )
+            {
+                return false;
+            }
+            request.setAttribute( ATTR_SENDFILE_FILENAME, file.getCanonicalPath() );
+            request.setAttribute( ATTR_SENDFILE_START, start );
+            request.setAttribute( ATTR_SENDFILE_END, start + length );
+            return true;
+        }
+
+        /**
+         * Writes a part of an open file. The file is written asynchronously if an async writer
+         * is set, which then closes it. Otherwise it is written with FileChannel.transferTo or
+         * through memory-mapped windows, depending on the transfer mode, when the output stream
+         * of the container is a channel; else it is copied through a byte[], in large chunks
+         * unless the stream mode is configured. The file is closed when done.
+         */
+        private void sendFile( HttpServletRequest request, HttpServletResponse response, RandomAccessFile raf,
+                               long start, long length, DownloadSettings settings )
+                throws IOException
+        {
+            boolean handedOff = false;
+            try
+            {
+                AsyncDownloadWriter asyncWriter = settings.getAsyncWriter();
+                if ( request != null && asyncWriter != null &&
+                        asyncWriter.write( request, response, raf, start, length ) )
+                {
+                    handedOff = true;
+                    return;
+                }
+                FileChannel channel = raf.getChannel();
+                String transferMode = settings.getFileTransferMode();
+                OutputStream stream = response.getOutputStream();
+                long position = start;
+                long end = start + length;
+                if ( TRANSFER_STREAM.equals( transferMode ) || !( stream instanceof WritableByteChannel ) )
+                {
+                    // Channels.newChannel would copy through a byte[] just like this loop
+                    int chunkSize = TRANSFER_STREAM.equals( transferMode ) ? 32 * 1024 : LARGE_CHUNK_SIZE;
+                    ByteBuffer buffer = ByteBuffer.allocate( (int) Math.min( chunkSize, Math.max( length, 1 ) ) );
+                    while ( position < end )
+                    {
+                        if ( TRANSFER_MAPPED.equals( transferMode ) )
+                        {
+                            MappedByteBuffer window = channel.map( FileChannel.MapMode.READ_ONLY, position,
+                                                                   Math.min( MAP_WINDOW_SIZE, end - position ) );
+                            position += window.remaining();
+                            while ( window.hasRemaining() )
+                            {
+                                int count = Math.min( buffer.capacity(), window.remaining() );
+                                window.get( buffer.array(), 0, count );
+                                stream.write( buffer.array(), 0, count );
+                            }
+                            continue;
+                        }
+                        buffer.clear();
+                        buffer.limit( (int) Math.min( buffer.capacity(), end - position ) );
+                        int read = channel.read( buffer, position );
+                        if ( read < 0 )
+                        {
+                            throw new IOException( "Unexpected end of content at position " + position );
+                        }
+                        stream.write( buffer.array(), 0, read );
+                        position += read;
+                    }
+                    return;
+                }
+                WritableByteChannel out = (WritableByteChannel) stream;
+                while ( position < end )
+                {
+                    if ( TRANSFER_MAPPED.equals( transferMode ) )
+                    {
+                        MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, position,
+                                                               Math.min( MAP_WINDOW_SIZE, end - position ) );
+                        position += buffer.remaining();
+                        while ( buffer.hasRemaining() )
+                        {
+                            out.write( buffer );
+                        }
+                    }
+                    else
+                    {
+                        long sent = channel.transferTo( position, end - position, out );
+                        if ( sent <= 0 )
+                        {
+                            throw new IOException( "Unable to send " + getFile() + " at position " + position );
+                        }
+                        position += sent;
+                    }
+                }
+            }
+            finally
+            {
+                if ( !handedOff )
+                {
+                    raf.close();
+                }
+            }
+        }
+
         protected String getArgString()
         {
             long length = 0;
@@ -380,13 +1156,87 @@ abstract public class DownloadResponse
     {
         private byte[] _content;
 
-        ByteArrayFileDownloadResponse( byte[] content, String mimeType, String versionId, long lastModified )
+        private String _etag;
+
+        private String _contentEncoding;
+
+        private ByteArrayFileDownloadResponse _gzipVariant;
+
+        ByteArrayFileDownloadResponse( byte[] content, String mimeType, String versionId, long lastModified,
+                                       int gzipMinSize )
+        {
+            this( content, mimeType, versionId, lastModified, null );
+            // These responses are cached with the generated content, so they are compressed once
+            if ( gzipMinSize >= 0 && content.length >= gzipMinSize )
+            {
+                byte[] compressed = gzip( content );
+                if ( compressed.length < content.length )
+                {
+                    _gzipVariant = new ByteArrayFileDownloadResponse( compressed, mimeType, versionId, lastModified,
+                                                                      GZIP_ENCODING );
+                }
+            }
+        }
+
+        private ByteArrayFileDownloadResponse( byte[] content, String mimeType, String versionId, long lastModified,
+                                               String contentEncoding )
         {
             super( mimeType, versionId, lastModified );
             _content = content;
+            _contentEncoding = contentEncoding;
+            // These responses are cached with the generated content, so the digest is computed once
+            _etag = ETagCache.computeETag( content );
         }
 
-        int getContentLength()
+        private static byte[] gzip( byte[] content )
+        {
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream( content.length / 2 );
+                GZIPOutputStream gos = new GZIPOutputStream( bos );
+                gos.write( content );
+                gos.close();
+                return bos.toByteArray();
+            }
+            catch ( IOException ioe )
+            {
+                // Cannot happen when writing to memory
+                return content;
+            }
+        }
+
+        String getETag()
+        {
+            return _etag;
+        }
+
+        String getContentEncoding()
+        {
+            return _contentEncoding;
+        }
+
+        FileDownloadResponse getVariant( HttpServletRequest request )
+        {
+            if ( _gzipVariant != null && request != null &&
+                    acceptsGzip( request.getHeader( DownloadRequest.ACCEPT_ENCODING ) ) )
+            {
+                return _gzipVariant;
+            }
+            return this;
+        }
+
+        boolean isVaryEncoding()
+        {
+            return _gzipVariant != null || _contentEncoding != null;
+        }
+
+        // Content held in memory is always a JNLP file generated from a template
+        boolean isJnlpFile()
+        {
+            return true;
+        }
+
+        long getContentLength()
         {
             return _content.length;
         }
@@ -407,21 +1257,77 @@ abstract public class DownloadResponse
     {
         URL _url;
 
-        ResourceFileDownloadResponse( URL url, String mimeType, String versionId, long lastModified )
+        File _file;
+
+        String _etag;
+
+        boolean _varyEncoding;
+
+        ResourceFileDownloadResponse( URL url, String mimeType, String versionId, long lastModified, String etag,
+                                      boolean varyEncoding )
         {
             super( mimeType, versionId, lastModified, url.toString() );
             _url = url;
+            _file = toFile( url );
+            _etag = etag;
+            _varyEncoding = varyEncoding;
+        }
+
+        String getETag()
+        {
+            return _etag;
+        }
+
+        boolean isVaryEncoding()
+        {
+            return _varyEncoding;
+        }
+
+        /* Returns the local file behind a file: URL, or null */
+        private static File toFile( URL url )
+        {
+            if ( !"file".equals( url.getProtocol() ) )
+            {
+                return null;
+            }
+            try
+            {
+                File file = new File( url.toURI() );
+                return file.isFile() ? file : null;
+            }
+            catch ( URISyntaxException | IllegalArgumentException e )
+            {
+                return null;
+            }
         }
 
-        int getContentLength()
+        File getFile()
+        {
+            return _file;
+        }
+
+        boolean isRangeSupported()
+        {
+            return true;
+        }
+
+        long getContentLength()
                 throws IOException
         {
-            return _url.openConnection().getContentLength();
+            if ( _file != null )
+            {
+                return _file.length();
+            }
+            return _url.openConnection().getContentLengthLong();
         }
 
         InputStream getContent()
                 throws IOException
         {
+            if ( _file != null )
+            {
+                return new BufferedInputStream( new FileInputStream( _file ) );
+            }
             return _url.openConnection().getInputStream();
         }
 
@@ -436,16 +1342,43 @@ abstract public class DownloadResponse
     {
         private File _file;
 
-        DiskFileDownloadResponse( File file, String mimeType, String versionId, long lastModified )
+        private String _etag;
+
+        private boolean _varyEncoding;
+
+        DiskFileDownloadResponse( File file, String mimeType, String versionId, long lastModified, String etag,
+                                  boolean varyEncoding )
         {
             super( mimeType, versionId, lastModified, file.getName() );
             _file = file;
+            _etag = etag;
+            _varyEncoding = varyEncoding;
+        }
+
+        String getETag()
+        {
+            return _etag;
+        }
+
+        boolean isVaryEncoding()
+        {
+            return _varyEncoding;
+        }
+
+        File getFile()
+        {
+            return _file;
         }
 
-        int getContentLength()
+        boolean isRangeSupported()
+        {
+            return true;
+        }
+
+        long getContentLength()
                 throws IOException
         {
-            return (int) _file.length();
+            return _file.length();
         }
 
         InputStream getContent()
@@ -459,6 +1392,69 @@ abstract public class DownloadResponse
             return super.toString() + "[ " + getArgString() + "]";
         }
     }
+
+    /**
+     * A file that its cache may delete while the response is being sent, read through
+     * the handle opened when the response was created
+     */
+    static private class OpenFileDownloadResponse
+            extends DiskFileDownloadResponse
+    {
+        private final RandomAccessFile _raf;
+
+        private boolean _handedOut;
+
+        OpenFileDownloadResponse( File file, String mimeType, String versionId, long lastModified, String etag,
+                                  boolean varyEncoding )
+                throws IOException
+        {
+            super( file, mimeType, versionId, lastModified, etag, varyEncoding );
+            _raf = new RandomAccessFile( file, "r" );
+        }
+
+        // The container would open the file again by its name, which may be gone by then
+        boolean isSendableByName()
+        {
+            return false;
+        }
+
+        long getContentLength()
+                throws IOException
+        {
+            return _raf.length();
+        }
+
+        InputStream getContent()
+                throws IOException
+        {
+            FileChannel channel = openFile().getChannel();
+            channel.position( 0 );
+            return new BufferedInputStream( Channels.newInputStream( channel ) );
+        }
+
+        RandomAccessFile openFile()
+        {
+            _handedOut = true;
+            return _raf;
+        }
+
+        void sendRespond( HttpServletRequest request, HttpServletResponse response, DownloadSettings settings )
+                throws IOException
+        {
+            try
+            {
+                super.sendRespond( request, response, settings );
+            }
+            finally
+            {
+                // Not sent from the file, e.g. answered with 304 Not Modified
+                if ( !_handedOut )
+                {
+                    _raf.close();
+                }
+            }
+        }
+    }
 }
 
 
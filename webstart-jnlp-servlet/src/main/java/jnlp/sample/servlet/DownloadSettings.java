@@ -0,0 +1,148 @@
+/*
+ * @(#)DownloadSettings.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+/**
+ * How the file responses of one servlet are sent: the transfer mode, the Cache-Control
+ * policy, the async writer and on-the-fly compression of generated JNLP files. Each
+ * servlet builds its own from its init-params, so servlets configured differently in
+ * one web application do not change each other's responses.
+ */
+public final class DownloadSettings
+{
+    /**
+     * Settings used by responses sent without explicit settings
+     */
+    public static final DownloadSettings DEFAULT =
+            new DownloadSettings( DownloadResponse.TRANSFER_STREAM, null, null, null, null, -1 );
+
+    private final String _transferMode;
+
+    private final AsyncDownloadWriter _asyncWriter;
+
+    private final String _cacheControlVersioned;
+
+    private final String _cacheControlUnversioned;
+
+    private final String _cacheControlJnlp;
+
+    private final int _gzipMinSize;
+
+    /**
+     * @param transferMode            one of TRANSFER_STREAM, TRANSFER_CHANNEL or TRANSFER_MAPPED; null for the default
+     * @param asyncWriter             writes file bodies without holding the request thread, or null
+     * @param cacheControlVersioned   Cache-Control of responses to a request for an exact version-id
+     * @param cacheControlUnversioned Cache-Control of resources requested without an exact version-id
+     * @param cacheControlJnlp        Cache-Control of JNLP files
+     * @param gzipMinSize             generated JNLP files of at least this size also get a gzip variant, -1 disables it
+     * @throws IllegalArgumentException if the transfer mode is unknown
+     */
+    public DownloadSettings( String transferMode, AsyncDownloadWriter asyncWriter, String cacheControlVersioned,
+                             String cacheControlUnversioned, String cacheControlJnlp, int gzipMinSize )
+    {
+        if ( transferMode == null )
+        {
+            transferMode = DownloadResponse.TRANSFER_STREAM;
+        }
+        else if ( !isFileTransferMode( transferMode ) )
+        {
+            throw new IllegalArgumentException( "Unknown transfer mode: " + transferMode );
+        }
+        _transferMode = transferMode.trim().toLowerCase();
+        _asyncWriter = asyncWriter;
+        // A null value keeps the default, an empty value leaves the header out
+        _cacheControlVersioned = ( cacheControlVersioned == null ) ? DownloadResponse.DEFAULT_CACHE_CONTROL_VERSIONED
+                : cacheControlVersioned.trim();
+        _cacheControlUnversioned = ( cacheControlUnversioned == null )
+                ? DownloadResponse.DEFAULT_CACHE_CONTROL_UNVERSIONED : cacheControlUnversioned.trim();
+        _cacheControlJnlp = ( cacheControlJnlp == null ) ? DownloadResponse.DEFAULT_CACHE_CONTROL_JNLP
+                : cacheControlJnlp.trim();
+        _gzipMinSize = gzipMinSize;
+    }
+
+    /**
+     * @param transferMode a transfer mode, may be null
+     * @return true if the mode is one of TRANSFER_STREAM, TRANSFER_CHANNEL or TRANSFER_MAPPED
+     */
+    public static boolean isFileTransferMode( String transferMode )
+    {
+        if ( transferMode == null )
+        {
+            return false;
+        }
+        transferMode = transferMode.trim().toLowerCase();
+        return transferMode.equals( DownloadResponse.TRANSFER_STREAM ) ||
+                transferMode.equals( DownloadResponse.TRANSFER_CHANNEL ) ||
+                transferMode.equals( DownloadResponse.TRANSFER_MAPPED );
+    }
+
+    public String getFileTransferMode()
+    {
+        return _transferMode;
+    }
+
+    /**
+     * @return the async writer, or null to write all responses on the request thread
+     */
+    public AsyncDownloadWriter getAsyncWriter()
+    {
+        return _asyncWriter;
+    }
+
+    public String getCacheControlVersioned()
+    {
+        return _cacheControlVersioned;
+    }
+
+    public String getCacheControlUnversioned()
+    {
+        return _cacheControlUnversioned;
+    }
+
+    public String getCacheControlJnlp()
+    {
+        return _cacheControlJnlp;
+    }
+
+    /**
+     * @return smallest generated JNLP file sent gzip compressed, -1 if they are not compressed
+     */
+    public int getGzipMinSize()
+    {
+        return _gzipMinSize;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * @(#)ETagCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes strong entity tags from the content of resources, and remembers them
+ * per resource path and last modified time, so the content of a resource version
+ * is only digested once. Since the tags only depend on the content, all nodes of
+ * a cluster hand out the same tag for the same file, whatever its timestamp.
+ */
+public class ETagCache
+{
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<String, CachedETag> _entries;
+
+    private static final class CachedETag
+    {
+        private final long _lastModified;
+
+        private final String _etag;
+
+        CachedETag( long lastModified, String etag )
+        {
+            _lastModified = lastModified;
+            _etag = etag;
+        }
+    }
+
+    /**
+     * @param maxEntries number of resources to remember, the least recently used are dropped first
+     */
+    public ETagCache( final int maxEntries )
+    {
+        _entries = new LinkedHashMap<String, CachedETag>( 64, 0.75f, true )
+        {
+            protected boolean removeEldestEntry( Map.Entry<String, CachedETag> eldest )
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the entity tag of a resource, digesting its content if the resource
+     * is not known yet or has been modified since.
+     *
+     * @param res the resource
+     * @return the quoted entity tag, or null if the resource cannot be read
+     */
+    public String getETag( JnlpResource res )
+    {
+        if ( res == null || !res.exists() )
+        {
+            return null;
+        }
+        String key = res.getPath();
+        long lastModified = res.getLastModified();
+        synchronized ( _entries )
+        {
+            CachedETag entry = _entries.get( key );
+            if ( entry != null && entry._lastModified == lastModified )
+            {
+                return entry._etag;
+            }
+        }
+        // Digest outside the lock, concurrent requests for a new resource may digest it twice
+        String etag = computeETag( res.getResource() );
+        if ( etag != null )
+        {
+            synchronized ( _entries )
+            {
+                _entries.put( key, new CachedETag( lastModified, etag ) );
+            }
+        }
+        return etag;
+    }
+
+    /**
+     * @param content the content
+     * @return the quoted entity tag of the content
+     */
+    public static String computeETag( byte[] content )
+    {
+        MessageDigest digest = newDigest();
+        digest.update( content );
+        return toETag( digest.digest() );
+    }
+
+    /**
+     * @param file the file
+     * @return the quoted entity tag of the file content, or null if it cannot be read
+     */
+    public static String computeETag( File file )
+    {
+        try
+        {
+            return computeETag( new FileInputStream( file ) );
+        }
+        catch ( IOException ioe )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param url location of the content
+     * @return the quoted entity tag of the content, or null if it cannot be read
+     */
+    public static String computeETag( URL url )
+    {
+        try
+        {
+            return computeETag( url.openStream() );
+        }
+        catch ( IOException ioe )
+        {
+            return null;
+        }
+    }
+
+    private static String computeETag( InputStream in )
+            throws IOException
+    {
+        try
+        {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[32 * 1024];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, read );
+            }
+            return toETag( digest.digest() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( DIGEST_ALGORITHM );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String toETag( byte[] hash )
+    {
+        char[] chars = new char[hash.length * 2 + 2];
+        chars[0] = '"';
+        for ( int i = 0; i < hash.length; i++ )
+        {
+            chars[1 + 2 * i] = HEX_DIGITS[( hash[i] >> 4 ) & 0xf];
+            chars[2 + 2 * i] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        chars[chars.length - 1] = '"';
+        return new String( chars );
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * @(#)ExtractedJarCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps jars of a packed web application extracted to disk, so JarDiffs can be generated
+ * from them without copying both jars out of the WAR for every JarDiff. A jar is extracted
+ * once per path and last modified time; concurrent requests for the same jar wait for
+ * the same extraction.
+ * <p>
+ * A jar is acquired for as long as a JarDiff is generated from it and released afterwards.
+ * The least recently used jars no one holds are deleted when the total size exceeds the
+ * budget. The directory belongs to a single instance, which deletes it when destroyed.
+ */
+public class ExtractedJarCache
+{
+    private final File _directory;
+
+    private final long _maxBytes;
+
+    private final Logger _log;
+
+    // Guarded by itself, in access order for eviction
+    private final LinkedHashMap<String, ExtractedJar> _index =
+            new LinkedHashMap<String, ExtractedJar>( 64, 0.75f, true );
+
+    private long _totalBytes;
+
+    private long _hitCount;
+
+    private long _missCount;
+
+    private static final class ExtractedJar
+    {
+        private final FutureTask<File> _extraction;
+
+        private long _size;
+
+        // Number of callers holding the jar, it is not evicted while in use
+        private int _users;
+
+        ExtractedJar( FutureTask<File> extraction )
+        {
+            _extraction = extraction;
+        }
+    }
+
+    /**
+     * @param directory directory to extract the jars to, created if needed; it must not be
+     *                  shared with another instance
+     * @param maxBytes  total size of the jars kept once released
+     * @param log       logger
+     */
+    public ExtractedJarCache( File directory, long maxBytes, Logger log )
+    {
+        _directory = directory;
+        _maxBytes = maxBytes;
+        _log = log;
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the extracted jars and the directory holding them.
+     */
+    public void destroy()
+    {
+        synchronized ( _index )
+        {
+            _index.clear();
+            _totalBytes = 0;
+        }
+        File[] files = _directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+        _directory.delete();
+    }
+
+    /**
+     * Returns a jar extracted to disk, extracting it if needed. The jar must be released
+     * once no longer used.
+     *
+     * @param path         path of the jar in the web application
+     * @param lastModified last modified time of the jar
+     * @param url          URL to read the jar from
+     * @return the extracted jar
+     * @throws IOException if the jar cannot be extracted
+     */
+    public File acquire( String path, long lastModified, final URL url )
+            throws IOException
+    {
+        String key = getKey( path, lastModified );
+        ExtractedJar jar;
+        boolean extract = false;
+        synchronized ( _index )
+        {
+            jar = _index.get( key );
+            if ( jar == null )
+            {
+                jar = new ExtractedJar( new FutureTask<File>( new Callable<File>()
+                {
+                    public File call()
+                            throws IOException
+                    {
+                        return extract( url );
+                    }
+                } ) );
+                _index.put( key, jar );
+                _missCount++;
+                extract = true;
+            }
+            else
+            {
+                _hitCount++;
+            }
+            jar._users++;
+        }
+
+        if ( extract )
+        {
+            jar._extraction.run();
+        }
+        try
+        {
+            File file = getFile( jar );
+            if ( extract )
+            {
+                synchronized ( _index )
+                {
+                    jar._size = file.length();
+                    _totalBytes += jar._size;
+                }
+            }
+            return file;
+        }
+        catch ( IOException ioe )
+        {
+            synchronized ( _index )
+            {
+                jar._users--;
+                // Whoever extracted it forgets the failure, so the next request tries again
+                if ( extract && _index.get( key ) == jar )
+                {
+                    _index.remove( key );
+                }
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Releases a jar returned by acquire.
+     *
+     * @param path         path of the jar in the web application
+     * @param lastModified last modified time of the jar
+     */
+    public void release( String path, long lastModified )
+    {
+        synchronized ( _index )
+        {
+            ExtractedJar jar = _index.get( getKey( path, lastModified ) );
+            if ( jar != null )
+            {
+                jar._users--;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @return the total size of the extracted jars
+     */
+    public long getTotalBytes()
+    {
+        synchronized ( _index )
+        {
+            return _totalBytes;
+        }
+    }
+
+    /**
+     * @return the number of extracted jars
+     */
+    public int size()
+    {
+        synchronized ( _index )
+        {
+            return _index.size();
+        }
+    }
+
+    /**
+     * @return the number of times an extracted jar was reused
+     */
+    public long getHitCount()
+    {
+        synchronized ( _index )
+        {
+            return _hitCount;
+        }
+    }
+
+    /**
+     * @return the number of times a jar was extracted
+     */
+    public long getMissCount()
+    {
+        synchronized ( _index )
+        {
+            return _missCount;
+        }
+    }
+
+    private static String getKey( String path, long lastModified )
+    {
+        return path + "@" + lastModified;
+    }
+
+    private File extract( URL url )
+            throws IOException
+    {
+        File file = File.createTempFile( "jar", ".jar", _directory );
+        try
+        {
+            InputStream in = url.openStream();
+            try
+            {
+                Files.copy( in, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            file.delete();
+            throw ioe;
+        }
+        _log.addDebug( "Extracted " + url + " to " + file );
+        return file;
+    }
+
+    private static File getFile( ExtractedJar jar )
+            throws IOException
+    {
+        try
+        {
+            return jar._extraction.get();
+        }
+        catch ( ExecutionException ee )
+        {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException( cause );
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for the extraction of a jar", ie );
+        }
+    }
+
+    /* Must be called with the lock held */
+    private void evict()
+    {
+        for ( Iterator<Map.Entry<String, ExtractedJar>> it = _index.entrySet().iterator();
+              it.hasNext() && _totalBytes > _maxBytes; )
+        {
+            ExtractedJar jar = it.next().getValue();
+            if ( jar._users > 0 || !jar._extraction.isDone() )
+            {
+                continue;
+            }
+            it.remove();
+            _totalBytes -= jar._size;
+            try
+            {
+                jar._extraction.get().delete();
+            }
+            catch ( Exception e )
+            {
+                // Failed extractions leave no file behind
+            }
+        }
+    }
+}
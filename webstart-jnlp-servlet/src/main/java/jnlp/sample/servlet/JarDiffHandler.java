@@ -37,6 +37,8 @@
 package jnlp.sample.servlet;
 
 import jnlp.sample.jardiff.JarDiff;
+import jnlp.sample.util.LruCache;
+import jnlp.sample.util.VersionID;
 import jnlp.sample.util.VersionString;
 
 import javax.servlet.ServletContext;
@@ -47,8 +49,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 * A class that generates and caches information about JarDiff files
@@ -59,13 +75,65 @@ public class JarDiffHandler
     // Default size of download buffer
     private static final int BUF_SIZE = 32 * 1024;
 
+    // Marker for User-Agent headers that do not come from javaws
+    private static final VersionID NOT_JAVAWS = new VersionID( null );
+
     // Default JARDiff mime type
     private static final String JARDIFF_MIMETYPE = "application/x-java-archive-diff";
 
+    // Default number of parsed User-Agent headers kept
+    public static final int DEFAULT_USER_AGENT_CACHE_SIZE = 256;
+
+    // javaws 1.0 and 1.0.1 cannot apply minimal JarDiffs
+    private static final VersionString JAVAWS_1_0 = new VersionString( "1.0*" );
+
+    // JarDiffs generated at build time are looked up in this directory next to the jar
+    public static final String PREGENERATED_DIRECTORY = "jardiff";
+
+    public static final String PREGENERATED_SUFFIX = ".jardiff";
+
+    // Defaults for the generator threads, and for how long a request waits for a JarDiff in milliseconds
+    public static final int DEFAULT_THREADS = 2;
+
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    public static final long DEFAULT_MAX_WAIT = 10 * 1000L;
+
+    // Returned by generateJarDiff for a JarDiff thrown away as it is not smaller than the jar
+    private static final File DISCARDED = new File( "discarded" + PREGENERATED_SUFFIX );
+
+    /**
+     * All JARDiffs generated or being generated, one per key
+     */
+    private final ConcurrentMap<JarDiffKey, Future<JarDiffEntry>> _jarDiffEntries =
+            new ConcurrentHashMap<JarDiffKey, Future<JarDiffEntry>>();
+
+    /**
+     * Generates JARDiffs in the background, so requests for other resources never wait for them
+     */
+    private final ThreadPoolExecutor _executor;
+
+    private final long _maxWaitMillis;
+
+    private final AtomicLong _generatedCount = new AtomicLong();
+
+    private final AtomicLong _generationMillis = new AtomicLong();
+
+    private final AtomicLong _fallbackCount = new AtomicLong();
+
+    private final AtomicLong _servedCount = new AtomicLong();
+
+    private final AtomicLong _discardedCount = new AtomicLong();
+
     /**
-     * List of all generated JARDiffs
+     * JARDiffs kept across restarts, or null to keep them in the temp dir until the handler goes away
      */
-    private HashMap _jarDiffEntries = null;
+    private final JarDiffStore _store;
+
+    /**
+     * Jars of a packed web application extracted for JarDiff generation, or null to extract them for each JarDiff
+     */
+    private final ExtractedJarCache _extractedJars;
 
     /**
      * Reference to ServletContext and logger object
@@ -76,6 +144,11 @@ public class JarDiffHandler
 
     private String _jarDiffMimeType = null;
 
+    /**
+     * javaws versions parsed from User-Agent headers
+     */
+    private final LruCache<String, VersionID> _javawsVersions;
+
     /* Contains information about a particular JARDiff entry */
     private static class JarDiffKey
             implements Comparable
@@ -166,15 +239,23 @@ public class JarDiffHandler
     {
         private File _jardiffFile;    // Location of JARDiff file
 
+        private String _etag;         // Entity tag of the JARDiff content
+
         public JarDiffEntry( File jarDiffFile )
         {
             _jardiffFile = jarDiffFile;
+            _etag = ( jarDiffFile == null ) ? null : ETagCache.computeETag( jarDiffFile );
         }
 
         public File getJarDiffFile()
         {
             return _jardiffFile;
         }
+
+        public String getETag()
+        {
+            return _etag;
+        }
     }
 
     /**
@@ -185,9 +266,65 @@ public class JarDiffHandler
      */
     public JarDiffHandler( ServletContext servletContext, Logger log )
     {
-        _jarDiffEntries = new HashMap();
+        this( servletContext, log, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_WAIT, null, null );
+    }
+
+    /**
+     * Initialize JarDiff handler
+     *
+     * @param servletContext the servlet context
+     * @param log            the logger
+     * @param threads        number of threads generating JarDiffs
+     * @param queueSize      number of JarDiffs waiting to be generated, further requests get the full jar
+     * @param maxWaitMillis  how long a request waits for a JarDiff before it gets the full jar,
+     *                       0 to never wait, -1 to wait until the JarDiff is done
+     * @param store          store to keep generated JarDiffs in, or null
+     * @param extractedJars  cache of jars extracted from a packed web application, or null
+     */
+    public JarDiffHandler( ServletContext servletContext, Logger log, int threads, int queueSize,
+                           long maxWaitMillis, JarDiffStore store, ExtractedJarCache extractedJars )
+    {
+        this( servletContext, log, threads, queueSize, maxWaitMillis, store, extractedJars,
+              DEFAULT_USER_AGENT_CACHE_SIZE );
+    }
+
+    /**
+     * @param servletContext     the servlet context
+     * @param log                logger
+     * @param threads            number of threads generating JarDiffs
+     * @param queueSize          number of JarDiffs waiting to be generated, further requests get the full jar
+     * @param maxWaitMillis      how long a request waits for a JarDiff before it gets the full jar,
+     *                           0 to never wait, -1 to wait until the JarDiff is done
+     * @param store              store to keep generated JarDiffs in, or null
+     * @param extractedJars      cache of jars extracted from a packed web application, or null
+     * @param userAgentCacheSize number of parsed User-Agent headers kept
+     */
+    public JarDiffHandler( ServletContext servletContext, Logger log, int threads, int queueSize,
+                           long maxWaitMillis, JarDiffStore store, ExtractedJarCache extractedJars,
+                           int userAgentCacheSize )
+    {
+        _javawsVersions = new LruCache<String, VersionID>( userAgentCacheSize );
         _servletContext = servletContext;
         _log = log;
+        _maxWaitMillis = maxWaitMillis;
+        _store = store;
+        _extractedJars = extractedJars;
+        threads = Math.max( 1, threads );
+        _executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue<Runnable>( Math.max( 1, queueSize ) ),
+                                            new ThreadFactory()
+                                            {
+                                                private final AtomicInteger _count = new AtomicInteger();
+
+                                                public Thread newThread( Runnable r )
+                                                {
+                                                    Thread thread = new Thread( r, "jnlp-jardiff-generator-" +
+                                                            _count.incrementAndGet() );
+                                                    thread.setDaemon( true );
+                                                    return thread;
+                                                }
+                                            } );
+        _executor.allowCoreThreadTimeOut( true );
 
         _jarDiffMimeType = _servletContext.getMimeType( "xyz.jardiff" );
         if ( _jarDiffMimeType == null )
@@ -197,15 +334,16 @@ public class JarDiffHandler
     }
 
     /**
-     * Returns a JarDiff for the given request
+     * Returns a JarDiff for the given request. The JarDiff is generated in the background
+     * the first time it is asked for; concurrent requests for the same JarDiff share the
+     * generation. A request that cannot wait for it gets null, and so the full jar.
      *
-     * @param catalog TODO
-     * @param dreq    TODO
-     * @param res     TODO
-     * @return TODO
+     * @param catalog the catalog, to look up the version the client has
+     * @param dreq    the request
+     * @param res     the resource requested
+     * @return the JarDiff response, or null if the full jar must be sent
      */
-    public synchronized DownloadResponse getJarDiffEntry( ResourceCatalog catalog, DownloadRequest dreq,
-                                                          JnlpResource res )
+    public DownloadResponse getJarDiffEntry( final ResourceCatalog catalog, DownloadRequest dreq, final JnlpResource res )
     {
         if ( dreq.getCurrentVersionId() == null )
         {
@@ -214,50 +352,401 @@ public class JarDiffHandler
 
         // check whether the request is from javaws 1.0/1.0.1
         // do not generate minimal jardiff if it is from 1.0/1.0.1
-        boolean doJarDiffWorkAround = isJavawsVersion( dreq, "1.0*" );
+        final boolean doJarDiffWorkAround = isJavawsVersion( dreq, JAVAWS_1_0 );
 
         // First do a lookup to find a match
-        JarDiffKey key =
+        final JarDiffKey key =
                 new JarDiffKey( res.getName(), dreq.getCurrentVersionId(), res.getReturnVersionId(), !doJarDiffWorkAround );
 
-        JarDiffEntry entry = (JarDiffEntry) _jarDiffEntries.get( key );
+        Future<JarDiffEntry> future = _jarDiffEntries.get( key );
         // If entry is not found, then the querty has not been made.
-        if ( entry == null )
+        if ( future == null )
         {
-            if ( _log.isInformationalLevel() )
+            // Look up the version the client has now, the request is not available to the generator thread
+            JnlpResource fromRes = null;
+            try
             {
-                _log.addInformational( "servlet.log.info.jardiff.gen", res.getName(), dreq.getCurrentVersionId(),
-                                       res.getReturnVersionId() );
+                fromRes = catalog.lookupResource( dreq.getFromDownloadRequest() );
             }
-            File f = generateJarDiff( catalog, dreq, res, doJarDiffWorkAround );
-            if ( f == null )
+            catch ( ErrorResponseException ere )
             {
-                _log.addWarning( "servlet.log.warning.jardiff.failed", res.getName(), dreq.getCurrentVersionId(),
-                                 res.getReturnVersionId() );
+                _log.addDebug( "Failed to genereate jardiff", ere );
+            }
+            final JnlpResource oldRes = fromRes;
+            final String storeKey = getContentKey( catalog, res, oldRes, key.isMinimal() );
+            // A JarDiff generated at build time into an exploded war does not queue behind generations
+            final File pregenerated = ( storeKey == null ) ? null : findPregeneratedJarDiff( res, storeKey );
+            FutureTask<JarDiffEntry> task = new FutureTask<JarDiffEntry>( new Callable<JarDiffEntry>()
+            {
+                public JarDiffEntry call()
+                {
+                    if ( pregenerated != null )
+                    {
+                        _log.addDebug( "Pregenerated JarDiff found: " + pregenerated );
+                        return new JarDiffEntry( pregenerated );
+                    }
+                    return generateJarDiffEntry( key, res, oldRes, storeKey, doJarDiffWorkAround );
+                }
+            } );
+            future = _jarDiffEntries.putIfAbsent( key, task );
+            if ( future == null && pregenerated != null )
+            {
+                future = task;
+                task.run();
+            }
+            else if ( future == null )
+            {
+                future = task;
+                try
+                {
+                    _executor.execute( task );
+                }
+                catch ( RejectedExecutionException ree )
+                {
+                    // Too many JarDiffs queued, try again with a later request. Requests
+                    // that found the task meanwhile see it cancelled and get the full jar
+                    task.cancel( false );
+                    _jarDiffEntries.remove( key, task );
+                    _log.addDebug( "JarDiff queue full, sending full jar for " + res.getName() );
+                    _fallbackCount.incrementAndGet();
+                    return null;
+                }
             }
-            // Store entry in table
-            entry = new JarDiffEntry( f );
-            _jarDiffEntries.put( key, entry );
         }
 
+        JarDiffEntry entry = awaitEntry( future );
         // Check for no JarDiff to return
+        if ( entry == null )
+        {
+            _fallbackCount.incrementAndGet();
+            return null;
+        }
         if ( entry.getJarDiffFile() == null )
         {
             return null;
         }
-        else
+        // Opened now, the store may evict the JarDiff while it is sent
+        DownloadResponse response;
+        try
+        {
+            response = DownloadResponse.getOpenFileDownloadResponse( entry.getJarDiffFile(), _jarDiffMimeType,
+                                                                     res.getLastModified(), res.getReturnVersionId(),
+                                                                     entry.getETag(), false );
+        }
+        catch ( IOException ioe )
+        {
+            // Evicted from the store, generate it again with a later request
+            _log.addDebug( "JarDiff evicted, sending full jar for " + res.getName(), ioe );
+            _jarDiffEntries.remove( key, future );
+            _fallbackCount.incrementAndGet();
+            return null;
+        }
+        _servedCount.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * Waits for a JarDiff as long as configured.
+     *
+     * @return the entry, or null if the JarDiff is not ready in time
+     */
+    private JarDiffEntry awaitEntry( Future<JarDiffEntry> future )
+    {
+        try
+        {
+            if ( _maxWaitMillis < 0 )
+            {
+                return future.get();
+            }
+            if ( _maxWaitMillis == 0 )
+            {
+                return future.isDone() ? future.get() : null;
+            }
+            return future.get( _maxWaitMillis, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException te )
+        {
+            return null;
+        }
+        catch ( CancellationException ce )
+        {
+            // Not queued, or the handler is being destroyed
+            return null;
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch ( ExecutionException ee )
+        {
+            _log.addDebug( "Failed to genereate jardiff", ee.getCause() );
+            return null;
+        }
+    }
+
+    /* Runs on a generator thread, storeKey is the name of the JarDiff by content or null */
+    private JarDiffEntry generateJarDiffEntry( JarDiffKey key, JnlpResource res, JnlpResource fromRes,
+                                               String storeKey, boolean doJarDiffWorkAround )
+    {
+        if ( storeKey != null && _store != null )
+        {
+            File stored = _store.get( storeKey );
+            if ( stored == null )
+            {
+                stored = copyPregeneratedJarDiff( res, storeKey );
+            }
+            if ( stored != null )
+            {
+                _log.addDebug( "JarDiff found in store: " + stored );
+                return new JarDiffEntry( stored );
+            }
+        }
+
+        if ( _log.isInformationalLevel() )
+        {
+            _log.addInformational( "servlet.log.info.jardiff.gen", res.getName(), key.getFromVersionId(),
+                                   res.getReturnVersionId() );
+        }
+        long start = System.currentTimeMillis();
+        File f = ( fromRes == null ) ? null : generateJarDiff( res, fromRes, doJarDiffWorkAround );
+        if ( f == DISCARDED )
+        {
+            // Not a failure, the full jar is just as small
+            f = null;
+        }
+        else if ( f == null )
+        {
+            _log.addWarning( "servlet.log.warning.jardiff.failed", res.getName(), key.getFromVersionId(),
+                             res.getReturnVersionId() );
+        }
+        else if ( storeKey != null && _store != null )
+        {
+            f = _store.put( storeKey, f );
+        }
+        JarDiffEntry entry = new JarDiffEntry( f );
+        _generationMillis.addAndGet( System.currentTimeMillis() - start );
+        _generatedCount.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * @return the name of the JarDiff by the content of both jars, or null if the jars cannot be read
+     */
+    private String getContentKey( ResourceCatalog catalog, JnlpResource res, JnlpResource fromRes, boolean minimal )
+    {
+        if ( fromRes == null )
+        {
+            return null;
+        }
+        // The entity tags are content hashes, computed once per jar and timestamp
+        String toHash = catalog.getETag( res );
+        String fromHash = catalog.getETag( fromRes );
+        if ( toHash == null || fromHash == null )
+        {
+            return null;
+        }
+        return JarDiffStore.getKey( unquote( fromHash ), unquote( toHash ), minimal );
+    }
+
+    /**
+     * @return the path in the web application of a JarDiff generated at build time, in the
+     *         jardiff directory next to the jar and named like the JarDiffs in the store
+     */
+    private static String getPregeneratedPath( JnlpResource res, String contentKey )
+    {
+        String path = res.getPath();
+        return path.substring( 0, path.lastIndexOf( '/' ) + 1 ) + PREGENERATED_DIRECTORY + "/" + contentKey +
+                PREGENERATED_SUFFIX;
+    }
+
+    /**
+     * Looks for a JarDiff generated at build time in an exploded web application, which
+     * costs a stat, so it is done on the request thread.
+     *
+     * @return the JarDiff, or null if there is none or the web application is packed
+     */
+    private File findPregeneratedJarDiff( JnlpResource res, String contentKey )
+    {
+        String realPath = _servletContext.getRealPath( getPregeneratedPath( res, contentKey ) );
+        if ( realPath == null )
+        {
+            return null;
+        }
+        File file = new File( realPath );
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Copies a JarDiff generated at build time out of a packed web application into the store.
+     *
+     * @return the JarDiff in the store, or null if there is none or the web application is exploded
+     */
+    private File copyPregeneratedJarDiff( JnlpResource res, String contentKey )
+    {
+        String path = getPregeneratedPath( res, contentKey );
+        if ( _servletContext.getRealPath( path ) != null )
+        {
+            // Exploded, looked for by the request already
+            return null;
+        }
+        try
+        {
+            URL url = _servletContext.getResource( path );
+            if ( url == null )
+            {
+                return null;
+            }
+            File temp = _store.createTempFile();
+            if ( !download( url, temp ) )
+            {
+                temp.delete();
+                return null;
+            }
+            return _store.put( contentKey, temp );
+        }
+        catch ( IOException ioe )
         {
-            return DownloadResponse.getFileDownloadResponse( entry.getJarDiffFile(), _jarDiffMimeType,
-                                                             entry.getJarDiffFile().lastModified(),
-                                                             res.getReturnVersionId() );
+            _log.addDebug( "Failed to read pregenerated jardiff " + path, ioe );
+            return null;
+        }
+    }
+
+    private static String unquote( String etag )
+    {
+        return etag.substring( 1, etag.length() - 1 );
+    }
+
+    /**
+     * @return the JarDiff store, or null
+     */
+    public JarDiffStore getStore()
+    {
+        return _store;
+    }
+
+    /**
+     * @return the cache of jars extracted from a packed web application, or null
+     */
+    public ExtractedJarCache getExtractedJars()
+    {
+        return _extractedJars;
+    }
+
+    /**
+     * @return the number of JarDiffs waiting for a generator thread
+     */
+    public int getQueueDepth()
+    {
+        return _executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of JarDiffs generated, including failed attempts
+     */
+    public long getGeneratedCount()
+    {
+        return _generatedCount.get();
+    }
+
+    /**
+     * @return the total time spent generating JarDiffs
+     */
+    public long getGenerationMillis()
+    {
+        return _generationMillis.get();
+    }
+
+    /**
+     * @return the number of requests that got the full jar because their JarDiff was not ready or could not be queued
+     */
+    public long getFallbackCount()
+    {
+        return _fallbackCount.get();
+    }
+
+    /**
+     * @return the number of JarDiffs sent instead of the full jar
+     */
+    public long getServedCount()
+    {
+        return _servedCount.get();
+    }
+
+    /**
+     * @return the number of JarDiffs generated but thrown away, as they were not smaller than the jar
+     */
+    public long getDiscardedCount()
+    {
+        return _discardedCount.get();
+    }
+
+    /**
+     * Stops the generator threads, requests waiting for JarDiffs still queued get the full jar.
+     * The extracted jars are deleted.
+     */
+    public void destroy()
+    {
+        for ( Runnable task : _executor.shutdownNow() )
+        {
+            ( (Future<?>) task ).cancel( false );
+        }
+        if ( _extractedJars != null )
+        {
+            _extractedJars.destroy();
         }
     }
 
 
     public static boolean isJavawsVersion( DownloadRequest dreq, String version )
+    {
+        String userAgent = dreq.getHttpRequest().getHeader( "User-Agent" );
+        String verId = ( userAgent == null ) ? null : parseJavawsVersion( userAgent );
+        // check whether the versionString contains the versionId
+        return verId != null && VersionString.contains( version, verId );
+    }
+
+    /**
+     * Same as {@link #isJavawsVersion(DownloadRequest, String)}, but takes compiled
+     * versions and parses each distinct User-Agent header only once.
+     *
+     * @param dreq     the request
+     * @param versions the javaws versions looked for
+     * @return true if the request comes from one of the javaws versions
+     */
+    public boolean isJavawsVersion( DownloadRequest dreq, VersionString versions )
+    {
+        VersionID javawsVersion = getJavawsVersion( dreq.getHttpRequest().getHeader( "User-Agent" ) );
+        // check whether the versionString contains the versionId
+        return javawsVersion != NOT_JAVAWS && versions.contains( javawsVersion );
+    }
+
+    /**
+     * Returns the javaws version announced by a User-Agent header, parsed once per
+     * distinct header value.
+     *
+     * @param userAgent value of the User-Agent header, may be null
+     * @return the javaws version, or NOT_JAVAWS if the request does not come from javaws
+     */
+    private VersionID getJavawsVersion( String userAgent )
+    {
+        if ( userAgent == null )
+        {
+            return NOT_JAVAWS;
+        }
+        VersionID result = _javawsVersions.get( userAgent );
+        if ( result == null )
+        {
+            String verId = parseJavawsVersion( userAgent );
+            result = ( verId == null ) ? NOT_JAVAWS : new VersionID( verId );
+            _javawsVersions.put( userAgent, result );
+        }
+        return result;
+    }
+
+    private static String parseJavawsVersion( String jwsVer )
     {
         String javawsAgent = "javaws";
-        String jwsVer = dreq.getHttpRequest().getHeader( "User-Agent" );
 
         // check the request is coming from javaws
         if ( !jwsVer.startsWith( "javaws-" ) )
@@ -271,11 +760,11 @@ public class JarDiffHandler
                 int index = verString.indexOf( javawsAgent );
                 if ( index != -1 )
                 {
-                    verString = verString.substring( index + javawsAgent.length() + 1 );
-                    return VersionString.contains( version, verString );
+                    int start = index + javawsAgent.length() + 1;
+                    return ( start <= verString.length() ) ? verString.substring( start ) : null;
                 }
             }
-            return false;
+            return null;
         }
 
         // extract the version id from the download request
@@ -283,21 +772,17 @@ public class JarDiffHandler
 
         if ( startIndex == -1 )
         {
-            return false;
+            return null;
         }
 
         int endIndex = jwsVer.indexOf( "/" );
 
         if ( endIndex == -1 || endIndex < startIndex )
         {
-            return false;
+            return null;
         }
 
-        String verId = jwsVer.substring( startIndex + 1, endIndex );
-
-        // check whether the versionString contains the versionId
-        return VersionString.contains( version, verId );
-
+        return jwsVer.substring( startIndex + 1, endIndex );
     }
 
     /**
@@ -400,38 +885,62 @@ public class JarDiffHandler
     }
 
 
-    private File generateJarDiff( ResourceCatalog catalog, DownloadRequest dreq, JnlpResource res,
-                                  boolean doJarDiffWorkAround )
+    // Jars of a packed war are taken from the extraction cache when their timestamp is known
+    private boolean isExtractionCached( JnlpResource res )
+    {
+        return _extractedJars != null && res.getLastModified() != 0 && res.getResource() != null;
+    }
+
+    /* Returns the JarDiff, DISCARDED if it is not smaller than the jar, or null if it cannot be generated */
+    private File generateJarDiff( JnlpResource res, JnlpResource fromRes, boolean doJarDiffWorkAround )
     {
         boolean del_old = false;
         boolean del_new = false;
+        boolean release_old = false;
+        boolean release_new = false;
+        String newFilePath = null;
+        String oldFilePath = null;
 
-        // Lookup up file for request version
-        DownloadRequest fromDreq = dreq.getFromDownloadRequest();
         try
         {
-            JnlpResource fromRes = catalog.lookupResource( fromDreq );
-
             /* Get file locations */
-            String newFilePath = _servletContext.getRealPath( res.getPath() );
-            String oldFilePath = _servletContext.getRealPath( fromRes.getPath() );
+            newFilePath = _servletContext.getRealPath( res.getPath() );
+            oldFilePath = _servletContext.getRealPath( fromRes.getPath() );
 
             // fix for 4720897
             if ( newFilePath == null )
             {
-                newFilePath = getRealPath( res.getPath() );
-                if ( newFilePath != null )
+                if ( isExtractionCached( res ) )
+                {
+                    newFilePath = _extractedJars.acquire( res.getPath(), res.getLastModified(),
+                                                          res.getResource() ).getPath();
+                    release_new = true;
+                }
+                else
                 {
-                    del_new = true;
+                    newFilePath = getRealPath( res.getPath() );
+                    if ( newFilePath != null )
+                    {
+                        del_new = true;
+                    }
                 }
             }
 
             if ( oldFilePath == null )
             {
-                oldFilePath = getRealPath( fromRes.getPath() );
-                if ( oldFilePath != null )
+                if ( isExtractionCached( fromRes ) )
+                {
+                    oldFilePath = _extractedJars.acquire( fromRes.getPath(), fromRes.getLastModified(),
+                                                          fromRes.getResource() ).getPath();
+                    release_old = true;
+                }
+                else
                 {
-                    del_old = true;
+                    oldFilePath = getRealPath( fromRes.getPath() );
+                    if ( oldFilePath != null )
+                    {
+                        del_old = true;
+                    }
                 }
             }
 
@@ -441,72 +950,102 @@ public class JarDiffHandler
             }
 
             // Create temp. file to store JarDiff file in
-            File tempDir = (File) _servletContext.getAttribute( "javax.servlet.context.tempdir" );
+            File outputFile;
+            if ( _store != null )
+            {
+                // Generated next to where it is stored, so it can be moved into place atomically
+                outputFile = _store.createTempFile();
+            }
+            else
+            {
+                File tempDir = (File) _servletContext.getAttribute( "javax.servlet.context.tempdir" );
 
-            // fix for 4653036: JarDiffHandler() should use javax.servlet.context.tempdir to store the jardiff
-            File outputFile = File.createTempFile( "jnlp", ".jardiff", tempDir );
+                // fix for 4653036: JarDiffHandler() should use javax.servlet.context.tempdir to store the jardiff
+                outputFile = File.createTempFile( "jnlp", ".jardiff", tempDir );
+            }
 
             _log.addDebug(
                     "Generating Jardiff between " + oldFilePath + " and " + newFilePath + " Store in " + outputFile );
 
-            // Generate JarDiff
-            OutputStream os = new FileOutputStream( outputFile );
-
-            JarDiff.createPatch( oldFilePath, newFilePath, os, !doJarDiffWorkAround );
-            os.close();
-
+            // Generate JarDiff, a partly written one is not left behind
+            boolean created = false;
             try
             {
-
-                // Check that Jardiff is smaller, or return null
-                if ( outputFile.length() >= ( new File( newFilePath ).length() ) )
+                OutputStream os = new FileOutputStream( outputFile );
+                try
                 {
-                    _log.addDebug( "JarDiff discarded - since it is bigger" );
-                    return null;
+                    JarDiff.createPatch( oldFilePath, newFilePath, os, !doJarDiffWorkAround );
                 }
-
-                // Check that Jardiff is smaller than the packed version of
-                // the new file, if the file exists at all
-                File newFilePacked = new File( newFilePath + ".pack.gz" );
-                if ( newFilePacked.exists() )
+                finally
                 {
-                    _log.addDebug( "generated jardiff size: " + outputFile.length() );
-                    _log.addDebug( "packed requesting file size: " + newFilePacked.length() );
-                    if ( outputFile.length() >= newFilePacked.length() )
-                    {
-                        _log.addDebug( "JarDiff discarded - packed version of requesting file is smaller" );
-                        return null;
-                    }
+                    os.close();
                 }
-
-                _log.addDebug( "JarDiff generation succeeded" );
-                return outputFile;
-
+                created = true;
             }
             finally
             {
-                // delete the temporarily downloaded file
-                if ( del_new )
+                if ( !created )
                 {
-                    new File( newFilePath ).delete();
+                    outputFile.delete();
                 }
+            }
 
-                if ( del_old )
+            // Check that Jardiff is smaller, or return null
+            if ( outputFile.length() >= ( new File( newFilePath ).length() ) )
+            {
+                _log.addDebug( "JarDiff discarded - since it is bigger" );
+                _discardedCount.incrementAndGet();
+                outputFile.delete();
+                return DISCARDED;
+            }
+
+            // Check that Jardiff is smaller than the packed version of
+            // the new file, if the file exists at all
+            File newFilePacked = new File( newFilePath + ".pack.gz" );
+            if ( newFilePacked.exists() )
+            {
+                _log.addDebug( "generated jardiff size: " + outputFile.length() );
+                _log.addDebug( "packed requesting file size: " + newFilePacked.length() );
+                if ( outputFile.length() >= newFilePacked.length() )
                 {
-                    new File( oldFilePath ).delete();
+                    _log.addDebug( "JarDiff discarded - packed version of requesting file is smaller" );
+                    _discardedCount.incrementAndGet();
+                    outputFile.delete();
+                    return DISCARDED;
                 }
             }
+
+            _log.addDebug( "JarDiff generation succeeded" );
+            return outputFile;
         }
         catch ( IOException ioe )
         {
             _log.addDebug( "Failed to genereate jardiff", ioe );
             return null;
         }
-        catch ( ErrorResponseException ere )
+        finally
         {
-            _log.addDebug( "Failed to genereate jardiff", ere );
-            return null;
+            // delete the temporarily downloaded file
+            if ( del_new )
+            {
+                new File( newFilePath ).delete();
+            }
+
+            if ( del_old )
+            {
+                new File( oldFilePath ).delete();
+            }
+
+            // or give the extracted one back to the cache
+            if ( release_new )
+            {
+                _extractedJars.release( res.getPath(), res.getLastModified() );
+            }
+
+            if ( release_old )
+            {
+                _extractedJars.release( fromRes.getPath(), fromRes.getLastModified() );
+            }
         }
     }
 }
-
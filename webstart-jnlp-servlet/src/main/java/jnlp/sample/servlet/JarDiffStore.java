@@ -0,0 +1,315 @@
+/*
+ * @(#)JarDiffStore.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps generated JarDiffs on disk across restarts. A JarDiff is stored under a name
+ * made of the content hashes of the jar the client has, the jar it asks for and the
+ * minimal flag, so a stored JarDiff is valid for as long as it exists, whatever jar
+ * names, versions or timestamps lead to it.
+ * <p>
+ * The store directory is its own index: it is scanned at startup, and the last
+ * modified time of a file records when it was last used, so the least recently used
+ * JarDiffs are evicted first when the total size exceeds the budget. Files are
+ * written under a temporary name and moved into place atomically. Since the content
+ * behind a name never changes, several servlet instances or cluster nodes can share
+ * a directory: a JarDiff written by another node is picked up when it is asked for,
+ * and one evicted by another node is generated again. Responses open a JarDiff before
+ * handing it out, so one evicted while it is sent is still sent in full.
+ */
+public class JarDiffStore
+{
+    private static final String DIFF_SUFFIX = ".jardiff";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Last use is written to disk at most once per interval
+    private static final long TOUCH_INTERVAL = 60 * 60 * 1000L;
+
+    // Temporary files older than this were left by a crash, younger ones may be written right now
+    private static final long STALE_TEMP_AGE = 60 * 60 * 1000L;
+
+    private final File _directory;
+
+    private final long _maxBytes;
+
+    private final Logger _log;
+
+    // Guarded by itself, in access order for eviction
+    private final LinkedHashMap<String, StoredDiff> _index = new LinkedHashMap<String, StoredDiff>( 64, 0.75f, true );
+
+    private long _totalBytes;
+
+    private static final class StoredDiff
+    {
+        private final File _file;
+
+        private final long _size;
+
+        private long _touched;
+
+        StoredDiff( File file, long touched )
+        {
+            _file = file;
+            _size = file.length();
+            _touched = touched;
+        }
+    }
+
+    /**
+     * @param directory directory to keep the JarDiffs in, created if needed
+     * @param maxBytes  total size of the JarDiffs kept
+     * @param log       logger
+     */
+    public JarDiffStore( File directory, long maxBytes, Logger log )
+    {
+        _directory = directory;
+        _maxBytes = maxBytes;
+        _log = log;
+        directory.mkdirs();
+        load();
+    }
+
+    /**
+     * @param fromHash content hash of the jar the client has
+     * @param toHash   content hash of the jar the client asks for
+     * @param minimal  true for a minimal JarDiff
+     * @return the name of the JarDiff in the store
+     */
+    public static String getKey( String fromHash, String toHash, boolean minimal )
+    {
+        return fromHash + "-" + toHash + ( minimal ? "-m" : "-f" );
+    }
+
+    /**
+     * @return a new temporary file in the store directory to generate a JarDiff into
+     * @throws IOException if the file cannot be created
+     */
+    public File createTempFile()
+            throws IOException
+    {
+        return File.createTempFile( "jardiff", TEMP_SUFFIX, _directory );
+    }
+
+    /**
+     * Returns a stored JarDiff, including one stored by another node since startup.
+     *
+     * @param key the name of the JarDiff
+     * @return the file, or null if the JarDiff is not stored
+     */
+    public File get( String key )
+    {
+        synchronized ( _index )
+        {
+            StoredDiff diff = _index.get( key );
+            if ( diff != null && !diff._file.isFile() )
+            {
+                // Evicted by another node
+                remove( key );
+                diff = null;
+            }
+            if ( diff == null )
+            {
+                File file = new File( _directory, key + DIFF_SUFFIX );
+                if ( !file.isFile() )
+                {
+                    return null;
+                }
+                diff = new StoredDiff( file, file.lastModified() );
+                add( key, diff );
+            }
+            long now = System.currentTimeMillis();
+            if ( now - diff._touched > TOUCH_INTERVAL )
+            {
+                diff._touched = now;
+                diff._file.setLastModified( now );
+            }
+            return diff._file;
+        }
+    }
+
+    /**
+     * Moves a generated JarDiff into the store.
+     *
+     * @param key  the name of the JarDiff
+     * @param temp the JarDiff, in a file created by createTempFile
+     * @return the stored file, or null if it could not be stored
+     */
+    public File put( String key, File temp )
+    {
+        File file = new File( _directory, key + DIFF_SUFFIX );
+        try
+        {
+            try
+            {
+                Files.move( temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( AtomicMoveNotSupportedException amnse )
+            {
+                Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            // Another node may have stored the same content under the same name
+            temp.delete();
+            if ( !file.isFile() )
+            {
+                _log.addDebug( "Unable to store JarDiff " + key, ioe );
+                return null;
+            }
+        }
+        synchronized ( _index )
+        {
+            remove( key );
+            add( key, new StoredDiff( file, System.currentTimeMillis() ) );
+            evict();
+            // A JarDiff larger than the whole budget is evicted right away
+            return _index.containsKey( key ) ? file : null;
+        }
+    }
+
+    /**
+     * @return the total size of the JarDiffs this instance knows of
+     */
+    public long getTotalBytes()
+    {
+        synchronized ( _index )
+        {
+            return _totalBytes;
+        }
+    }
+
+    /**
+     * @return the number of JarDiffs this instance knows of
+     */
+    public int size()
+    {
+        synchronized ( _index )
+        {
+            return _index.size();
+        }
+    }
+
+    /* Rebuilds the index from the directory, least recently used first */
+    private void load()
+    {
+        File[] files = _directory.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<File> diffs = new ArrayList<File>();
+        for ( File file : files )
+        {
+            String name = file.getName();
+            if ( name.endsWith( DIFF_SUFFIX ) )
+            {
+                diffs.add( file );
+            }
+            else if ( name.endsWith( TEMP_SUFFIX ) && now - file.lastModified() > STALE_TEMP_AGE )
+            {
+                file.delete();
+            }
+        }
+        Collections.sort( diffs, new Comparator<File>()
+        {
+            public int compare( File f1, File f2 )
+            {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return ( m1 < m2 ) ? -1 : ( ( m1 == m2 ) ? 0 : 1 );
+            }
+        } );
+        synchronized ( _index )
+        {
+            for ( File file : diffs )
+            {
+                String name = file.getName();
+                add( name.substring( 0, name.length() - DIFF_SUFFIX.length() ),
+                     new StoredDiff( file, file.lastModified() ) );
+            }
+            evict();
+        }
+        _log.addDebug( "JarDiff store " + _directory + " holds " + _index.size() + " JarDiffs, " + _totalBytes +
+                               " bytes" );
+    }
+
+    /* Must be called with the lock held */
+    private void add( String key, StoredDiff diff )
+    {
+        _index.put( key, diff );
+        _totalBytes += diff._size;
+    }
+
+    /* Must be called with the lock held */
+    private void remove( String key )
+    {
+        StoredDiff diff = _index.remove( key );
+        if ( diff != null )
+        {
+            _totalBytes -= diff._size;
+        }
+    }
+
+    /* Must be called with the lock held */
+    private void evict()
+    {
+        for ( Iterator<Map.Entry<String, StoredDiff>> it = _index.entrySet().iterator();
+              it.hasNext() && _totalBytes > _maxBytes; )
+        {
+            StoredDiff diff = it.next().getValue();
+            it.remove();
+            _totalBytes -= diff._size;
+            diff._file.delete();
+        }
+    }
+}
@@ -36,12 +36,23 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.VersionString;
+import org.w3c.dom.Document;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 
 /**
@@ -75,6 +86,83 @@ public class JnlpDownloadServlet
 
     private static final String PARAM_JNLP_FILE_HANDLER_HOOK = "jnlp-file-handler-hook";
 
+    private static final String PARAM_CATALOG_WATCH = "catalog-watch";
+
+    private static final String PARAM_FILE_TRANSFER_MODE = "file-transfer-mode";
+
+    private static final String PARAM_NEGATIVE_CACHE_SIZE = "negative-cache-size";
+
+    private static final String PARAM_NEGATIVE_CACHE_TTL = "negative-cache-ttl";
+
+    private static final String PARAM_CACHE_CONTROL_VERSIONED = "cache-control-versioned";
+
+    private static final String PARAM_CACHE_CONTROL_UNVERSIONED = "cache-control-unversioned";
+
+    private static final String PARAM_CACHE_CONTROL_JNLP = "cache-control-jnlp";
+
+    private static final String PARAM_RESOURCE_CACHE_SIZE = "resource-cache-size";
+
+    private static final String PARAM_RESOURCE_CACHE_TTL = "resource-cache-ttl";
+
+    private static final String PARAM_ASYNC_DOWNLOADS = "async-downloads";
+
+    private static final String PARAM_DYNAMIC_GZIP = "dynamic-gzip";
+
+    private static final String PARAM_DYNAMIC_GZIP_MIN_SIZE = "dynamic-gzip-min-size";
+
+    private static final String PARAM_DYNAMIC_GZIP_CACHE_SIZE = "dynamic-gzip-cache-size";
+
+    private static final String PARAM_JNLP_CACHE_SIZE = "jnlp-cache-size";
+
+    private static final String PARAM_JNLP_CACHE_MEMORY = "jnlp-cache-memory";
+
+    private static final String PARAM_JARDIFF_THREADS = "jardiff-threads";
+
+    private static final String PARAM_JARDIFF_QUEUE_SIZE = "jardiff-queue-size";
+
+    private static final String PARAM_JARDIFF_MAX_WAIT = "jardiff-max-wait";
+
+    private static final String PARAM_JARDIFF_STORE_DIR = "jardiff-store-dir";
+
+    private static final String PARAM_JARDIFF_STORE_SIZE = "jardiff-store-size";
+
+    private static final String PARAM_JARDIFF_EXTRACTED_JARS_SIZE = "jardiff-extracted-jars-size";
+
+    private static final String PARAM_METRICS_PATH = "metrics-path";
+
+    private static final String PARAM_METRICS_JMX = "metrics-jmx";
+
+    // Defaults for the negative lookup cache, the time-to-live is in seconds
+    private static final int DEFAULT_NEGATIVE_CACHE_SIZE = 1024;
+
+    private static final int DEFAULT_NEGATIVE_CACHE_TTL = 10;
+
+    private static final String PARAM_VERSION_CACHE_SIZE = "version-cache-size";
+
+    private static final String PARAM_USER_AGENT_CACHE_SIZE = "user-agent-cache-size";
+
+    // javaws 1.5 and later support query strings in the href of a JNLP file
+    private static final VersionString JAVAWS_1_5_PLUS = new VersionString( "1.5+" );
+
+    // Defaults for the resource metadata cache, the time-to-live is in seconds
+    private static final int DEFAULT_RESOURCE_CACHE_SIZE = 1024;
+
+    private static final int DEFAULT_RESOURCE_CACHE_TTL = 5;
+
+    // Defaults for dynamic compression: smallest resource compressed in bytes, size of the disk cache in megabytes
+    private static final int DEFAULT_DYNAMIC_GZIP_MIN_SIZE = 1024;
+
+    private static final int DEFAULT_DYNAMIC_GZIP_CACHE_SIZE = 64;
+
+    // Size of the cache of generated JNLP files in megabytes
+    private static final int DEFAULT_JNLP_CACHE_MEMORY = 16;
+
+    // Size of the JarDiff store in megabytes
+    private static final int DEFAULT_JARDIFF_STORE_SIZE = 256;
+
+    // Size of the jars extracted from a packed war to generate JarDiffs, in megabytes
+    private static final int DEFAULT_JARDIFF_EXTRACTED_JARS_SIZE = 256;
+
     // Servlet configuration
     private Logger _log = null;
 
@@ -84,6 +172,23 @@ public class JnlpDownloadServlet
 
     private ResourceCatalog _resourceCatalog = null;
 
+    private NegativeLookupCache _negativeLookupCache = null;
+
+    private ResourceMetadataCache _resourceMetadataCache = null;
+
+    // How file responses are sent, from the init-params of this servlet
+    private DownloadSettings _downloadSettings = DownloadSettings.DEFAULT;
+
+    private CompressedVariantCache _compressedVariantCache = null;
+
+    private DownloadMetrics _metrics = null;
+
+    // Path the metrics are served as text on, or null
+    private String _metricsPath = null;
+
+    // Name the metrics are registered with in the platform MBean server, or null
+    private ObjectName _metricsName = null;
+
     /**
      * Initialize servlet
      */
@@ -100,26 +205,304 @@ public class JnlpDownloadServlet
         JnlpResource.setDefaultExtensions( config.getInitParameter( PARAM_JNLP_EXTENSION ),
                                            config.getInitParameter( PARAM_JAR_EXTENSION ) );
 
-        JnlpFileHandlerHook hook = createHook( config.getInitParameter(PARAM_JNLP_FILE_HANDLER_HOOK) );
-	_jnlpFileHandler = new JnlpFileHandler( config.getServletContext(), hook, _log );
-        _jarDiffHandler = new JarDiffHandler( config.getServletContext(), _log );
-        _resourceCatalog = new ResourceCatalog( config.getServletContext(), _log );
+        _downloadSettings = createDownloadSettings( config );
+
+        List<JnlpFileElementHook> elementHooks = new ArrayList<JnlpFileElementHook>();
+        JnlpFileHandlerHook hook = createHooks( config.getInitParameter(PARAM_JNLP_FILE_HANDLER_HOOK), elementHooks );
+	_jnlpFileHandler = new JnlpFileHandler( config.getServletContext(), hook, elementHooks, _log,
+                                                new JnlpFileCache( getIntParameter( config, PARAM_JNLP_CACHE_SIZE,
+                                                                                    JnlpFileHandler.DEFAULT_CACHE_ENTRIES ),
+                                                                   getIntParameter( config, PARAM_JNLP_CACHE_MEMORY,
+                                                                                    DEFAULT_JNLP_CACHE_MEMORY ) *
+                                                                           1024L * 1024L ), _downloadSettings );
+        // JarDiffs are generated in the background; the maximum wait is in milliseconds
+        _jarDiffHandler = new JarDiffHandler( config.getServletContext(), _log,
+                                              getIntParameter( config, PARAM_JARDIFF_THREADS,
+                                                               JarDiffHandler.DEFAULT_THREADS ),
+                                              getIntParameter( config, PARAM_JARDIFF_QUEUE_SIZE,
+                                                               JarDiffHandler.DEFAULT_QUEUE_SIZE ),
+                                              getIntParameter( config, PARAM_JARDIFF_MAX_WAIT,
+                                                               (int) JarDiffHandler.DEFAULT_MAX_WAIT ),
+                                              createJarDiffStore( config ), createExtractedJarCache( config ),
+                                              getIntParameter( config, PARAM_USER_AGENT_CACHE_SIZE,
+                                                               JarDiffHandler.DEFAULT_USER_AGENT_CACHE_SIZE ) );
+        _resourceCatalog = new ResourceCatalog( config.getServletContext(), _log,
+                                                getIntParameter( config, PARAM_VERSION_CACHE_SIZE,
+                                                                 ResourceCatalog.DEFAULT_VERSION_CACHE_SIZE ) );
+
+        _negativeLookupCache =
+                new NegativeLookupCache( getIntParameter( config, PARAM_NEGATIVE_CACHE_SIZE, DEFAULT_NEGATIVE_CACHE_SIZE ),
+                                         getIntParameter( config, PARAM_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL ) *
+                                                 1000L );
+
+        _resourceMetadataCache = new ResourceMetadataCache( config.getServletContext(),
+                                                            getIntParameter( config, PARAM_RESOURCE_CACHE_SIZE,
+                                                                             DEFAULT_RESOURCE_CACHE_SIZE ),
+                                                            getIntParameter( config, PARAM_RESOURCE_CACHE_TTL,
+                                                                             DEFAULT_RESOURCE_CACHE_TTL ) * 1000L );
+
+        // Compress resources and JNLP files on the fly for clients accepting gzip, if configured
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_DYNAMIC_GZIP ) ) )
+        {
+            int minSize = _downloadSettings.getGzipMinSize();
+            File tempDir = (File) config.getServletContext().getAttribute( "javax.servlet.context.tempdir" );
+            if ( tempDir != null )
+            {
+                long maxBytes = getIntParameter( config, PARAM_DYNAMIC_GZIP_CACHE_SIZE,
+                                                 DEFAULT_DYNAMIC_GZIP_CACHE_SIZE ) * 1024L * 1024L;
+                try
+                {
+                    File directory = Files.createTempDirectory( tempDir.toPath(), "jnlp-gzip-cache" ).toFile();
+                    _compressedVariantCache = new CompressedVariantCache( directory, maxBytes, minSize, _log );
+                }
+                catch ( IOException ioe )
+                {
+                    _log.addDebug( "Cannot create a directory for compressed variants in " + tempDir, ioe );
+                }
+            }
+        }
+
+        // Let a background watcher keep exploded directories up to date, if configured
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_CATALOG_WATCH ) ) )
+        {
+            try
+            {
+                _resourceCatalog.startWatching();
+            }
+            catch ( IOException | UnsupportedOperationException e )
+            {
+                _log.addWarning( "servlet.log.warning.watch.unavailable", e.toString() );
+            }
+        }
+
+        _metrics = new DownloadMetrics( _jnlpFileHandler.getCache(), _jarDiffHandler, _resourceCatalog );
+        _metricsPath = config.getInitParameter( PARAM_METRICS_PATH );
+        // Publish the metrics over JMX unless turned off
+        if ( !"false".equalsIgnoreCase( config.getInitParameter( PARAM_METRICS_JMX ) ) )
+        {
+            registerMetrics( config );
+        }
+    }
+
+    /* Registers the metrics in the platform MBean server, named after the context path and servlet */
+    private void registerMetrics( ServletConfig config )
+    {
+        try
+        {
+            ObjectName name = new ObjectName( "jnlp.sample.servlet:type=DownloadMetrics,context=" +
+                                                      ObjectName.quote( config.getServletContext().getContextPath() ) +
+                                                      ",name=" + ObjectName.quote( config.getServletName() ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( _metrics, name );
+            _metricsName = name;
+        }
+        catch ( JMException | SecurityException e )
+        {
+            _log.addWarning( "servlet.log.warning.metrics.jmx", e.toString() );
+        }
+    }
+
+    /**
+     * Reads a numeric init-param
+     *
+     * @param config       servlet configuration
+     * @param name         name of the parameter
+     * @param defaultValue value used if the parameter is missing or not a number
+     * @return the value of the parameter
+     */
+    private int getIntParameter( ServletConfig config, String name, int defaultValue )
+    {
+        String value = config.getInitParameter( name );
+        if ( value != null )
+        {
+            try
+            {
+                return Integer.parseInt( value.trim() );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                _log.addWarning( "servlet.log.warning.bad-init-param", name, value );
+            }
+        }
+        return defaultValue;
+    }
+
+    /* Reads how this servlet sends file responses */
+    private DownloadSettings createDownloadSettings( ServletConfig config )
+    {
+        // Select how files are written to the response
+        String transferMode = config.getInitParameter( PARAM_FILE_TRANSFER_MODE );
+        if ( transferMode != null && !DownloadSettings.isFileTransferMode( transferMode ) )
+        {
+            _log.addWarning( "servlet.log.warning.bad-init-param", PARAM_FILE_TRANSFER_MODE, transferMode );
+            transferMode = null;
+        }
+
+        // Write file bodies asynchronously, only available when built with the servlet31 profile
+        AsyncDownloadWriter asyncWriter = null;
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_ASYNC_DOWNLOADS ) ) )
+        {
+            asyncWriter = createAsyncWriter();
+        }
+
+        // Compress generated JNLP files on the fly for clients accepting gzip, if configured
+        int gzipMinSize = -1;
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_DYNAMIC_GZIP ) ) )
+        {
+            gzipMinSize = getIntParameter( config, PARAM_DYNAMIC_GZIP_MIN_SIZE, DEFAULT_DYNAMIC_GZIP_MIN_SIZE );
+        }
+
+        // Caching policy of file responses, an empty value leaves the Cache-Control header out
+        return new DownloadSettings( transferMode, asyncWriter, config.getInitParameter( PARAM_CACHE_CONTROL_VERSIONED ),
+                                     config.getInitParameter( PARAM_CACHE_CONTROL_UNVERSIONED ),
+                                     config.getInitParameter( PARAM_CACHE_CONTROL_JNLP ), gzipMinSize );
+    }
+
+    /**
+     * Release background resources
+     */
+    public void destroy()
+    {
+        if ( _metricsName != null )
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean( _metricsName );
+            }
+            catch ( JMException e )
+            {
+                // Already gone
+            }
+            _metricsName = null;
+        }
+        if ( _resourceCatalog != null )
+        {
+            _resourceCatalog.destroy();
+        }
+        if ( _jarDiffHandler != null )
+        {
+            _jarDiffHandler.destroy();
+        }
+        if ( _compressedVariantCache != null )
+        {
+            _compressedVariantCache.destroy();
+        }
+        if ( _log != null )
+        {
+            _log.close();
+        }
+        super.destroy();
     }
 
     /**
-     * Creates the instance of the configured {@link JnlpFileHandlerHook}
+     * Creates the instances of the configured hooks, a comma separated list of classes
+     * implementing {@link JnlpFileElementHook} or {@link JnlpFileHandlerHook}. A class
+     * implementing both is only used as an element hook, so it needs no DOM.
      * 
-     * @param hookClass class
-     * @return the post-processor instance, never {@code null}
+     * @param hookClasses classes
+     * @param elementHooks list to add the element hooks to
+     * @return the post-processor calling the other hooks in order, never {@code null}
      */
-    private JnlpFileHandlerHook createHook( String hookClass ) {
-        if ( hookClass != null )
-            try {
-                return Class.forName( hookClass ).asSubclass( JnlpFileHandlerHook.class ).newInstance();
-            } catch ( InstantiationException | IllegalAccessException | ClassNotFoundException e ) {
-                _log.addWarning( "servlet.log.warning.failed-jnlp-file-hook", hookClass, e );
+    private JnlpFileHandlerHook createHooks( String hookClasses, List<JnlpFileElementHook> elementHooks ) {
+        final List<JnlpFileHandlerHook> hooks = new ArrayList<JnlpFileHandlerHook>();
+        if ( hookClasses != null )
+            for ( String hookClass : hookClasses.split( "," ) ) {
+                hookClass = hookClass.trim();
+                if ( hookClass.length() == 0 )
+                    continue;
+                try {
+                    Object hook = Class.forName( hookClass ).newInstance();
+                    if ( hook instanceof JnlpFileElementHook )
+                        elementHooks.add( (JnlpFileElementHook) hook );
+                    else
+                        hooks.add( (JnlpFileHandlerHook) hook );
+                } catch ( InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException e ) {
+                    _log.addWarning( "servlet.log.warning.failed-jnlp-file-hook", hookClass, e );
+                }
+            }
+        if ( hooks.isEmpty() )
+            return JnlpFileHandlerHook.IDENTITY;
+        if ( hooks.size() == 1 )
+            return hooks.get( 0 );
+        return new JnlpFileHandlerHook() {
+            @Override
+            public void preCommit( DownloadRequest dreq, Document document ) {
+                for ( JnlpFileHandlerHook hook : hooks )
+                    hook.preCommit( dreq, document );
+            }
+        };
+    }
+
+    /**
+     * Creates the store keeping generated JarDiffs across restarts, in the configured
+     * directory or else in the temp dir of the web application.
+     *
+     * @param config servlet configuration
+     * @return the store, or null if there is no directory to keep it in
+     */
+    private JarDiffStore createJarDiffStore( ServletConfig config )
+    {
+        String dir = config.getInitParameter( PARAM_JARDIFF_STORE_DIR );
+        File storeDir;
+        if ( dir != null && dir.trim().length() > 0 )
+        {
+            storeDir = new File( dir.trim() );
+        }
+        else
+        {
+            File tempDir = (File) config.getServletContext().getAttribute( "javax.servlet.context.tempdir" );
+            if ( tempDir == null )
+            {
+                return null;
             }
-        return JnlpFileHandlerHook.IDENTITY;
+            storeDir = new File( tempDir, "jnlp-jardiff-store" );
+        }
+        long maxBytes =
+                getIntParameter( config, PARAM_JARDIFF_STORE_SIZE, DEFAULT_JARDIFF_STORE_SIZE ) * 1024L * 1024L;
+        return new JarDiffStore( storeDir, maxBytes, _log );
+    }
+
+    /**
+     * Creates the cache of jars extracted from a packed web application to generate
+     * JarDiffs from, in a directory of its own under the temp dir of the web application.
+     *
+     * @param config servlet configuration
+     * @return the cache, or null if there is no temp dir
+     */
+    private ExtractedJarCache createExtractedJarCache( ServletConfig config )
+    {
+        File tempDir = (File) config.getServletContext().getAttribute( "javax.servlet.context.tempdir" );
+        if ( tempDir == null )
+        {
+            return null;
+        }
+        long maxBytes = getIntParameter( config, PARAM_JARDIFF_EXTRACTED_JARS_SIZE,
+                                         DEFAULT_JARDIFF_EXTRACTED_JARS_SIZE ) * 1024L * 1024L;
+        File directory;
+        try
+        {
+            directory = Files.createTempDirectory( tempDir.toPath(), "jnlp-extracted-jars" ).toFile();
+        }
+        catch ( IOException ioe )
+        {
+            _log.addDebug( "Cannot create a directory for extracted jars in " + tempDir, ioe );
+            return null;
+        }
+        return new ExtractedJarCache( directory, maxBytes, _log );
+    }
+
+    private AsyncDownloadWriter createAsyncWriter()
+    {
+        try
+        {
+            return Class.forName( AsyncDownloadWriter.IMPLEMENTATION ).asSubclass( AsyncDownloadWriter.class )
+                    .newInstance();
+        }
+        catch ( InstantiationException | IllegalAccessException | ClassNotFoundException | LinkageError e )
+        {
+            // Not compiled in, or no Servlet 3.1 API in the container
+            _log.addWarning( "servlet.log.warning.async.unavailable", e.toString() );
+            return null;
+        }
     }
 
     public static synchronized ResourceBundle getResourceBundle()
@@ -168,8 +551,21 @@ public class JnlpDownloadServlet
             _log.addDebug( dreq.toString() );
         }
 
+        // The metrics are served as text on their own path, if configured, and are not counted
+        if ( _metricsPath != null && _metricsPath.equals( dreq.getPath() ) )
+        {
+            sendMetrics( response, isHead );
+            return;
+        }
+
         long ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
 
+        // Remembers what was sent for the metrics; each phase is timed from the end of the previous one
+        MeteredResponse metered = new MeteredResponse( response );
+        response = metered;
+        long start = System.nanoTime();
+        boolean located = false;
+
         // Check if it is a valid request
         try
         {
@@ -178,7 +574,12 @@ public class JnlpDownloadServlet
 
             // Decide what resource to return
             JnlpResource jnlpres = locateResource( dreq );
-            _log.addDebug( "JnlpResource: " + jnlpres );
+            _log.addDebug( "JnlpResource: ", jnlpres );
+
+            long now = System.nanoTime();
+            _metrics.recordLatency( DownloadMetrics.PHASE_LOOKUP, now - start );
+            start = now;
+            located = true;
 
             if ( _log.isInformationalLevel() )
             {
@@ -190,15 +591,20 @@ public class JnlpDownloadServlet
             if ( isHead )
             {
 
-                int cl = jnlpres.getResource().openConnection().getContentLength();
+                long cl = getResourceMetadata( jnlpres.getPath(), dreq ).getContentLength();
+
+                // The entity tag of a JNLP file depends on the generated content, the template has none
+                String etag = jnlpres.isJnlpFile() ? null : _resourceCatalog.getETag( jnlpres );
 
                 // head request response
                 dres = DownloadResponse.getHeadRequestResponse( jnlpres.getMimeType(), jnlpres.getVersionId(),
-                                                                jnlpres.getLastModified(), cl );
+                                                                jnlpres.getLastModified(), cl, etag );
 
             }
-            else if ( ifModifiedSince != -1 && ( ifModifiedSince / 1000 ) >= ( jnlpres.getLastModified() / 1000 ) )
+            else if ( request.getHeader( "If-None-Match" ) == null && ifModifiedSince != -1 &&
+                    ( ifModifiedSince / 1000 ) >= ( jnlpres.getLastModified() / 1000 ) )
             {
+                // If-None-Match takes precedence, it is evaluated by the response itself
                 // We divide the value returned by getLastModified here by 1000
                 // because if protocol is HTTP, last 3 digits will always be 
                 // zero.  However, if protocol is JNDI, that's not the case.
@@ -217,11 +623,22 @@ public class JnlpDownloadServlet
                 dres = constructResponse( jnlpres, dreq );
             }
 
-            dres.sendRespond( response );
+            now = System.nanoTime();
+            _metrics.recordLatency( DownloadMetrics.PHASE_GENERATE, now - start );
+            start = now;
+
+            dres.sendRespond( request, response, _downloadSettings );
 
+            _metrics.recordLatency( DownloadMetrics.PHASE_SEND, System.nanoTime() - start );
+            _metrics.recordResponse( metered.getMeteredStatus(), metered.getMeteredContentType(),
+                                     metered.getMeteredContentLength(), !isHead );
         }
         catch ( ErrorResponseException ere )
         {
+            if ( !located )
+            {
+                _metrics.recordLatency( DownloadMetrics.PHASE_LOOKUP, System.nanoTime() - start );
+            }
             if ( _log.isInformationalLevel() )
             {
                 _log.addInformational( "servlet.log.info.badrequest", requestStr );
@@ -231,15 +648,40 @@ public class JnlpDownloadServlet
                 _log.addDebug( "Response: " + ere.toString() );
             }
             // Return response from exception
-            ere.getDownloadResponse().sendRespond( response );
+            DownloadResponse dres = ere.getDownloadResponse();
+            dres.sendRespond( request, response, _downloadSettings );
+            if ( dres instanceof DownloadResponse.JnlpErrorResponse )
+            {
+                _metrics.recordJnlpError( ( (DownloadResponse.JnlpErrorResponse) dres ).getJnlpErrorCode() );
+            }
+            else
+            {
+                _metrics.recordResponse( metered.getMeteredStatus(), metered.getMeteredContentType(),
+                                         metered.getMeteredContentLength(), !isHead );
+            }
         }
         catch ( Throwable e )
         {
             _log.addFatal( "servlet.log.fatal.internalerror", e );
+            _metrics.recordResponse( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null, -1, false );
             response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
         }
     }
 
+    /* Writes the metrics in a plain text format a monitoring agent can scrape */
+    private void sendMetrics( HttpServletResponse response, boolean isHead )
+            throws IOException
+    {
+        response.setContentType( "text/plain; charset=UTF-8" );
+        response.setHeader( "Cache-Control", "no-cache" );
+        if ( !isHead )
+        {
+            PrintWriter pw = response.getWriter();
+            _metrics.writeText( pw );
+            pw.flush();
+        }
+    }
+
     /**
      * Make sure that it is a valid request. This is also the place to implement the
      * reverse IP lookup
@@ -261,16 +703,85 @@ public class JnlpDownloadServlet
     private JnlpResource locateResource( DownloadRequest dreq )
             throws IOException, ErrorResponseException
     {
-        if ( dreq.getVersion() == null )
+        // Requests that failed recently fail again without another lookup
+        ErrorResponseException cached = _negativeLookupCache.lookup( dreq, _resourceCatalog );
+        if ( cached != null )
         {
-            return handleBasicDownload( dreq );
+            _log.addDebug( "Negative lookup cache hit" );
+            throw cached;
         }
-        else
+        try
+        {
+            if ( dreq.getVersion() == null )
+            {
+                return handleBasicDownload( dreq );
+            }
+            else
+            {
+                return handleVersionRequest( dreq );
+            }
+        }
+        catch ( ErrorResponseException ere )
         {
-            return handleVersionRequest( dreq );
+            _negativeLookupCache.put( dreq, _resourceCatalog, ere );
+            throw ere;
         }
     }
 
+    /**
+     * @return the request metrics, also registered as an MBean unless turned off
+     */
+    public DownloadMetrics getMetrics()
+    {
+        return _metrics;
+    }
+
+    /**
+     * @return the cache of failed lookups, e.g. to read its hit and miss counters
+     */
+    public NegativeLookupCache getNegativeLookupCache()
+    {
+        return _negativeLookupCache;
+    }
+
+    /**
+     * @return the cache of generated JNLP files, e.g. to read its hit and miss counters
+     */
+    public JnlpFileCache getJnlpFileCache()
+    {
+        return _jnlpFileHandler.getCache();
+    }
+
+    /**
+     * @return the JarDiff handler, e.g. to read its queue depth and counters
+     */
+    public JarDiffHandler getJarDiffHandler()
+    {
+        return _jarDiffHandler;
+    }
+
+    /**
+     * @return the cache of compressed resources, or null if resources are not compressed on the fly
+     */
+    public CompressedVariantCache getCompressedVariantCache()
+    {
+        return _compressedVariantCache;
+    }
+
+    /**
+     * @return the cache of resource metadata, e.g. to read its hit and miss counters
+     */
+    public ResourceMetadataCache getResourceMetadataCache()
+    {
+        return _resourceMetadataCache;
+    }
+
+    /* Returns the metadata of a file, valid as long as the catalog of the requested directory is unchanged */
+    private ResourceMetadata getResourceMetadata( String path, DownloadRequest dreq )
+    {
+        return _resourceMetadataCache.get( path, _resourceCatalog.getGeneration( dreq ) );
+    }
+
     private JnlpResource handleBasicDownload( DownloadRequest dreq )
             throws ErrorResponseException, IOException
     {
@@ -281,7 +792,9 @@ public class JnlpDownloadServlet
             throw new ErrorResponseException( DownloadResponse.getNoContentResponse() );
         }
         // Lookup resource
-        JnlpResource jnlpres = new JnlpResource( getServletContext(), dreq.getPath() );
+        JnlpResource jnlpres =
+                new JnlpResource( getResourceMetadata( dreq.getPath(), dreq ), null, null, null, null, null, null,
+                                  null );
         if ( !jnlpres.exists() )
         {
             throw new ErrorResponseException( DownloadResponse.getNoContentResponse() );
@@ -307,8 +820,8 @@ public class JnlpDownloadServlet
         if ( jnlpres.isJnlpFile() )
         {
             // It is a JNLP file. It need to be macro-expanded, so it is handled differently
-            boolean supportQuery = JarDiffHandler.isJavawsVersion( dreq, "1.5+" );
-            _log.addDebug( "SupportQuery in Href: " + supportQuery );
+            boolean supportQuery = _jarDiffHandler.isJavawsVersion( dreq, JAVAWS_1_5_PLUS );
+            _log.addDebug( "SupportQuery in Href: ", supportQuery );
 
             // only support query string in href for 1.5 and above
             if ( supportQuery )
@@ -332,17 +845,42 @@ public class JnlpDownloadServlet
             }
         }
 
-        // check and see if we can use pack resource
+        // check and see if we can use pack resource: choose the smallest encoding the client accepts
+        ResourceMetadata metadata = getResourceMetadata( path, dreq );
+        ResourceMetadata selected = metadata.negotiate( dreq.getEncoding() );
         JnlpResource jr =
-                new JnlpResource( getServletContext(), jnlpres.getName(), jnlpres.getVersionId(), jnlpres.getOSList(),
-                                  jnlpres.getArchList(), jnlpres.getLocaleList(), jnlpres.getPath(),
-                                  jnlpres.getReturnVersionId(), dreq.getEncoding() );
+                new JnlpResource( selected, jnlpres.getName(), jnlpres.getVersionId(), jnlpres.getOSList(),
+                                  jnlpres.getArchList(), jnlpres.getLocaleList(), jnlpres.getReturnVersionId(),
+                                  dreq.getEncoding() );
+
+        _log.addDebug( "Real resource returned: ", jr );
 
-        _log.addDebug( "Real resource returned: " + jr );
+        // Compress the resource if there is no smaller pre-built variant the client accepts
+        boolean compressible = _compressedVariantCache != null && _compressedVariantCache.isEligible( metadata );
+        if ( compressible && selected == metadata && DownloadResponse.acceptsGzip( dreq.getEncoding() ) )
+        {
+            CompressedVariantCache.Variant variant = _compressedVariantCache.getVariant( metadata );
+            if ( variant != null )
+            {
+                // Opened now, the variant may be evicted while it is sent
+                try
+                {
+                    return DownloadResponse.getOpenFileDownloadResponse( variant.getFile(), jr.getMimeType(),
+                                                                         jr.getLastModified(),
+                                                                         jr.getReturnVersionId(), variant.getETag(),
+                                                                         true );
+                }
+                catch ( IOException ioe )
+                {
+                    _log.addDebug( "Compressed variant evicted, sending " + metadata.getPath() + " as is", ioe );
+                }
+            }
+        }
 
-        // Return WAR file resource
+        // Return WAR file resource. Caches must key on Accept-Encoding if encoded variants of the resource exist
         return DownloadResponse.getFileDownloadResponse( jr.getResource(), jr.getMimeType(), jr.getLastModified(),
-                                                         jr.getReturnVersionId() );
+                                                         jr.getReturnVersionId(), _resourceCatalog.getETag( jr ),
+                                                         metadata.hasVariants() || compressible );
     }
 }
 
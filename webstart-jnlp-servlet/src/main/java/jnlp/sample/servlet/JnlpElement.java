@@ -0,0 +1,168 @@
+/*
+ * @(#)JnlpElement.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An element of a JNLP file being streamed, as seen by a {@link JnlpFileElementHook}.
+ * Its attributes can be changed, the element can be removed along with its content,
+ * and empty elements can be appended to its content.
+ * <p>
+ * Only attributes without a namespace are exposed, any others are written back as read.
+ */
+public final class JnlpElement
+{
+    private final String _name;
+
+    private final int _depth;
+
+    // In document order
+    private final Map<String, String> _attributes;
+
+    private boolean _changed;
+
+    private boolean _removed;
+
+    private List<JnlpElement> _children;
+
+    JnlpElement( String name, int depth, Map<String, String> attributes )
+    {
+        _name = name;
+        _depth = depth;
+        _attributes = attributes;
+    }
+
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * @return the depth of the element, 0 for the root element
+     */
+    public int getDepth()
+    {
+        return _depth;
+    }
+
+    /**
+     * @return the value of an attribute, or null if the element does not have it
+     */
+    public String getAttribute( String name )
+    {
+        return _attributes.get( name );
+    }
+
+    public Set<String> getAttributeNames()
+    {
+        return Collections.unmodifiableSet( _attributes.keySet() );
+    }
+
+    public void setAttribute( String name, String value )
+    {
+        if ( value == null )
+        {
+            throw new IllegalArgumentException( "No value for attribute " + name );
+        }
+        if ( !value.equals( _attributes.put( name, value ) ) )
+        {
+            _changed = true;
+        }
+    }
+
+    public void removeAttribute( String name )
+    {
+        if ( _attributes.remove( name ) != null )
+        {
+            _changed = true;
+        }
+    }
+
+    /**
+     * Removes the element and its content from the file.
+     */
+    public void remove()
+    {
+        _removed = true;
+    }
+
+    public boolean isRemoved()
+    {
+        return _removed;
+    }
+
+    /**
+     * Appends an empty element to the content of this one.
+     *
+     * @param name the name of the element
+     * @return the element, to set its attributes on
+     */
+    public JnlpElement addElement( String name )
+    {
+        if ( _children == null )
+        {
+            _children = new ArrayList<JnlpElement>();
+        }
+        JnlpElement child = new JnlpElement( name, _depth + 1, new LinkedHashMap<String, String>() );
+        _children.add( child );
+        return child;
+    }
+
+    boolean isChanged()
+    {
+        return _changed;
+    }
+
+    Map<String, String> getAttributes()
+    {
+        return _attributes;
+    }
+
+    /**
+     * @return the elements added, or null
+     */
+    List<JnlpElement> getAddedElements()
+    {
+        return _children;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * @(#)JnlpFileCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.LruCache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the JNLP files generated from templates, so repeated launches get the same
+ * response without reading and specializing the template again.
+ * <p>
+ * Entries are keyed by what the generated file depends on, not by request URL: the path of
+ * the template, the name and version-id it is returned for, the scheme, host, port and
+ * context path of the request, the keys of the element hooks, and the query string when the
+ * client supports one in the href. Two requests share an entry only if all of these match,
+ * so an element hook must put in its key whatever else its patches read from the request.
+ * <p>
+ * Hits take no lock. Concurrent misses for the same key wait for a single generation.
+ * An entry is generated again when the last modified time of its template changes.
+ * When the number of entries or their total size exceeds the budget, the least recently
+ * used entries are evicted by whichever request notices it, while the others go on.
+ */
+public class JnlpFileCache
+{
+    private final LruCache<String, Node> _nodes;
+
+    private final int _maxEntries;
+
+    private final long _maxBytes;
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    /**
+     * Generates a JNLP file on a miss
+     */
+    public interface Loader
+    {
+        Entry load()
+                throws IOException;
+    }
+
+    /**
+     * A generated JNLP file and the number of bytes it holds
+     */
+    public static final class Entry
+    {
+        private final DownloadResponse _response;
+
+        private final long _size;
+
+        public Entry( DownloadResponse response, long size )
+        {
+            _response = response;
+            _size = size;
+        }
+    }
+
+    private static final class Node
+    {
+        private final long _lastModified;
+
+        private final FutureTask<Entry> _task;
+
+        // Known once generated, until then the node weighs nothing
+        private volatile long _size;
+
+        Node( long lastModified, FutureTask<Entry> task )
+        {
+            _lastModified = lastModified;
+            _task = task;
+        }
+    }
+
+    /**
+     * @param maxEntries maximum number of JNLP files kept, 0 disables the cache
+     * @param maxBytes   maximum total size of the JNLP files kept
+     */
+    public JnlpFileCache( int maxEntries, long maxBytes )
+    {
+        _nodes = new LruCache<String, Node>( maxEntries, maxBytes )
+        {
+            protected long weigh( String key, Node node )
+            {
+                return node._size;
+            }
+
+            // Entries being generated are left alone, their size is not known yet
+            protected boolean isEvictable( String key, Node node )
+            {
+                return node._task.isDone();
+            }
+        };
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled()
+    {
+        return _maxEntries > 0 && _maxBytes > 0;
+    }
+
+    /**
+     * Returns the JNLP file for a key, generating it if it is not cached or out of date.
+     *
+     * @param key          what the file depends on, built by JnlpFileHandler from the template, the
+     *                     request and the element hook keys, or null if it must not be cached
+     * @param lastModified last modified time of the template
+     * @param loader       generates the file
+     * @return the response
+     * @throws IOException if the file cannot be generated
+     */
+    public DownloadResponse get( String key, long lastModified, final Loader loader )
+            throws IOException
+    {
+        if ( key == null || !isEnabled() )
+        {
+            return loader.load()._response;
+        }
+        while ( true )
+        {
+            Node node = _nodes.get( key );
+            if ( node != null && node._lastModified == lastModified )
+            {
+                _hits.incrementAndGet();
+                return getEntry( node )._response;
+            }
+
+            Node created = new Node( lastModified, new FutureTask<Entry>( new Callable<Entry>()
+            {
+                public Entry call()
+                        throws IOException
+                {
+                    return loader.load();
+                }
+            } ) );
+            if ( node == null ? _nodes.putIfAbsent( key, created ) != null : !_nodes.replace( key, node, created ) )
+            {
+                // Another request got there first
+                continue;
+            }
+
+            _misses.incrementAndGet();
+            created._task.run();
+            Entry entry;
+            try
+            {
+                entry = getEntry( created );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                // Failures are not cached, the next request tries again
+                _nodes.remove( key, created );
+                throw e;
+            }
+            // Weigh the node again now that its size is known, unless it was replaced meanwhile
+            created._size = entry._size;
+            _nodes.replace( key, created, created );
+            return entry._response;
+        }
+    }
+
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return _nodes.getEvictionCount();
+    }
+
+    /**
+     * @return the total size of the cached JNLP files
+     */
+    public long getTotalBytes()
+    {
+        return _nodes.getWeight();
+    }
+
+    public int size()
+    {
+        return _nodes.size();
+    }
+
+    private static Entry getEntry( Node node )
+            throws IOException
+    {
+        try
+        {
+            return node._task.get();
+        }
+        catch ( ExecutionException ee )
+        {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IOException( cause );
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for a JNLP file", ie );
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * @(#)JnlpFileElementHook.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.util.Set;
+
+/**
+ * Hook for JNLP file requests that patches elements while the file is streamed, so
+ * customizing a JNLP file needs no DOM. All element hooks are applied in the same pass.
+ * <p>
+ * Unlike {@link JnlpFileHandlerHook}, element hooks are applied to every JNLP file served,
+ * not only to those requested with a query string.
+ */
+public interface JnlpFileElementHook
+{
+    /**
+     * @return the names of the elements to patch, only these are passed to {@link #patch}
+     */
+    Set<String> getElementNames();
+
+    /**
+     * Returns what the patches depend on in a request beyond what the JNLP file is cached
+     * by: the path of the template, the name and version-id it is returned for, the scheme,
+     * host, port and context path of the request, and the query string if the client
+     * supports one in the href. Requests with the same key share the JNLP file generated
+     * for the first of them.
+     *
+     * @param dreq the request
+     * @return the key, an empty string if the patches depend on nothing else, or null if
+     *         the file must be generated for every request
+     */
+    String getCacheKey( DownloadRequest dreq );
+
+    /**
+     * Invoked for each element with one of the names, in document order.
+     *
+     * @param dreq    the request the file is generated for
+     * @param element the element, its changes are written to the file
+     */
+    void patch( DownloadRequest dreq, JnlpElement element );
+}
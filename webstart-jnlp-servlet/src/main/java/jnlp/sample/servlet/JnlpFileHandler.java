@@ -38,30 +38,35 @@ package jnlp.sample.servlet;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpUtils;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.StringWriter;
-import java.net.URL;
+import java.io.Writer;
 import java.net.URLConnection;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /* The JNLP file handler implements a class that keeps
  * track of JNLP files and their specializations
@@ -72,13 +77,59 @@ public class JnlpFileHandler
 
     private static final String HEADER_LASTMOD = "Last-Modified";
 
+    // Parsers and transformers are not thread safe, but costly to look up, so each thread keeps its own
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = new ThreadLocal<DocumentBuilder>()
+    {
+        @Override
+        protected DocumentBuilder initialValue()
+        {
+            try
+            {
+                return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            }
+            catch ( ParserConfigurationException pce )
+            {
+                throw new IllegalStateException( pce );
+            }
+        }
+    };
+
+    private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<Transformer>()
+    {
+        @Override
+        protected Transformer initialValue()
+        {
+            try
+            {
+                return TransformerFactory.newInstance().newTransformer();
+            }
+            catch ( TransformerConfigurationException tce )
+            {
+                throw new IllegalStateException( tce );
+            }
+        }
+    };
+
     private ServletContext _servletContext;
 
     private JnlpFileHandlerHook _hook;
 
+    private final JnlpFileElementHook[] _elementHooks;
+
     private Logger _log = null;
 
-    private HashMap _jnlpFiles = null;
+    // Defaults for the cache of generated JNLP files
+    public static final int DEFAULT_CACHE_ENTRIES = 1024;
+
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final JnlpFileCache _jnlpFiles;
+
+    // Parsed templates by path, each replaced when its resource changes
+    private final ConcurrentMap<String, JnlpTemplate> _templates = new ConcurrentHashMap<String, JnlpTemplate>();
+
+    // Generated JNLP files of at least this size also get a gzip variant, -1 disables it
+    private final int _gzipMinSize;
 
     /**
      * Initialize JnlpFileHandler for the specific ServletContext
@@ -88,44 +139,72 @@ public class JnlpFileHandler
      */
     public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook, Logger log )
     {
-        _servletContext = servletContext;
-        _hook = hook;
-        _log = log;
-        _jnlpFiles = new HashMap();
+        this( servletContext, hook, log, new JnlpFileCache( DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES ) );
     }
 
-    private static class JnlpFileEntry
+    /**
+     * Initialize JnlpFileHandler for the specific ServletContext
+     *
+     * @param servletContext the servlet context
+     * @param hook           hook invoked before a modified JNLP file is committed
+     * @param log            the logger
+     * @param cache          cache of the generated JNLP files
+     */
+    public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook, Logger log, JnlpFileCache cache )
     {
-        // Response
-        DownloadResponse _response;
-
-        // Keeps track of cache is out of date
-        private long _lastModified;
+        this( servletContext, hook, Collections.<JnlpFileElementHook>emptyList(), log, cache );
+    }
 
-        // Constructor
-        JnlpFileEntry( DownloadResponse response, long lastmodfied )
-        {
-            _response = response;
-            _lastModified = lastmodfied;
-        }
+    /**
+     * Initialize JnlpFileHandler for the specific ServletContext
+     *
+     * @param servletContext the servlet context
+     * @param hook           hook invoked before a modified JNLP file is committed
+     * @param elementHooks   hooks patching the elements of every JNLP file, in the order they are applied
+     * @param log            the logger
+     * @param cache          cache of the generated JNLP files
+     */
+    public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook,
+                            List<JnlpFileElementHook> elementHooks, Logger log, JnlpFileCache cache )
+    {
+        this( servletContext, hook, elementHooks, log, cache, DownloadSettings.DEFAULT );
+    }
 
-        public DownloadResponse getResponse()
-        {
-            return _response;
-        }
+    /**
+     * Initialize JnlpFileHandler for the specific ServletContext
+     *
+     * @param servletContext the servlet context
+     * @param hook           hook invoked before a modified JNLP file is committed
+     * @param elementHooks   hooks patching the elements of every JNLP file, in the order they are applied
+     * @param log            the logger
+     * @param cache          cache of the generated JNLP files
+     * @param settings       how the generated JNLP files are sent, e.g. whether they are compressed
+     */
+    public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook,
+                            List<JnlpFileElementHook> elementHooks, Logger log, JnlpFileCache cache,
+                            DownloadSettings settings )
+    {
+        _servletContext = servletContext;
+        _hook = hook;
+        _elementHooks = elementHooks.toArray( new JnlpFileElementHook[elementHooks.size()] );
+        _log = log;
+        _jnlpFiles = cache;
+        _gzipMinSize = settings.getGzipMinSize();
+    }
 
-        long getLastModified()
-        {
-            return _lastModified;
-        }
+    /**
+     * @return the cache of generated JNLP files, e.g. to read its counters
+     */
+    public JnlpFileCache getCache()
+    {
+        return _jnlpFiles;
     }
 
     /* Main method to lookup an entry */
-    public synchronized DownloadResponse getJnlpFile( JnlpResource jnlpres, DownloadRequest dreq )
+    public DownloadResponse getJnlpFile( final JnlpResource jnlpres, final DownloadRequest dreq )
             throws IOException
     {
         String path = jnlpres.getPath();
-        URL resource = jnlpres.getResource();
         long lastModified = jnlpres.getLastModified();
 
         _log.addDebug( "lastModified: " + lastModified + " " + new Date( lastModified ) );
@@ -135,67 +214,51 @@ public class JnlpFileHandler
         }
 
         // fix for 4474854:  use the request URL as key to look up jnlp file
-        // in hash map
-        String reqUrl = HttpUtils.getRequestURL( dreq.getHttpRequest() ).toString();
-
-        // Check if entry already exist in HashMap
-        JnlpFileEntry jnlpFile = (JnlpFileEntry) _jnlpFiles.get( reqUrl );
+        // in hash map, or rather the parts of it the JNLP file depends on
+        String reqUrl = getCacheKey( jnlpres, dreq );
 
-        if ( jnlpFile != null && jnlpFile.getLastModified() == lastModified )
+        // Entry taken from the cache, or generated once for all concurrent requests
+        return _jnlpFiles.get( reqUrl, lastModified, new JnlpFileCache.Loader()
         {
-            // Entry found in cache, so return it
-            return jnlpFile.getResponse();
-        }
+            public JnlpFileCache.Entry load()
+                    throws IOException
+            {
+                return createJnlpFile( jnlpres, dreq );
+            }
+        } );
+    }
 
-        // Read information from WAR file
-        long timeStamp = lastModified;
+    private JnlpFileCache.Entry createJnlpFile( JnlpResource jnlpres, DownloadRequest dreq )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+
+        // Read information from WAR file, unless the template was read already
+        JnlpTemplate template = getTemplate( jnlpres );
+        long timeStamp = template.getTimeStamp();
         String mimeType = _servletContext.getMimeType( path );
         if ( mimeType == null )
         {
             mimeType = JNLP_MIME_TYPE;
         }
 
-        StringBuilder jnlpFileTemplate = new StringBuilder();
-        URLConnection conn = resource.openConnection();
-        BufferedReader br = new BufferedReader( new InputStreamReader( conn.getInputStream(), "UTF-8" ) );
-        String line = br.readLine();
-        if ( line != null && line.startsWith( "TS:" ) )
-        {
-            timeStamp = parseTimeStamp( line.substring( 3 ) );
-            _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
-            if ( timeStamp == 0 )
-            {
-                _log.addWarning( "servlet.log.warning.notimestamp", path );
-                timeStamp = lastModified;
-            }
-            line = br.readLine();
-        }
-        while ( line != null )
-        {
-            jnlpFileTemplate.append( line );
-            line = br.readLine();
-        }
-
-        String jnlpFileContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, jnlpFileTemplate.toString() );
+        String jnlpFileContent = patchJnlpFile( specializeJnlpTemplate( dreq.getHttpRequest(), path, template ), dreq );
 
         // Convert to bytes as a UTF-8 encoding
         byte[] byteContent = jnlpFileContent.getBytes( "UTF-8" );
 
         // Create entry
         DownloadResponse resp =
-                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId() );
-        jnlpFile = new JnlpFileEntry( resp, lastModified );
-        _jnlpFiles.put( reqUrl, jnlpFile );
-
-        return resp;
+                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId(),
+                                                          _gzipMinSize );
+        return new JnlpFileCache.Entry( resp, byteContent.length );
     }
 
     /* Main method to lookup an entry (NEW for JavaWebStart 1.5+) */
-    public synchronized DownloadResponse getJnlpFileEx( JnlpResource jnlpres, DownloadRequest dreq )
+    public DownloadResponse getJnlpFileEx( final JnlpResource jnlpres, final DownloadRequest dreq )
             throws IOException
     {
         String path = jnlpres.getPath();
-        URL resource = jnlpres.getResource();
         long lastModified = jnlpres.getLastModified();
 
         _log.addDebug( "lastModified: " + lastModified + " " + new Date( lastModified ) );
@@ -205,56 +268,45 @@ public class JnlpFileHandler
         }
 
         // fix for 4474854:  use the request URL as key to look up jnlp file
-        // in hash map
-        String reqUrl = HttpUtils.getRequestURL( dreq.getHttpRequest() ).toString();
+        // in hash map, or rather the parts of it the JNLP file depends on
+        String reqUrl = getCacheKey( jnlpres, dreq );
         // SQE: To support query string, we changed the hash key from Request URL to (Request URL + query string)
-        if ( dreq.getQuery() != null )
+        if ( reqUrl != null && dreq.getQuery() != null )
         {
-            reqUrl += dreq.getQuery();
+            reqUrl += "?" + dreq.getQuery();
         }
 
-        // Check if entry already exist in HashMap
-        JnlpFileEntry jnlpFile = (JnlpFileEntry) _jnlpFiles.get( reqUrl );
-
-        if ( jnlpFile != null && jnlpFile.getLastModified() == lastModified )
+        // Entry taken from the cache, or generated once for all concurrent requests
+        return _jnlpFiles.get( reqUrl, lastModified, new JnlpFileCache.Loader()
         {
-            // Entry found in cache, so return it
-            return jnlpFile.getResponse();
-        }
+            public JnlpFileCache.Entry load()
+                    throws IOException
+            {
+                return createJnlpFileEx( jnlpres, dreq );
+            }
+        } );
+    }
 
-        // Read information from WAR file
-        long timeStamp = lastModified;
+    private JnlpFileCache.Entry createJnlpFileEx( JnlpResource jnlpres, DownloadRequest dreq )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+
+        // Read information from WAR file, unless the template was read already
+        JnlpTemplate template = getTemplate( jnlpres );
+        long timeStamp = template.getTimeStamp();
         String mimeType = _servletContext.getMimeType( path );
         if ( mimeType == null )
         {
             mimeType = JNLP_MIME_TYPE;
         }
 
-        StringBuilder jnlpFileTemplate = new StringBuilder();
-        URLConnection conn = resource.openConnection();
-        BufferedReader br = new BufferedReader( new InputStreamReader( conn.getInputStream(), "UTF-8" ) );
-        String line = br.readLine();
-        if ( line != null && line.startsWith( "TS:" ) )
-        {
-            timeStamp = parseTimeStamp( line.substring( 3 ) );
-            _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
-            if ( timeStamp == 0 )
-            {
-                _log.addWarning( "servlet.log.warning.notimestamp", path );
-                timeStamp = lastModified;
-            }
-            line = br.readLine();
-        }
-        while ( line != null )
-        {
-            jnlpFileTemplate.append( line );
-            line = br.readLine();
-        }
-
-        String jnlpFileContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, jnlpFileTemplate.toString() );
+        String jnlpFileContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, template );
 
         /* SQE: We need to add query string back to href in jnlp file. We also need to handle JRE requirement for
-       * the test. We reconstruct the xml DOM object, modify the value, then regenerate the jnlpFileContent.
+       * the test. Unless a hook needs the DOM, the file is rewritten as a stream of events, only the affected
+       * attributes change. Otherwise we reconstruct the xml DOM object, modify the value, then regenerate the
+       * jnlpFileContent.
        */
         String query = dreq.getQuery();
         String testJRE = dreq.getTestJRE();
@@ -264,72 +316,185 @@ public class JnlpFileHandler
         // approach to always check href value caused some test case not run.
         if ( query != null )
         {
-            byte[] cb = jnlpFileContent.getBytes( "UTF-8" );
-            ByteArrayInputStream bis = new ByteArrayInputStream( cb );
             try
             {
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                Document document = builder.parse( bis );
-                if ( document != null && document.getNodeType() == Node.DOCUMENT_NODE )
+                StringWriter sw = new StringWriter( jnlpFileContent.length() + query.length() + 64 );
+                boolean modified;
+                if ( _hook == JnlpFileHandlerHook.IDENTITY )
+                {
+                    modified = JnlpFileRewriter.get().rewrite( jnlpFileContent, query, testJRE, dreq, _elementHooks, sw );
+                }
+                else
+                {
+                    jnlpFileContent = patchJnlpFile( jnlpFileContent, dreq );
+                    modified = rewriteDocument( jnlpFileContent, query, testJRE, dreq, sw );
+                }
+                jnlpFileContent = sw.toString();
+                _log.addDebug( "Converted jnlpFileContent: " + jnlpFileContent );
+                // Since we modified the file on the fly, we always update the timestamp value with current time
+                if ( modified )
                 {
-                    boolean modified = false;
-                    Element root = document.getDocumentElement();
-
-                    if ( root.hasAttribute( "href" ) )
-                    {
-                        String href = root.getAttribute( "href" );
-                        root.setAttribute( "href", href + "?" + query );
-                        modified = true;
-                    }
-                    // Update version value for j2se tag
-                    if ( testJRE != null )
-                    {
-                        NodeList j2seNL = root.getElementsByTagName( "j2se" );
-                        if ( j2seNL != null )
-                        {
-                            Element j2se = (Element) j2seNL.item( 0 );
-                            String ver = j2se.getAttribute( "version" );
-                            if ( ver.length() > 0 )
-                            {
-                                j2se.setAttribute( "version", testJRE );
-                                modified = true;
-                            }
-                        }
-                    }
-                    _hook.preCommit( dreq, document );
-                    TransformerFactory tFactory = TransformerFactory.newInstance();
-                    Transformer transformer = tFactory.newTransformer();
-                    DOMSource source = new DOMSource( document );
-                    StringWriter sw = new StringWriter();
-                    StreamResult result = new StreamResult( sw );
-                    transformer.transform( source, result );
-                    jnlpFileContent = sw.toString();
-                    _log.addDebug( "Converted jnlpFileContent: " + jnlpFileContent );
-                    // Since we modified the file on the fly, we always update the timestamp value with current time
-                    if ( modified )
-                    {
-                        timeStamp = new java.util.Date().getTime();
-                        _log.addDebug( "Last modified on the fly:  " + timeStamp );
-                    }
+                    timeStamp = new java.util.Date().getTime();
+                    _log.addDebug( "Last modified on the fly:  " + timeStamp );
                 }
             }
             catch ( Exception e )
             {
                 _log.addDebug( e.toString(), e );
+                // Served without the query, e.g. for a TestJRE without j2se element, but patched all the same
+                if ( _hook == JnlpFileHandlerHook.IDENTITY )
+                {
+                    jnlpFileContent = patchJnlpFile( jnlpFileContent, dreq );
+                }
             }
         }
+        else
+        {
+            jnlpFileContent = patchJnlpFile( jnlpFileContent, dreq );
+        }
 
         // Convert to bytes as a UTF-8 encoding
         byte[] byteContent = jnlpFileContent.getBytes( "UTF-8" );
 
         // Create entry
         DownloadResponse resp =
-                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId() );
-        jnlpFile = new JnlpFileEntry( resp, lastModified );
-        _jnlpFiles.put( reqUrl, jnlpFile );
+                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId(),
+                                                          _gzipMinSize );
+        return new JnlpFileCache.Entry( resp, byteContent.length );
+    }
 
-        return resp;
+    /**
+     * Applies the element hooks to a JNLP file, which is left as is if they fail.
+     */
+    private String patchJnlpFile( String jnlpFileContent, DownloadRequest dreq )
+    {
+        if ( _elementHooks.length == 0 )
+        {
+            return jnlpFileContent;
+        }
+        try
+        {
+            StringWriter sw = new StringWriter( jnlpFileContent.length() + 64 );
+            JnlpFileRewriter.get().rewrite( jnlpFileContent, null, null, dreq, _elementHooks, sw );
+            return sw.toString();
+        }
+        catch ( XMLStreamException | RuntimeException e )
+        {
+            _log.addDebug( e.toString(), e );
+            return jnlpFileContent;
+        }
+    }
+
+    /**
+     * Rewrites a JNLP file through a DOM, for hooks that need the document.
+     *
+     * @return true if an attribute was changed
+     */
+    private boolean rewriteDocument( String jnlpFileContent, String query, String testJRE, DownloadRequest dreq,
+                                     Writer out )
+            throws Exception
+    {
+        DocumentBuilder builder = DOCUMENT_BUILDERS.get();
+        builder.reset();
+        Document document = builder.parse( new InputSource( new StringReader( jnlpFileContent ) ) );
+        boolean modified = false;
+        Element root = document.getDocumentElement();
+
+        if ( root.hasAttribute( "href" ) )
+        {
+            String href = root.getAttribute( "href" );
+            root.setAttribute( "href", href + "?" + query );
+            modified = true;
+        }
+        // Update version value for j2se tag
+        if ( testJRE != null )
+        {
+            NodeList j2seNL = root.getElementsByTagName( "j2se" );
+            if ( j2seNL != null )
+            {
+                Element j2se = (Element) j2seNL.item( 0 );
+                String ver = j2se.getAttribute( "version" );
+                if ( ver.length() > 0 )
+                {
+                    j2se.setAttribute( "version", testJRE );
+                    modified = true;
+                }
+            }
+        }
+        _hook.preCommit( dreq, document );
+        Transformer transformer = TRANSFORMERS.get();
+        transformer.reset();
+        transformer.transform( new DOMSource( document ), new StreamResult( out ) );
+        return modified;
+    }
+
+    /**
+     * The JNLP file generated from a template only depends on the template, the name it was
+     * requested as, the version-id it is returned with, the URL prefix and the context path of
+     * the request, so requests for the same template share an entry whatever their URL. Element
+     * hooks add what their patches depend on.
+     *
+     * @return the key, or null if the file must be generated for this request only
+     */
+    private String getCacheKey( JnlpResource jnlpres, DownloadRequest dreq )
+    {
+        HttpServletRequest request = dreq.getHttpRequest();
+        StringBuilder key = new StringBuilder( jnlpres.getPath() ).append( ' ' ).append( jnlpres.getName() ).append(
+                ' ' ).append( jnlpres.getReturnVersionId() ).append( ' ' ).append( getUrlPrefix( request ) ).append(
+                request.getContextPath() );
+        for ( JnlpFileElementHook hook : _elementHooks )
+        {
+            String hookKey = hook.getCacheKey( dreq );
+            if ( hookKey == null )
+            {
+                return null;
+            }
+            key.append( '\u0000' ).append( hookKey );
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the parsed template of a JNLP file, reading it again if it changed.
+     */
+    private JnlpTemplate getTemplate( JnlpResource jnlpres )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+        long lastModified = jnlpres.getLastModified();
+        JnlpTemplate template = _templates.get( path );
+        if ( template != null && template.getLastModified() == lastModified )
+        {
+            return template;
+        }
+
+        long timeStamp = lastModified;
+        StringBuilder jnlpFileTemplate = new StringBuilder();
+        URLConnection conn = jnlpres.getResource().openConnection();
+        BufferedReader br = new BufferedReader( new InputStreamReader( conn.getInputStream(), "UTF-8" ) );
+        String line = br.readLine();
+        if ( line != null && line.startsWith( "TS:" ) )
+        {
+            timeStamp = parseTimeStamp( line.substring( 3 ) );
+            _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
+            if ( timeStamp == 0 )
+            {
+                _log.addWarning( "servlet.log.warning.notimestamp", path );
+                timeStamp = lastModified;
+            }
+            line = br.readLine();
+        }
+        while ( line != null )
+        {
+            jnlpFileTemplate.append( line );
+            line = br.readLine();
+        }
+
+        br.close();
+
+        template = new JnlpTemplate( jnlpFileTemplate.toString(), lastModified, timeStamp );
+        _templates.put( path, template );
+        return template;
     }
 
     /**
@@ -342,20 +507,16 @@ public class JnlpFileHandler
      * @param respath      TODO
      * @param jnlpTemplate TODO
      */
-    private String specializeJnlpTemplate( HttpServletRequest request, String respath, String jnlpTemplate )
+    private String specializeJnlpTemplate( HttpServletRequest request, String respath, JnlpTemplate jnlpTemplate )
     {
         String urlprefix = getUrlPrefix( request );
         int idx = respath.lastIndexOf( '/' ); //
         String name = respath.substring( idx + 1 );    // Exclude /
         String codebase = respath.substring( 0, idx + 1 ); // Include /
-        jnlpTemplate = substitute( jnlpTemplate, "$$name", name );
         // fix for 5039951: Add $$hostname macro
-        jnlpTemplate = substitute( jnlpTemplate, "$$hostname", request.getServerName() );
-        jnlpTemplate = substitute( jnlpTemplate, "$$codebase", urlprefix + request.getContextPath() + codebase );
-        jnlpTemplate = substitute( jnlpTemplate, "$$context", urlprefix + request.getContextPath() );
         // fix for 6256326: add $$site macro to sample jnlp servlet
-        jnlpTemplate = substitute( jnlpTemplate, "$$site", urlprefix );
-        return jnlpTemplate;
+        return jnlpTemplate.render( name, request.getServerName(), urlprefix + request.getContextPath() + codebase,
+                                    urlprefix + request.getContextPath(), urlprefix );
     }
 
     // This code is heavily inspired by the stuff in HttpUtils.getRequestURL
@@ -375,22 +536,6 @@ public class JnlpFileHandler
         return url.toString();
     }
 
-    private String substitute( String target, String key, String value )
-    {
-        int start = 0;
-        do
-        {
-            int idx = target.indexOf( key, start );
-            if ( idx == -1 )
-            {
-                return target;
-            }
-            target = target.substring( 0, idx ) + value + target.substring( idx + key.length() );
-            start = idx + value.length();
-        }
-        while ( true );
-    }
-
     /**
      * Parses a ISO 8601 Timestamp. The format of the timestamp is:
      * <p>
@@ -4,6 +4,9 @@ import org.w3c.dom.Document;
 
 /**
  * Hook for JNLP file request
+ * <p>
+ * The JNLP file is parsed into a DOM for the hook. Hooks that only change elements should
+ * implement {@link JnlpFileElementHook}, which is applied while the file is streamed.
  */
 public interface JnlpFileHandlerHook {
 
@@ -0,0 +1,315 @@
+/*
+ * @(#)JnlpFileRewriter.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a JNLP file without building a DOM: for a request with a query string, the
+ * query is appended to the href of the root element and the version of the first j2se
+ * element is replaced by the JRE under test, then the element hooks patch the elements
+ * they asked for. Every other event is copied through.
+ * <p>
+ * Factories are expensive to look up and create, so each thread keeps its own rewriter.
+ */
+final class JnlpFileRewriter
+{
+    private static final String HREF = "href";
+
+    private static final String VERSION = "version";
+
+    private static final QName J2SE = new QName( "j2se" );
+
+    // Lets the JDK parser report CDATA sections as such rather than as plain text
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final ThreadLocal<JnlpFileRewriter> REWRITERS = new ThreadLocal<JnlpFileRewriter>()
+    {
+        @Override
+        protected JnlpFileRewriter initialValue()
+        {
+            return new JnlpFileRewriter();
+        }
+    };
+
+    private final XMLInputFactory _inputFactory;
+
+    private final XMLOutputFactory _outputFactory;
+
+    private final XMLEventFactory _eventFactory;
+
+    private JnlpFileRewriter()
+    {
+        _inputFactory = XMLInputFactory.newInstance();
+        _inputFactory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+        if ( _inputFactory.isPropertySupported( REPORT_CDATA ) )
+        {
+            _inputFactory.setProperty( REPORT_CDATA, Boolean.TRUE );
+        }
+        // The DOCTYPE is copied through, but its external subset is never fetched
+        _inputFactory.setXMLResolver( new XMLResolver()
+        {
+            public Object resolveEntity( String publicID, String systemID, String baseURI, String namespace )
+            {
+                return new ByteArrayInputStream( new byte[0] );
+            }
+        } );
+        _outputFactory = XMLOutputFactory.newInstance();
+        _eventFactory = XMLEventFactory.newInstance();
+    }
+
+    /**
+     * @return the rewriter of the current thread
+     */
+    static JnlpFileRewriter get()
+    {
+        return REWRITERS.get();
+    }
+
+    /**
+     * Rewrites a JNLP file.
+     *
+     * @param content the JNLP file
+     * @param query   query string to append to the href of the root element, or null
+     * @param testJRE version to set on the first j2se element, or null
+     * @param dreq    the request the file is rewritten for
+     * @param hooks   hooks patching the elements
+     * @param out     writer for the rewritten file
+     * @return true if the href or the j2se version was changed
+     * @throws XMLStreamException if the file is not well-formed, or has no j2se element
+     *                            while testJRE is given
+     */
+    boolean rewrite( String content, String query, String testJRE, DownloadRequest dreq,
+                     JnlpFileElementHook[] hooks, Writer out )
+            throws XMLStreamException
+    {
+        XMLEventReader reader = _inputFactory.createXMLEventReader( new StringReader( content ) );
+        XMLEventWriter writer = _outputFactory.createXMLEventWriter( out );
+        try
+        {
+            boolean modified = false;
+            boolean j2seFound = false;
+            int depth = -1;
+            // Depth of the removed element whose content is skipped, or -1
+            int skipDepth = -1;
+            // The patched elements that are open, null for the others
+            List<JnlpElement> open = new ArrayList<JnlpElement>();
+            while ( reader.hasNext() )
+            {
+                XMLEvent event = reader.nextEvent();
+                if ( skipDepth >= 0 )
+                {
+                    if ( event.isStartElement() )
+                    {
+                        depth++;
+                    }
+                    else if ( event.isEndElement() && depth-- == skipDepth )
+                    {
+                        skipDepth = -1;
+                    }
+                    continue;
+                }
+                if ( event.isStartDocument() )
+                {
+                    // The file is sent as UTF-8 whatever the template declared
+                    event = _eventFactory.createStartDocument( "UTF-8", ( (StartDocument) event ).getVersion() );
+                }
+                else if ( event.isStartElement() )
+                {
+                    depth++;
+                    StartElement element = event.asStartElement();
+                    boolean isRoot = depth == 0 && query != null;
+                    boolean isJ2se = depth > 0 && testJRE != null && !j2seFound && J2SE.equals( element.getName() );
+                    boolean isHooked = isHooked( hooks, element.getName() );
+                    JnlpElement patched = null;
+                    if ( isRoot || isJ2se || isHooked )
+                    {
+                        patched = toJnlpElement( element, depth );
+                        String href = patched.getAttribute( HREF );
+                        if ( isRoot && href != null )
+                        {
+                            patched.setAttribute( HREF, href + "?" + query );
+                            modified = true;
+                        }
+                        if ( isJ2se )
+                        {
+                            j2seFound = true;
+                            String version = patched.getAttribute( VERSION );
+                            if ( version != null && version.length() > 0 )
+                            {
+                                patched.setAttribute( VERSION, testJRE );
+                                modified = true;
+                            }
+                        }
+                        for ( int i = 0; isHooked && i < hooks.length && !patched.isRemoved(); i++ )
+                        {
+                            if ( hooks[i].getElementNames().contains( patched.getName() ) )
+                            {
+                                hooks[i].patch( dreq, patched );
+                            }
+                        }
+                        if ( patched.isRemoved() )
+                        {
+                            skipDepth = depth;
+                            continue;
+                        }
+                        if ( patched.isChanged() )
+                        {
+                            event = toStartElement( element, patched );
+                        }
+                    }
+                    open.add( patched );
+                }
+                else if ( event.isEndElement() )
+                {
+                    depth--;
+                    JnlpElement patched = open.remove( open.size() - 1 );
+                    if ( patched != null )
+                    {
+                        addElements( writer, patched );
+                    }
+                }
+                writer.add( event );
+            }
+            if ( testJRE != null && !j2seFound )
+            {
+                // Like the DOM path, a JRE under test without a j2se element leaves the file unchanged
+                throw new XMLStreamException( "No j2se element to set the version " + testJRE + " on" );
+            }
+            writer.flush();
+            return modified;
+        }
+        finally
+        {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private static boolean isHooked( JnlpFileElementHook[] hooks, QName name )
+    {
+        if ( name.getNamespaceURI().length() > 0 )
+        {
+            return false;
+        }
+        for ( JnlpFileElementHook hook : hooks )
+        {
+            if ( hook.getElementNames().contains( name.getLocalPart() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static JnlpElement toJnlpElement( StartElement element, int depth )
+    {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for ( Iterator<?> it = element.getAttributes(); it.hasNext(); )
+        {
+            Attribute attribute = (Attribute) it.next();
+            if ( attribute.getName().getNamespaceURI().length() == 0 )
+            {
+                attributes.put( attribute.getName().getLocalPart(), attribute.getValue() );
+            }
+        }
+        return new JnlpElement( element.getName().getLocalPart(), depth, attributes );
+    }
+
+    private StartElement toStartElement( StartElement element, JnlpElement patched )
+    {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for ( Iterator<?> it = element.getAttributes(); it.hasNext(); )
+        {
+            Attribute attribute = (Attribute) it.next();
+            if ( attribute.getName().getNamespaceURI().length() > 0 )
+            {
+                attributes.add( attribute );
+            }
+        }
+        for ( Map.Entry<String, String> attribute : patched.getAttributes().entrySet() )
+        {
+            attributes.add( _eventFactory.createAttribute( attribute.getKey(), attribute.getValue() ) );
+        }
+        return _eventFactory.createStartElement( element.getName(), attributes.iterator(), element.getNamespaces() );
+    }
+
+    /* Writes the elements a hook added to the content of an element, before its end */
+    private void addElements( XMLEventWriter writer, JnlpElement patched )
+            throws XMLStreamException
+    {
+        List<JnlpElement> added = patched.getAddedElements();
+        if ( added == null )
+        {
+            return;
+        }
+        for ( JnlpElement element : added )
+        {
+            if ( element.isRemoved() )
+            {
+                continue;
+            }
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            for ( Map.Entry<String, String> attribute : element.getAttributes().entrySet() )
+            {
+                attributes.add( _eventFactory.createAttribute( attribute.getKey(), attribute.getValue() ) );
+            }
+            writer.add( _eventFactory.createStartElement( "", "", element.getName(), attributes.iterator(), null ) );
+            addElements( writer, element );
+            writer.add( _eventFactory.createEndElement( "", "", element.getName() ) );
+        }
+    }
+}
@@ -36,6 +36,8 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.VersionID;
+
 import javax.servlet.ServletContext;
 import java.io.File;
 import java.io.IOException;
@@ -97,6 +99,8 @@ public class JnlpResource
 
     private String _versionId;    // Version-id for resource, or null if none
 
+    private VersionID _parsedVersionId; // Version-id parsed once, used for matching
+
     private String[] _osList;     // List of OSes for which resource should be returned
 
     private String[] _archList;   // List of architectures for which the resource should be returned
@@ -134,6 +138,7 @@ public class JnlpResource
         _encoding = encoding;
         _name = name;
         _versionId = versionId;
+        _parsedVersionId = new VersionID( versionId );
         _osList = osList;
         _archList = archList;
         _localeList = localeList;
@@ -141,57 +146,31 @@ public class JnlpResource
         _returnVersionId = returnVersionId;
 
         /* Check for existance and get last modified timestamp */
+        String orig_path = path.trim();
+        _mimeType = getMimeType( context, orig_path );
+        if ( encoding != null )
+        {
+            // Same choice as the servlet: the smallest of the file and its pre-built variants the client accepts
+            ResourceMetadata selected = ResourceMetadata.load( context, orig_path ).negotiate( encoding );
+            _resource = selected.getResource();
+            _path = selected.getPath();
+            _lastModified = selected.getLastModified();
+            return;
+        }
         try
         {
-            String orig_path = path.trim();
-            String search_path = orig_path;
             _resource = context.getResource( orig_path );
-            _mimeType = getMimeType( context, orig_path );
             if ( _resource != null )
             {
-
-                boolean found = false;
-                // gzip compression
-                if ( !found && encoding != null &&
-                        encoding.toLowerCase().contains( DownloadResponse.GZIP_ENCODING ) )
+                // Get last modified time
+                _lastModified = getLastModified( context, _resource, orig_path );
+                if ( _lastModified != 0 )
                 {
-                    search_path = orig_path + ".gz";
-                    _resource = context.getResource( search_path );
-                    // Get last modified time
-                    if ( _resource != null )
-                    {
-                        _lastModified = getLastModified( context, _resource, search_path );
-                        if ( _lastModified != 0 )
-                        {
-                            _path = search_path;
-                            found = true;
-                        }
-                        else
-                        {
-                            _resource = null;
-                        }
-                    }
+                    _path = orig_path;
                 }
-
-                if ( !found )
+                else
                 {
-                    // no compression
-                    search_path = orig_path;
-                    _resource = context.getResource( search_path );
-                    // Get last modified time
-                    if ( _resource != null )
-                    {
-                        _lastModified = getLastModified( context, _resource, search_path );
-                        if ( _lastModified != 0 )
-                        {
-                            _path = search_path;
-                            found = true;
-                        }
-                        else
-                        {
-                            _resource = null;
-                        }
-                    }
+                    _resource = null;
                 }
             }
         }
@@ -201,6 +180,27 @@ public class JnlpResource
         }
     }
 
+    /**
+     * Creates a resource from metadata resolved earlier, without looking up anything.
+     */
+    JnlpResource( ResourceMetadata metadata, String name, String versionId, String[] osList, String[] archList,
+                  String[] localeList, String returnVersionId, String encoding )
+    {
+        _encoding = encoding;
+        _name = name;
+        _versionId = versionId;
+        _parsedVersionId = new VersionID( versionId );
+        _osList = osList;
+        _archList = archList;
+        _localeList = localeList;
+        _returnVersionId = returnVersionId;
+
+        _resource = metadata.getResource();
+        _path = metadata.getPath();
+        _lastModified = metadata.getLastModified();
+        _mimeType = metadata.getMimeType();
+    }
+
     long getLastModified( ServletContext context, URL resource, String path )
     {
         long lastModified = 0;
@@ -280,6 +280,14 @@ public class JnlpResource
         return _versionId;
     }
 
+    /**
+     * @return the version-id of this resource, parsed when the resource was created
+     */
+    public VersionID getParsedVersionId()
+    {
+        return _parsedVersionId;
+    }
+
     public String[] getOSList()
     {
         return _osList;
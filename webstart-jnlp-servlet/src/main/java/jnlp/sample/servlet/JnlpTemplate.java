@@ -0,0 +1,158 @@
+/*
+ * @(#)JnlpTemplate.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JNLP template parsed once into literal text and macros, so it can be rendered for
+ * any request in a single pass. The macros are $$name, $$hostname, $$codebase, $$context
+ * and $$site.
+ */
+public final class JnlpTemplate
+{
+    private static final String MACRO_PREFIX = "$$";
+
+    // Macro names, in the order of the values passed to render
+    private static final String[] MACROS = { "$$name", "$$hostname", "$$codebase", "$$context", "$$site" };
+
+    private final long _lastModified;
+
+    private final long _timeStamp;
+
+    // One more literal than macros, the literal before each macro and the one after the last
+    private final String[] _literals;
+
+    private final int[] _macros;
+
+    private final int[] _macroCounts = new int[MACROS.length];
+
+    private final int _literalLength;
+
+    /**
+     * @param template     the template text
+     * @param lastModified last modified time of the template resource
+     * @param timeStamp    time stamp of the JNLP file, from the template or else its last modified time
+     */
+    JnlpTemplate( String template, long lastModified, long timeStamp )
+    {
+        _lastModified = lastModified;
+        _timeStamp = timeStamp;
+
+        List<String> literals = new ArrayList<String>();
+        List<Integer> macros = new ArrayList<Integer>();
+        int literalStart = 0;
+        int index = template.indexOf( MACRO_PREFIX );
+        while ( index != -1 )
+        {
+            int macro = getMacroAt( template, index );
+            if ( macro == -1 )
+            {
+                index = template.indexOf( MACRO_PREFIX, index + 1 );
+                continue;
+            }
+            literals.add( template.substring( literalStart, index ) );
+            macros.add( macro );
+            _macroCounts[macro]++;
+            literalStart = index + MACROS[macro].length();
+            index = template.indexOf( MACRO_PREFIX, literalStart );
+        }
+        literals.add( template.substring( literalStart ) );
+
+        _literals = literals.toArray( new String[literals.size()] );
+        _macros = new int[macros.size()];
+        for ( int i = 0; i < _macros.length; i++ )
+        {
+            _macros[i] = macros.get( i );
+        }
+        int literalLength = 0;
+        for ( String literal : _literals )
+        {
+            literalLength += literal.length();
+        }
+        _literalLength = literalLength;
+    }
+
+    public long getLastModified()
+    {
+        return _lastModified;
+    }
+
+    public long getTimeStamp()
+    {
+        return _timeStamp;
+    }
+
+    /**
+     * Renders the template.
+     *
+     * @param name     value of $$name
+     * @param hostname value of $$hostname
+     * @param codebase value of $$codebase
+     * @param context  value of $$context
+     * @param site     value of $$site
+     * @return the JNLP file
+     */
+    public String render( String name, String hostname, String codebase, String context, String site )
+    {
+        String[] values = { name, hostname, codebase, context, site };
+        int length = _literalLength;
+        for ( int i = 0; i < values.length; i++ )
+        {
+            length += _macroCounts[i] * values[i].length();
+        }
+        StringBuilder jnlp = new StringBuilder( length );
+        for ( int i = 0; i < _macros.length; i++ )
+        {
+            jnlp.append( _literals[i] ).append( values[_macros[i]] );
+        }
+        return jnlp.append( _literals[_macros.length] ).toString();
+    }
+
+    private static int getMacroAt( String template, int index )
+    {
+        for ( int i = 0; i < MACROS.length; i++ )
+        {
+            if ( template.startsWith( MACROS[i], index ) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
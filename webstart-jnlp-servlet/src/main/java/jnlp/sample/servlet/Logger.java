@@ -38,14 +38,28 @@ package jnlp.sample.servlet;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
-
-/* A loging object used by the servlets */
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A loging object used by the servlets. By default, every event is written to the log
+ * file on the calling thread, which opens and closes the file for it. With logAsync,
+ * events are put into a bounded buffer instead, and a single thread keeping the file
+ * open writes them in batches. When the buffer is full, logBufferFull decides whether
+ * callers wait for room (block, the default) or the event is dropped and counted (drop).
+ */
 public class Logger
 {
     // Logging levels
@@ -74,6 +88,30 @@ public class Logger
 
     private final static String LOG_PATH = "logPath";
 
+    private final static String LOG_ASYNC = "logAsync";
+
+    private final static String LOG_BUFFER_SIZE = "logBufferSize";
+
+    private final static String LOG_BUFFER_FULL = "logBufferFull";
+
+    private final static String LOG_BUFFER_FULL_DROP = "drop";
+
+    private final static String LOG_BUFFER_FULL_BLOCK = "block";
+
+    private final static int DEFAULT_BUFFER_SIZE = 8192;
+
+    // Events written by the log thread per flush, at most
+    private final static int MAX_BATCH = 512;
+
+    // Time close waits for the log thread to write what is buffered
+    private final static long CLOSE_TIMEOUT = 5000;
+
+    // Time a caller waits for room in a full buffer before checking whether it was closed
+    private final static long PUT_TIMEOUT = 100;
+
+    // Put into the buffer by close to stop the log thread
+    private final static LogEvent STOP = new LogEvent( NONE, null, null );
+
     private int _loggingLevel = FATAL;
 
     private ServletContext _servletContext = null;
@@ -85,6 +123,32 @@ public class Logger
     // Localization
     ResourceBundle _resources = null;
 
+    // Asynchronous logging, null when events are written by the caller
+    private BlockingQueue<LogEvent> _events = null;
+
+    private boolean _dropWhenFull = false;
+
+    private final AtomicLong _dropped = new AtomicLong();
+
+    private Thread _thread = null;
+
+    private volatile boolean _closed = false;
+
+    private static final class LogEvent
+    {
+        private final int _level;
+
+        private final String _message;
+
+        private final Throwable _throwable;
+
+        LogEvent( int level, String message, Throwable throwable )
+        {
+            _level = level;
+            _message = message;
+            _throwable = throwable;
+        }
+    }
 
     /**
      * Initialize logging object. It reads the logLevel and pathLevel init parameters.
@@ -132,6 +196,109 @@ public class Logger
                 _loggingLevel = DEBUG;
             }
         }
+
+        if ( _logFile != null && _loggingLevel > NONE && Boolean.valueOf( config.getInitParameter( LOG_ASYNC ) ) )
+        {
+            startAsync( config );
+        }
+    }
+
+    private void startAsync( ServletConfig config )
+    {
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        String value = config.getInitParameter( LOG_BUFFER_SIZE );
+        if ( value != null )
+        {
+            try
+            {
+                bufferSize = Integer.parseInt( value.trim() );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                bufferSize = 0;
+            }
+            if ( bufferSize <= 0 )
+            {
+                addWarning( "servlet.log.warning.bad-init-param", LOG_BUFFER_SIZE, value );
+                bufferSize = DEFAULT_BUFFER_SIZE;
+            }
+        }
+        value = config.getInitParameter( LOG_BUFFER_FULL );
+        if ( value != null )
+        {
+            value = value.trim();
+            if ( value.equalsIgnoreCase( LOG_BUFFER_FULL_DROP ) )
+            {
+                _dropWhenFull = true;
+            }
+            else if ( !value.equalsIgnoreCase( LOG_BUFFER_FULL_BLOCK ) )
+            {
+                addWarning( "servlet.log.warning.bad-init-param", LOG_BUFFER_FULL, value );
+            }
+        }
+
+        _events = new ArrayBlockingQueue<LogEvent>( bufferSize );
+        _thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                writeEvents();
+            }
+        }, "jnlp-log-writer-" + _servletName );
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    /**
+     * Writes the buffered events and stops the log thread. Events logged afterwards are
+     * written by the caller, as are those the log thread left in the buffer.
+     */
+    public void close()
+    {
+        if ( _events == null || _closed )
+        {
+            return;
+        }
+        _closed = true;
+        try
+        {
+            if ( _events.offer( STOP, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS ) )
+            {
+                _thread.join( CLOSE_TIMEOUT );
+            }
+            if ( _thread.isAlive() )
+            {
+                _thread.interrupt();
+                _thread.join( CLOSE_TIMEOUT );
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+        writeLeftEvents();
+    }
+
+    /* Writes the events put after STOP, or left behind by a log thread that did not stop in time */
+    private void writeLeftEvents()
+    {
+        List<LogEvent> left = new ArrayList<LogEvent>();
+        _events.drainTo( left );
+        for ( LogEvent event : left )
+        {
+            if ( event != STOP )
+            {
+                writeEvent( event._level, event._message, event._throwable );
+            }
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full
+     */
+    public long getDroppedCount()
+    {
+        return _dropped.get();
     }
 
     // Logging API. Fatal, Warning, and Informational are localized    
@@ -186,6 +353,15 @@ public class Logger
         logEvent( DEBUG, msg, throwable );
     }
 
+    // The argument is only turned into a string, appended to msg, if debug messages are logged
+    public void addDebug( String msg, Object arg )
+    {
+        if ( isDebugLevel() )
+        {
+            logEvent( DEBUG, msg + arg, null );
+        }
+    }
+
     // Query to test for level
     boolean isNoneLevel()
     {
@@ -227,18 +403,30 @@ public class Logger
 
     private void logL10N( int level, String key, String arg, Throwable e )
     {
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg};
         logEvent( level, applyPattern( key, messageArguments ), e );
     }
 
     private void logL10N( int level, String key, String arg1, String arg2 )
     {
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg1, arg2};
         logEvent( level, applyPattern( key, messageArguments ), null );
     }
 
     private void logL10N( int level, String key, String arg1, String arg2, String arg3 )
     {
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg1, arg2, arg3};
         logEvent( level, applyPattern( key, messageArguments ), null );
     }
@@ -255,7 +443,7 @@ public class Logger
     }
 
     // The method that actually does the logging */
-    private synchronized void logEvent( int level, String string, Throwable throwable )
+    private void logEvent( int level, String string, Throwable throwable )
     {
         // Check if the event should be logged
         if ( level > _loggingLevel )
@@ -263,6 +451,48 @@ public class Logger
             return;
         }
 
+        if ( _events != null && !_closed )
+        {
+            LogEvent event = new LogEvent( level, string, throwable );
+            if ( _dropWhenFull )
+            {
+                if ( !_events.offer( event ) )
+                {
+                    _dropped.incrementAndGet();
+                }
+                else if ( _closed )
+                {
+                    writeLeftEvents();
+                }
+                return;
+            }
+            try
+            {
+                // Waits for room as long as the log thread runs, the buffer is not emptied once closed
+                while ( !_closed )
+                {
+                    if ( _events.offer( event, PUT_TIMEOUT, TimeUnit.MILLISECONDS ) )
+                    {
+                        if ( _closed )
+                        {
+                            // Closed meanwhile, possibly after emptying the buffer
+                            writeLeftEvents();
+                        }
+                        return;
+                    }
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                // Written by the caller instead
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeEvent( level, string, throwable );
+    }
+
+    private synchronized void writeEvent( int level, String string, Throwable throwable )
+    {
         if ( _logFile != null )
         {
             // No logfile specified, log using servlet context
@@ -287,6 +517,11 @@ public class Logger
         }
 
         // Otherwise, write to servlet context log
+        logToContext( string, throwable );
+    }
+
+    private void logToContext( String string, Throwable throwable )
+    {
         if ( throwable == null )
         {
             _servletContext.log( string );
@@ -296,5 +531,98 @@ public class Logger
             _servletContext.log( string, throwable );
         }
     }
-}
 
+    /* Run by the log thread, writes the buffered events in batches to the log file kept open */
+    private void writeEvents()
+    {
+        List<LogEvent> batch = new ArrayList<LogEvent>( MAX_BATCH );
+        Writer out = null;
+        boolean stopped = false;
+        long reported = 0;
+        while ( !stopped )
+        {
+            try
+            {
+                batch.add( _events.take() );
+            }
+            catch ( InterruptedException ie )
+            {
+                break;
+            }
+            _events.drainTo( batch, MAX_BATCH - 1 );
+            long dropped = _dropped.get() - reported;
+            reported += dropped;
+            if ( dropped > 0 )
+            {
+                batch.add( 0, new LogEvent( WARNING, applyPattern( "servlet.log.warning.log-events-dropped",
+                                                                   new Object[]{String.valueOf( dropped )} ), null ) );
+            }
+            int stop = batch.indexOf( STOP );
+            stopped = stop >= 0;
+            List<LogEvent> events = stopped ? batch.subList( 0, stop ) : batch;
+            int written = 0;
+            try
+            {
+                if ( out == null )
+                {
+                    out = new BufferedWriter( new FileWriter( _logFile, true ) );
+                }
+                for ( LogEvent event : events )
+                {
+                    out.write( format( event ) );
+                    written++;
+                }
+                out.flush();
+            }
+            catch ( IOException ioe )
+            {
+                out = close( out );
+                // Like a caller failing to write, fall back to the servlet context log
+                for ( LogEvent event : events.subList( written, events.size() ) )
+                {
+                    logToContext( event._message, event._throwable );
+                }
+            }
+            if ( stopped )
+            {
+                out = close( out );
+                // Events put after STOP were drained with it, write them like the callers do after close
+                for ( LogEvent event : batch.subList( stop + 1, batch.size() ) )
+                {
+                    writeEvent( event._level, event._message, event._throwable );
+                }
+            }
+            batch.clear();
+        }
+        close( out );
+    }
+
+    private String format( LogEvent event )
+    {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter( sw );
+        pw.println( _servletName + "(" + event._level + "): " + event._message );
+        if ( event._throwable != null )
+        {
+            event._throwable.printStackTrace( pw );
+        }
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static Writer close( Writer out )
+    {
+        if ( out != null )
+        {
+            try
+            {
+                out.close();
+            }
+            catch ( IOException ioe )
+            {
+                /* just ignore */
+            }
+        }
+        return null;
+    }
+}
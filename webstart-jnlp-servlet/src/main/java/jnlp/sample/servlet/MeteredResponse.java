@@ -0,0 +1,137 @@
+/*
+ * @(#)MeteredResponse.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * Remembers the status, content type and content length set on a response, for the
+ * {@link DownloadMetrics}, and passes everything on to the response it wraps.
+ */
+class MeteredResponse
+        extends HttpServletResponseWrapper
+{
+    private int _status = SC_OK;
+
+    private String _contentType;
+
+    private long _contentLength = -1;
+
+    MeteredResponse( HttpServletResponse response )
+    {
+        super( response );
+    }
+
+    int getMeteredStatus()
+    {
+        return _status;
+    }
+
+    String getMeteredContentType()
+    {
+        return _contentType;
+    }
+
+    long getMeteredContentLength()
+    {
+        return _contentLength;
+    }
+
+    public void setStatus( int sc )
+    {
+        _status = sc;
+        super.setStatus( sc );
+    }
+
+    @SuppressWarnings( "deprecation" )
+    public void setStatus( int sc, String sm )
+    {
+        _status = sc;
+        super.setStatus( sc, sm );
+    }
+
+    public void sendError( int sc )
+            throws IOException
+    {
+        _status = sc;
+        super.sendError( sc );
+    }
+
+    public void sendError( int sc, String msg )
+            throws IOException
+    {
+        _status = sc;
+        super.sendError( sc, msg );
+    }
+
+    public void sendRedirect( String location )
+            throws IOException
+    {
+        _status = SC_FOUND;
+        super.sendRedirect( location );
+    }
+
+    public void setContentType( String type )
+    {
+        _contentType = type;
+        super.setContentType( type );
+    }
+
+    public void setContentLength( int len )
+    {
+        _contentLength = len;
+        super.setContentLength( len );
+    }
+
+    public void setHeader( String name, String value )
+    {
+        if ( "Content-Length".equalsIgnoreCase( name ) )
+        {
+            try
+            {
+                _contentLength = ( value == null ) ? -1 : Long.parseLong( value );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                _contentLength = -1;
+            }
+        }
+        super.setHeader( name, value );
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * @(#)NegativeLookupCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers requests that could not be resolved, so clients that keep retrying
+ * a missing resource or version get the same error response without another
+ * catalog lookup or directory scan. Only the error code is kept, each hit gets
+ * a response of its own.
+ * <p>
+ * Entries are keyed by path, version-string, os, arch and locale of the request.
+ * An entry is dropped when its time-to-live expires, as soon as the catalog
+ * snapshot of the requested directory changes, or, for a directory that is not
+ * watched, as soon as the directory or its version.xml is modified. The directory is
+ * only checked for requests that failed before, other requests cost a map lookup.
+ * When the cache is full, the least recently used entries make room.
+ */
+public class NegativeLookupCache
+{
+    // Stands for the HTTP 404 response, other failures are JNLP error codes
+    private static final int NOT_FOUND = -1;
+
+    private final LruCache<String, Entry> _entries;
+
+    private final int _maxEntries;
+
+    private final long _ttlMillis;
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    private static final class Entry
+    {
+        private final int _errorCode;
+
+        private final long _directoryModified;
+
+        private final long _generation;
+
+        private final long _expires;
+
+        Entry( int errorCode, long directoryModified, long generation, long expires )
+        {
+            _errorCode = errorCode;
+            _directoryModified = directoryModified;
+            _generation = generation;
+            _expires = expires;
+        }
+    }
+
+    /**
+     * @param maxEntries maximum number of requests to remember
+     * @param ttlMillis  how long a failed lookup is remembered, 0 disables the cache
+     */
+    public NegativeLookupCache( int maxEntries, long ttlMillis )
+    {
+        _entries = new LruCache<String, Entry>( maxEntries );
+        _maxEntries = maxEntries;
+        _ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled()
+    {
+        return _ttlMillis > 0 && _maxEntries > 0;
+    }
+
+    /**
+     * Returns the error remembered for a request.
+     *
+     * @param dreq    the request
+     * @param catalog the catalog the request is looked up in
+     * @return a new error to return, or null if the request must be looked up
+     */
+    public ErrorResponseException lookup( DownloadRequest dreq, ResourceCatalog catalog )
+    {
+        if ( !isEnabled() )
+        {
+            return null;
+        }
+        String key = getKey( dreq );
+        Entry entry = _entries.get( key );
+        if ( entry != null )
+        {
+            // The directory is checked last, it costs a stat or two
+            if ( entry._generation == catalog.getGeneration( dreq ) && entry._expires > System.currentTimeMillis() &&
+                    entry._directoryModified == catalog.getDirectoryLastModified( dreq ) )
+            {
+                _hits.incrementAndGet();
+                return new ErrorResponseException( ( entry._errorCode == NOT_FOUND )
+                                                           ? DownloadResponse.getNotFoundResponse()
+                                                           : DownloadResponse.getJnlpErrorResponse( entry._errorCode ) );
+            }
+            _entries.remove( key, entry );
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remembers a failed lookup.
+     *
+     * The directory is checked right after the lookup, a change in between is only seen
+     * once the entry expires.
+     *
+     * @param dreq    the request
+     * @param catalog the catalog the request was looked up in
+     * @param error   the error that was returned
+     */
+    public void put( DownloadRequest dreq, ResourceCatalog catalog, ErrorResponseException error )
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+        long generation = catalog.getGeneration( dreq );
+        long directoryModified = catalog.getDirectoryLastModified( dreq );
+        long now = System.currentTimeMillis();
+        DownloadResponse response = error.getDownloadResponse();
+        int errorCode = ( response instanceof DownloadResponse.JnlpErrorResponse )
+                ? ( (DownloadResponse.JnlpErrorResponse) response ).getJnlpErrorCode()
+                : NOT_FOUND;
+        _entries.put( getKey( dreq ), new Entry( errorCode, directoryModified, generation, now + _ttlMillis ) );
+    }
+
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    public int size()
+    {
+        return _entries.size();
+    }
+
+    private static String getKey( DownloadRequest dreq )
+    {
+        StringBuilder sb = new StringBuilder( dreq.getPath() );
+        sb.append( dreq.isPlatformRequest() ? "\u0000P" : "\u0000V" );
+        append( sb, dreq.getVersion() );
+        append( sb, dreq.getOS() );
+        append( sb, dreq.getArch() );
+        append( sb, dreq.getLocale() );
+        return sb.toString();
+    }
+
+    private static void append( StringBuilder sb, String value )
+    {
+        sb.append( '\u0000' );
+        if ( value != null )
+        {
+            sb.append( value );
+        }
+    }
+
+    private static void append( StringBuilder sb, String[] values )
+    {
+        sb.append( '\u0000' );
+        if ( values != null )
+        {
+            for ( String value : values )
+            {
+                sb.append( value ).append( '\u0001' );
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.LruCache;
 import jnlp.sample.util.VersionID;
 import jnlp.sample.util.VersionString;
 import org.w3c.dom.Document;
@@ -46,76 +47,315 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ResourceCatalog
 {
     public static final String VERSION_XML_FILENAME = "version.xml";
 
+    /* Key used for requests without a directory part, ConcurrentHashMap does not accept null */
+    private static final String NO_DIR_KEY = "";
+
     private Logger _log = null;
 
     private ServletContext _servletContext = null;
 
-    private HashMap _entries;
+    private final ConcurrentMap<String, PathEntries> _entries;
+
+    /* Source of snapshot generations, 0 is reserved for directories without a snapshot */
+    private static final AtomicLong _generations = new AtomicLong();
+
+    /* Number of directory scans, the first scan of a directory included */
+    private final AtomicLong _scanCount = new AtomicLong();
+
+    /* Pushes directory changes into the catalog, or null if directories are checked per request */
+    private volatile ResourceCatalogWatcher _watcher = null;
+
+    /* Number of compiled version strings kept by default */
+    public static final int DEFAULT_VERSION_CACHE_SIZE = 512;
+
+    /* Version strings of the requests, compiled once per distinct value */
+    private final LruCache<String, VersionString> _versionStrings;
+
+    /* Entity tags of the resources handed out, per path and last modified time */
+    private final ETagCache _etags = new ETagCache( 4096 );
 
     /**
-     * Class to contain the information we know
-     * about a specific directory
+     * Orders resources with the highest version-id first. The sort is stable, so
+     * resources with equal version-ids keep their scan order, just as the linear
+     * search used to pick the first one.
      */
-    static private class PathEntries
+    private static final Comparator<JnlpResource> HIGHEST_VERSION_FIRST = new Comparator<JnlpResource>()
+    {
+        public int compare( JnlpResource r1, JnlpResource r2 )
+        {
+            VersionID v1 = r1.getParsedVersionId();
+            VersionID v2 = r2.getParsedVersionId();
+            if ( v2.isGreaterThan( v1 ) )
+            {
+                return 1;
+            }
+            return v1.isGreaterThan( v2 ) ? -1 : 0;
+        }
+    };
+
+    /**
+     * Immutable snapshot of the information we know
+     * about a specific directory. A directory is updated by
+     * building a new snapshot and swapping it into the catalog.
+     */
+    static private final class PathEntries
     {
         /* Version-based entries at this particular path */
-        private List _versionXmlList;
+        private final List<JnlpResource> _versionXmlList;
+
+        private final List<JnlpResource> _directoryList;
+
+        private final List<JnlpResource> _platformList;
 
-        private List _directoryList;
+        /* Same entries keyed by resource name, highest version first */
+        private final Map<String, JnlpResource[]> _versionXmlIndex;
 
-        private List _platformList;
+        private final Map<String, JnlpResource[]> _directoryIndex;
+
+        private final Map<String, JnlpResource[]> _platformIndex;
+
+        /* Paths of the files version.xml points at, those missing included */
+        private final Set<String> _versionXmlFiles;
 
         /* Last time this entry was updated */
-        private long _lastModified; // Last modified time of entry;
+        private final long _lastModified; // Last modified time of entry;
+
+        /* True if changes to the directory are pushed by the watcher */
+        private final boolean _watched;
 
-        public PathEntries( List versionXmlList, List directoryList, List platformList, long lastModified )
+        /* Unique for each snapshot, changes whenever the directory changes */
+        private final long _generation;
+
+        public PathEntries( List<JnlpResource> versionXmlList, List<JnlpResource> directoryList,
+                            List<JnlpResource> platformList, Set<String> versionXmlFiles, long lastModified,
+                            boolean watched )
         {
-            _versionXmlList = versionXmlList;
-            _directoryList = directoryList;
-            _platformList = platformList;
+            _versionXmlList = freeze( versionXmlList );
+            _directoryList = freeze( directoryList );
+            _platformList = freeze( platformList );
+            _versionXmlFiles = versionXmlFiles;
+            _versionXmlIndex = buildIndex( _versionXmlList );
+            _directoryIndex = buildIndex( _directoryList );
+            _platformIndex = buildIndex( _platformList );
             _lastModified = lastModified;
+            _watched = watched;
+            _generation = _generations.incrementAndGet();
         }
 
+        /* Copy of a snapshot with a new generation */
+        private PathEntries( PathEntries other )
+        {
+            _versionXmlList = other._versionXmlList;
+            _directoryList = other._directoryList;
+            _platformList = other._platformList;
+            _versionXmlFiles = other._versionXmlFiles;
+            _versionXmlIndex = other._versionXmlIndex;
+            _directoryIndex = other._directoryIndex;
+            _platformIndex = other._platformIndex;
+            _lastModified = other._lastModified;
+            _watched = other._watched;
+            _generation = _generations.incrementAndGet();
+        }
+
+        /**
+         * @return a snapshot with the same entries as this one, but a new generation
+         */
+        public PathEntries touch()
+        {
+            return new PathEntries( this );
+        }
 
-        public void setDirectoryList( List dirList )
+        /**
+         * @param dirList the rescanned directory entries
+         * @return a new snapshot sharing everything but the directory list with this one
+         */
+        public PathEntries withDirectoryList( List<JnlpResource> dirList )
         {
-            _directoryList = dirList;
+            return new PathEntries( _versionXmlList, dirList, _platformList, _versionXmlFiles, _lastModified,
+                                    _watched );
         }
 
-        public List getVersionXmlList()
+        /**
+         * @param path     path of the directory entry that changed
+         * @param resource the new entry for that path, or null if it was removed
+         * @return a new snapshot with the directory entry for path replaced
+         */
+        public PathEntries withDirectoryEntry( String path, JnlpResource resource )
+        {
+            List<JnlpResource> dirList = new ArrayList<JnlpResource>();
+            if ( _directoryList != null )
+            {
+                for ( JnlpResource res : _directoryList )
+                {
+                    if ( !path.equals( res.getPath() ) )
+                    {
+                        dirList.add( res );
+                    }
+                }
+            }
+            if ( resource != null )
+            {
+                dirList.add( resource );
+            }
+            return withDirectoryList( dirList );
+        }
+
+        /**
+         * @param versionXmlList the version.xml entries
+         * @param platformList   the platform entries
+         * @return a new snapshot sharing the directory list with this one
+         */
+        public PathEntries withVersionXmlLists( List<JnlpResource> versionXmlList, List<JnlpResource> platformList )
+        {
+            return new PathEntries( versionXmlList, _directoryList, platformList, _versionXmlFiles, _lastModified,
+                                    _watched );
+        }
+
+        /**
+         * @param path path of a file
+         * @return true if version.xml points at the file, whether it exists or not
+         */
+        public boolean isVersionXmlFile( String path )
+        {
+            return _versionXmlFiles.contains( path );
+        }
+
+        public List<JnlpResource> getVersionXmlList()
         {
             return _versionXmlList;
         }
 
-        public List getDirectoryList()
+        public List<JnlpResource> getDirectoryList()
         {
             return _directoryList;
         }
 
-        public List getPlatformList()
+        public List<JnlpResource> getPlatformList()
         {
             return _platformList;
         }
 
+        public JnlpResource[] getVersionXmlCandidates( String name )
+        {
+            return _versionXmlIndex.get( name );
+        }
+
+        public JnlpResource[] getDirectoryCandidates( String name )
+        {
+            return _directoryIndex.get( name );
+        }
+
+        public JnlpResource[] getPlatformCandidates( String name )
+        {
+            return _platformIndex.get( name );
+        }
+
         public long getLastModified()
         {
             return _lastModified;
         }
+
+        public boolean isWatched()
+        {
+            return _watched;
+        }
+
+        public long getGeneration()
+        {
+            return _generation;
+        }
+
+        private static List<JnlpResource> freeze( List<JnlpResource> list )
+        {
+            if ( list == null )
+            {
+                return null;
+            }
+            return Collections.unmodifiableList( new ArrayList<JnlpResource>( list ) );
+        }
+
+        private static Map<String, JnlpResource[]> buildIndex( List<JnlpResource> list )
+        {
+            if ( list == null || list.isEmpty() )
+            {
+                return Collections.emptyMap();
+            }
+            Map<String, List<JnlpResource>> byName = new HashMap<String, List<JnlpResource>>();
+            for ( JnlpResource res : list )
+            {
+                List<JnlpResource> candidates = byName.get( res.getName() );
+                if ( candidates == null )
+                {
+                    candidates = new ArrayList<JnlpResource>();
+                    byName.put( res.getName(), candidates );
+                }
+                candidates.add( res );
+            }
+            Map<String, JnlpResource[]> index = new HashMap<String, JnlpResource[]>( byName.size() * 2 );
+            for ( Map.Entry<String, List<JnlpResource>> e : byName.entrySet() )
+            {
+                List<JnlpResource> candidates = e.getValue();
+                Collections.sort( candidates, HIGHEST_VERSION_FIRST );
+                index.put( e.getKey(), candidates.toArray( new JnlpResource[candidates.size()] ) );
+            }
+            return Collections.unmodifiableMap( index );
+        }
     }
 
     public ResourceCatalog( ServletContext servletContext, Logger log )
     {
-        _entries = new HashMap();
+        this( servletContext, log, DEFAULT_VERSION_CACHE_SIZE );
+    }
+
+    /**
+     * @param servletContext    context the resources are looked up in
+     * @param log               logger
+     * @param versionCacheSize  number of compiled version strings kept
+     */
+    public ResourceCatalog( ServletContext servletContext, Logger log, int versionCacheSize )
+    {
+        _entries = new ConcurrentHashMap<String, PathEntries>();
         _servletContext = servletContext;
         _log = log;
+        _versionStrings = new LruCache<String, VersionString>( versionCacheSize );
+    }
+
+    /**
+     * Returns the compiled form of a version string, compiling it once per distinct value.
+     *
+     * @param vs the version string, may be null
+     * @return the compiled version string
+     */
+    public VersionString getVersionString( String vs )
+    {
+        if ( vs == null )
+        {
+            return VersionString.getInstance( null );
+        }
+        VersionString result = _versionStrings.get( vs );
+        if ( result == null )
+        {
+            result = VersionString.getInstance( vs );
+            _versionStrings.put( vs, result );
+        }
+        return result;
     }
 
 
@@ -136,21 +376,19 @@ public class ResourceCatalog
             name = path.substring( idx + 1 ); // Exclude '/'
             dir = path.substring( 0, idx + 1 ); // Include '/'
         }
+        String key = ( dir == null ) ? NO_DIR_KEY : dir;
 
-        // Lookup up already parsed entries, and san directory for entries if neccesary
-        PathEntries pentries = (PathEntries) _entries.get( dir );
-        JnlpResource xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
-        if ( pentries == null ||
-                ( xmlVersionResPath.exists() && xmlVersionResPath.getLastModified() > pentries.getLastModified() ) )
+        // Lookup up already parsed entries, and san directory for entries if neccesary.
+        // Watched directories are kept up to date by the watcher, so they are never checked here.
+        PathEntries pentries = _entries.get( key );
+        if ( pentries == null || !pentries.isWatched() )
         {
-            _log.addInformational( "servlet.log.scandir", dir );
-            List dirList = scanDirectory( dir, dreq );
-            // Scan XML file
-            List versionList = new ArrayList();
-            List platformList = new ArrayList();
-            parseVersionXML( versionList, platformList, dir, xmlVersionResPath );
-            pentries = new PathEntries( versionList, dirList, platformList, xmlVersionResPath.getLastModified() );
-            _entries.put( dir, pentries );
+            JnlpResource xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
+            if ( pentries == null ||
+                    ( xmlVersionResPath.exists() && xmlVersionResPath.getLastModified() > pentries.getLastModified() ) )
+            {
+                pentries = install( key, pentries, buildPathEntries( dir, dreq, xmlVersionResPath ) );
+            }
         }
 
         // Search for a match
@@ -158,7 +396,7 @@ public class ResourceCatalog
 
         if ( dreq.isPlatformRequest() )
         {
-            int sts = findMatch( pentries.getPlatformList(), name, dreq, result );
+            int sts = findMatch( pentries.getPlatformCandidates( name ), dreq, result );
             if ( sts != DownloadResponse.STS_00_OK )
             {
                 throw new ErrorResponseException( DownloadResponse.getJnlpErrorResponse( sts ) );
@@ -167,18 +405,27 @@ public class ResourceCatalog
         else
         {
             // First lookup in versions.xml file
-            int sts1 = findMatch( pentries.getVersionXmlList(), name, dreq, result );
+            int sts1 = findMatch( pentries.getVersionXmlCandidates( name ), dreq, result );
             if ( sts1 != DownloadResponse.STS_00_OK )
             {
                 // Then lookup in directory
-                int sts2 = findMatch( pentries.getDirectoryList(), name, dreq, result );
+                int sts2 = findMatch( pentries.getDirectoryCandidates( name ), dreq, result );
                 if ( sts2 != DownloadResponse.STS_00_OK )
                 {
 
                     // fix for 4450104
-                    // try rescan and see if it helps
-                    pentries.setDirectoryList( scanDirectory( dir, dreq ) );
-                    sts2 = findMatch( pentries.getDirectoryList(), name, dreq, result );
+                    // try rescan and see if it helps. Not needed if the watcher keeps the entries up to date
+                    if ( !pentries.isWatched() )
+                    {
+                        // A rescan that finds the same files keeps the snapshot and its generation,
+                        // so the failures remembered for the directory stay valid
+                        List<JnlpResource> dirList = scanDirectory( dir, dreq );
+                        if ( !isSameFiles( pentries.getDirectoryList(), dirList ) )
+                        {
+                            pentries = install( key, pentries, pentries.withDirectoryList( dirList ) );
+                            sts2 = findMatch( pentries.getDirectoryCandidates( name ), dreq, result );
+                        }
+                    }
                     // try again after rescanning directory
                     if ( sts2 != DownloadResponse.STS_00_OK )
                     {
@@ -192,6 +439,362 @@ public class ResourceCatalog
         return result[0];
     }
 
+    /**
+     * Swaps a snapshot built from another one into the catalog, unless the watcher or
+     * another request swapped in a newer one in the meantime.
+     *
+     * @param key     the directory
+     * @param old     the snapshot the new one was built from, or null if there was none
+     * @param updated the new snapshot
+     * @return the snapshot to use: the new one, or the one swapped in by someone else
+     */
+    private PathEntries install( String key, PathEntries old, PathEntries updated )
+    {
+        boolean installed =
+                ( old == null ) ? _entries.putIfAbsent( key, updated ) == null : _entries.replace( key, old, updated );
+        if ( installed )
+        {
+            return updated;
+        }
+        PathEntries current = _entries.get( key );
+        return ( current == null ) ? updated : current;
+    }
+
+    /**
+     * Scans a directory and its version.xml file into a new snapshot. If a watcher is
+     * running and the directory is exploded on disk, the directory is registered with
+     * the watcher first, so no change between the scan and the registration is lost.
+     */
+    private PathEntries buildPathEntries( String dir, DownloadRequest dreq, JnlpResource xmlVersionResPath )
+    {
+        boolean watched = false;
+        ResourceCatalogWatcher watcher = _watcher;
+        if ( watcher != null && dir != null )
+        {
+            String realPath = _servletContext.getRealPath( dir );
+            if ( realPath != null )
+            {
+                watched = watcher.watch( dir, new File( realPath ) );
+            }
+        }
+        _log.addInformational( "servlet.log.scandir", dir );
+        List<JnlpResource> dirList = scanDirectory( dir, dreq );
+        // Scan XML file
+        List<JnlpResource> versionList = new ArrayList<JnlpResource>();
+        List<JnlpResource> platformList = new ArrayList<JnlpResource>();
+        Set<String> versionXmlFiles = new HashSet<String>();
+        parseVersionXML( versionList, platformList, versionXmlFiles, dir, xmlVersionResPath );
+        return new PathEntries( versionList, dirList, platformList, Collections.unmodifiableSet( versionXmlFiles ),
+                                xmlVersionResPath.getLastModified(), watched );
+    }
+
+    /**
+     * Starts a background watcher that pushes changes of exploded directories into the
+     * catalog. Directories that are not available on disk (unexploded WAR files) keep
+     * being checked on each request.
+     *
+     * @throws IOException if the file system does not support watching directories
+     */
+    public void startWatching()
+            throws IOException
+    {
+        if ( _watcher == null )
+        {
+            _watcher = new ResourceCatalogWatcher( this, _log );
+        }
+    }
+
+    /**
+     * Stops the background watcher, if any.
+     */
+    public void destroy()
+    {
+        ResourceCatalogWatcher watcher = _watcher;
+        _watcher = null;
+        if ( watcher != null )
+        {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Called by the watcher when an entry of a watched directory was created, modified
+     * or deleted. Directory entries, and the version.xml entries for a file that was
+     * modified, are updated in place. Only a change of version.xml, or a file it points
+     * at coming or going, rebuilds the whole directory.
+     *
+     * @param dir      the watched directory, as a path in the web application
+     * @param filename name of the entry that changed
+     */
+    void entryChanged( String dir, String filename )
+    {
+        PathEntries pentries = _entries.get( dir );
+        if ( pentries == null )
+        {
+            return;
+        }
+        String path = dir + filename;
+        if ( filename.equals( VERSION_XML_FILENAME ) ||
+                ( pentries.isVersionXmlFile( path ) && isFile( path ) != isListed( pentries, path ) ) )
+        {
+            directoryChanged( dir );
+            return;
+        }
+        JnlpResource res = null;
+        if ( filename.indexOf( "__" ) != -1 )
+        {
+            res = parseFileEntry( dir, filename );
+            if ( res != null && !res.exists() )
+            {
+                res = null;
+            }
+        }
+        if ( _log.isDebugLevel() )
+        {
+            _log.addDebug( "Directory entry changed: " + path + " -> " + res );
+        }
+        // Entries that are not version-based only change the generation of the snapshot.
+        // Retry if a request thread swapped in a new snapshot in the meantime
+        while ( pentries != null )
+        {
+            PathEntries updated = ( filename.indexOf( "__" ) == -1 )
+                    ? pentries.touch()
+                    : pentries.withDirectoryEntry( path, res );
+            // version.xml entries for the file must see its new timestamp
+            List<JnlpResource> versionXmlList = refreshEntries( updated.getVersionXmlList(), path );
+            List<JnlpResource> platformList = refreshEntries( updated.getPlatformList(), path );
+            if ( versionXmlList != null || platformList != null )
+            {
+                updated = updated.withVersionXmlLists(
+                        ( versionXmlList != null ) ? versionXmlList : updated.getVersionXmlList(),
+                        ( platformList != null ) ? platformList : updated.getPlatformList() );
+            }
+            if ( _entries.replace( dir, pentries, updated ) )
+            {
+                break;
+            }
+            pentries = _entries.get( dir );
+        }
+    }
+
+    private boolean isFile( String path )
+    {
+        String realPath = _servletContext.getRealPath( path );
+        return realPath != null && new File( realPath ).isFile();
+    }
+
+    /* True if two directory listings hold the same files, with the same last modified times */
+    private static boolean isSameFiles( List<JnlpResource> list, List<JnlpResource> other )
+    {
+        if ( list == null || other == null )
+        {
+            return list == other;
+        }
+        if ( list.size() != other.size() )
+        {
+            return false;
+        }
+        Map<String, Long> lastModified = new HashMap<String, Long>( list.size() * 2 );
+        for ( JnlpResource res : list )
+        {
+            lastModified.put( res.getPath(), res.getLastModified() );
+        }
+        for ( JnlpResource res : other )
+        {
+            Long time = lastModified.get( res.getPath() );
+            if ( time == null || time != res.getLastModified() )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* True if version.xml entries for the file were created, i.e. it existed when version.xml was read */
+    private static boolean isListed( PathEntries pentries, String path )
+    {
+        for ( JnlpResource res : pentries.getVersionXmlList() )
+        {
+            if ( path.equals( res.getPath() ) )
+            {
+                return true;
+            }
+        }
+        for ( JnlpResource res : pentries.getPlatformList() )
+        {
+            if ( path.equals( res.getPath() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param list entries read from version.xml
+     * @param path path of a file that changed
+     * @return a copy of the list with the entries for the file read again, or null if none points at it
+     */
+    private List<JnlpResource> refreshEntries( List<JnlpResource> list, String path )
+    {
+        List<JnlpResource> refreshed = null;
+        for ( int i = 0; i < list.size(); i++ )
+        {
+            JnlpResource res = list.get( i );
+            if ( path.equals( res.getPath() ) )
+            {
+                if ( refreshed == null )
+                {
+                    refreshed = new ArrayList<JnlpResource>( list );
+                }
+                refreshed.set( i, new JnlpResource( _servletContext, res.getName(), res.getVersionId(),
+                                                    res.getOSList(), res.getArchList(), res.getLocaleList(), path,
+                                                    res.getReturnVersionId() ) );
+            }
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return the number of times a directory was scanned, the first scan of each directory included
+     */
+    public long getScanCount()
+    {
+        return _scanCount.get();
+    }
+
+    /**
+     * Returns the generation of the snapshot for the directory of a request. The
+     * generation changes whenever the catalog information for that directory changes,
+     * so it can be used to invalidate information derived from a lookup.
+     *
+     * @param dreq the request
+     * @return the generation, or 0 if the directory has not been scanned yet
+     */
+    public long getGeneration( DownloadRequest dreq )
+    {
+        String path = dreq.getPath();
+        int idx = path.lastIndexOf( '/' );
+        PathEntries pentries = _entries.get( ( idx == -1 ) ? NO_DIR_KEY : path.substring( 0, idx + 1 ) );
+        return ( pentries == null ) ? 0 : pentries.getGeneration();
+    }
+
+    /**
+     * Returns when the directory of a request that is not watched last changed in a way
+     * that may turn a failed lookup into a successful one: a file was added, removed or
+     * renamed, or version.xml was modified. Watched directories get a new generation
+     * instead, and the directories of a packed web application do not change.
+     *
+     * @param dreq the request
+     * @return the last modified time of the directory or of its version.xml, whichever is
+     *         later, or 0 if the directory is watched or not on disk
+     */
+    public long getDirectoryLastModified( DownloadRequest dreq )
+    {
+        String path = dreq.getPath();
+        int idx = path.lastIndexOf( '/' );
+        if ( idx == -1 )
+        {
+            return 0;
+        }
+        String dir = path.substring( 0, idx + 1 );
+        PathEntries pentries = _entries.get( dir );
+        if ( pentries != null && pentries.isWatched() )
+        {
+            return 0;
+        }
+        String realPath = _servletContext.getRealPath( dir );
+        if ( realPath == null )
+        {
+            return 0;
+        }
+        File directory = new File( realPath );
+        return Math.max( directory.lastModified(), new File( directory, VERSION_XML_FILENAME ).lastModified() );
+    }
+
+    /**
+     * Returns the entity tag of a resource found in the catalog, or of one of its
+     * encoded variants. The content is digested the first time a version of the
+     * resource is asked for.
+     *
+     * @param res the resource
+     * @return the quoted entity tag, or null if the resource cannot be read
+     */
+    public String getETag( JnlpResource res )
+    {
+        return _etags.getETag( res );
+    }
+
+    /**
+     * Called by the watcher when a watched directory changed in a way that requires a
+     * full rescan, e.g. version.xml was modified or events were lost.
+     *
+     * @param dir the watched directory, as a path in the web application
+     */
+    void directoryChanged( String dir )
+    {
+        if ( _servletContext.getRealPath( dir ) == null )
+        {
+            directoryRemoved( dir );
+        }
+        else
+        {
+            // Retry if a request thread swapped in a new snapshot in the meantime
+            PathEntries pentries = _entries.get( dir );
+            while ( pentries != null )
+            {
+                JnlpResource xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
+                if ( _entries.replace( dir, pentries, buildPathEntries( dir, null, xmlVersionResPath ) ) )
+                {
+                    break;
+                }
+                pentries = _entries.get( dir );
+            }
+        }
+    }
+
+    /**
+     * Called by the watcher when a directory can no longer be watched. The directory is
+     * dropped from the catalog and scanned again on the next request.
+     *
+     * @param dir the directory, as a path in the web application
+     */
+    void directoryRemoved( String dir )
+    {
+        _entries.remove( dir );
+    }
+
+    /**
+     * Same as {@link #findMatch(List, String, DownloadRequest, JnlpResource[])}, but only
+     * looks at the candidates for a single name, ordered highest version first. The first
+     * match is therefore the best one, and the search stops there.
+     *
+     * @param candidates entries with the requested name, highest version-id first, or null
+     * @param dreq       the request to match
+     * @param result     array with room for one element, receives the match
+     * @return DownloadResponse.STS_00_OK or the most specific error code
+     */
+    private int findMatch( JnlpResource[] candidates, DownloadRequest dreq, JnlpResource[] result )
+    {
+        if ( candidates == null )
+        {
+            return DownloadResponse.ERR_10_NO_RESOURCE;
+        }
+        int error = DownloadResponse.ERR_10_NO_RESOURCE;
+        VersionString vs = getVersionString( dreq.getVersion() );
+        for ( JnlpResource respath : candidates )
+        {
+            int sts = matchEntry( respath.getName(), vs, dreq, respath, respath.getParsedVersionId() );
+            if ( sts == DownloadResponse.STS_00_OK )
+            {
+                result[0] = respath;
+                return sts;
+            }
+            error = Math.max( error, sts );
+        }
+        return error;
+    }
+
     /**
      * This method finds the best match, or return the best error code. The
      * result parameter must be an array with room for one element.
@@ -219,12 +822,12 @@ public class ResourceCatalog
         // Setup return values
         VersionID bestVersionId = null;
         int error = DownloadResponse.ERR_10_NO_RESOURCE;
-        VersionString vs = new VersionString( dreq.getVersion() );
+        VersionString vs = getVersionString( dreq.getVersion() );
         // Iterate through entries
         for ( Object aList : list )
         {
             JnlpResource respath = (JnlpResource) aList;
-            VersionID vid = new VersionID( respath.getVersionId() );
+            VersionID vid = respath.getParsedVersionId();
             int sts = matchEntry( name, vs, dreq, respath, vid );
             if ( sts == DownloadResponse.STS_00_OK )
             {
@@ -400,9 +1003,10 @@ public class ResourceCatalog
         return path;
     }
 
-    public List scanDirectory( String dirPath, DownloadRequest dreq )
+    public List<JnlpResource> scanDirectory( String dirPath, DownloadRequest dreq )
     {
-        ArrayList list = new ArrayList();
+        _scanCount.incrementAndGet();
+        List<JnlpResource> list = new ArrayList<JnlpResource>();
 
         // fix for 4474021
         if ( _servletContext.getRealPath( dirPath ) == null )
@@ -425,7 +1029,7 @@ public class ResourceCatalog
             return list;
         }
         File dir = new File( _servletContext.getRealPath( dirPath ) );
-        _log.addDebug( "File directory: " + dir );
+        _log.addDebug( "File directory: ", dir );
         if ( dir.exists() && dir.isDirectory() )
         {
             File[] entries = dir.listFiles();
@@ -436,7 +1040,7 @@ public class ResourceCatalog
                 {
                     if ( _log.isDebugLevel() )
                     {
-                        _log.addDebug( "Read file resource: " + jnlpres );
+                        _log.addDebug( "Read file resource: ", jnlpres );
                     }
                     list.add( jnlpres );
                 }
@@ -528,7 +1132,8 @@ public class ResourceCatalog
     }
 
     // Returns false if parsing failed
-    private void parseVersionXML( final List versionList, final List platformList, final String dir,
+    private void parseVersionXML( final List<JnlpResource> versionList, final List<JnlpResource> platformList,
+                                  final Set<String> files, final String dir,
                                   final JnlpResource versionRes )
     {
         if ( !versionRes.exists() )
@@ -596,6 +1201,7 @@ public class ResourceCatalog
                     }
                     else
                     {
+                        files.add( dir + file );
                         JnlpResource res =
                                 new JnlpResource( _servletContext, name, versionId, os, arch, locale, dir + file,
                                                   versionId );
@@ -604,7 +1210,7 @@ public class ResourceCatalog
                             versionList.add( res );
                             if ( _log.isDebugLevel() )
                             {
-                                _log.addDebug( "Read resource: " + res );
+                                _log.addDebug( "Read resource: ", res );
                             }
                         }
                         else
@@ -644,6 +1250,7 @@ public class ResourceCatalog
                     }
                     else
                     {
+                        files.add( dir + file );
                         JnlpResource res =
                                 new JnlpResource( _servletContext, name, versionId, os, arch, locale, dir + file,
                                                   productId );
@@ -652,7 +1259,7 @@ public class ResourceCatalog
                             platformList.add( res );
                             if ( _log.isDebugLevel() )
                             {
-                                _log.addDebug( "Read platform resource: " + res );
+                                _log.addDebug( "Read platform resource: ", res );
                             }
                         }
                         else
@@ -0,0 +1,190 @@
+/*
+ * @(#)ResourceCatalogWatcher.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Watches the exploded directories of the web application that the
+ * {@link ResourceCatalog} has scanned, and pushes created, modified and deleted
+ * entries into the catalog from a background thread. This way the request path
+ * neither checks the timestamp of version.xml nor rescans a directory on a miss.
+ */
+public class ResourceCatalogWatcher
+        implements Runnable
+{
+    private final ResourceCatalog _catalog;
+
+    private final Logger _log;
+
+    private final WatchService _watchService;
+
+    /* Directory in the web application for each registered key, a key is registered and
+       put in the map while holding the map, so the watcher thread cannot take it unknown */
+    private final ConcurrentMap<WatchKey, String> _directories = new ConcurrentHashMap<WatchKey, String>();
+
+    private final Thread _thread;
+
+    private volatile boolean _closed = false;
+
+    public ResourceCatalogWatcher( ResourceCatalog catalog, Logger log )
+            throws IOException
+    {
+        _catalog = catalog;
+        _log = log;
+        _watchService = FileSystems.getDefault().newWatchService();
+        _thread = new Thread( this, "jnlp-resource-catalog-watcher" );
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    /**
+     * Registers a directory. Registering the same directory again is harmless.
+     *
+     * @param dirPath path of the directory in the web application, ending with '/'
+     * @param dir     the directory on disk
+     * @return true if changes to the directory will be reported to the catalog
+     */
+    public boolean watch( String dirPath, File dir )
+    {
+        if ( _closed || !dir.isDirectory() )
+        {
+            return false;
+        }
+        try
+        {
+            synchronized ( _directories )
+            {
+                WatchKey key = dir.toPath().register( _watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                                      StandardWatchEventKinds.ENTRY_DELETE,
+                                                      StandardWatchEventKinds.ENTRY_MODIFY );
+                if ( _directories.putIfAbsent( key, dirPath ) == null )
+                {
+                    _log.addDebug( "Watching directory: " + dir );
+                }
+            }
+            return true;
+        }
+        catch ( IOException | ClosedWatchServiceException e )
+        {
+            _log.addWarning( "servlet.log.warning.watch.failed", dirPath, e );
+            return false;
+        }
+    }
+
+    /**
+     * Stops the watcher thread and releases the underlying watch service.
+     */
+    public void close()
+    {
+        _closed = true;
+        try
+        {
+            _watchService.close();
+        }
+        catch ( IOException ioe )
+        {
+            _log.addDebug( "Failed to close watch service", ioe );
+        }
+        _thread.interrupt();
+    }
+
+    public void run()
+    {
+        while ( !_closed )
+        {
+            WatchKey key;
+            try
+            {
+                key = _watchService.take();
+            }
+            catch ( InterruptedException | ClosedWatchServiceException e )
+            {
+                return;
+            }
+            String dirPath;
+            synchronized ( _directories )
+            {
+                // Waits for a registration in progress to put its key
+                dirPath = _directories.get( key );
+            }
+            if ( dirPath == null )
+            {
+                // Left over from a directory that was removed, no snapshot is marked watched by it
+                key.cancel();
+                continue;
+            }
+            try
+            {
+                for ( WatchEvent<?> event : key.pollEvents() )
+                {
+                    if ( event.kind() == StandardWatchEventKinds.OVERFLOW )
+                    {
+                        // Events were lost, so the whole directory must be scanned again
+                        _catalog.directoryChanged( dirPath );
+                    }
+                    else
+                    {
+                        Path name = (Path) event.context();
+                        _catalog.entryChanged( dirPath, name.toString() );
+                    }
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                _log.addWarning( "servlet.log.warning.watch.failed", dirPath, e );
+                _catalog.directoryRemoved( dirPath );
+            }
+            if ( !key.reset() )
+            {
+                // The directory is gone or no longer accessible
+                _directories.remove( key );
+                _catalog.directoryRemoved( dirPath );
+            }
+        }
+    }
+}
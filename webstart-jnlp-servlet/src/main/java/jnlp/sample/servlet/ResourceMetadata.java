@@ -0,0 +1,227 @@
+/*
+ * @(#)ResourceMetadata.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.servlet.ServletContext;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a request needs to know about a file of the web application, resolved once
+ * for a path: the location of the file, its length, last modified time and mime
+ * type, and the pre-built encoded variants next to it (path + ".pack.gz" and
+ * path + ".gz"), so the variant sent can be negotiated without looking them up.
+ */
+public final class ResourceMetadata
+{
+    private static final ResourceMetadata[] NO_VARIANTS = new ResourceMetadata[0];
+
+    private final String _path;
+
+    private final URL _resource;
+
+    private final long _contentLength;
+
+    private final long _lastModified;
+
+    private final String _mimeType;
+
+    private final String _contentEncoding;
+
+    private final ResourceMetadata[] _variants;
+
+    ResourceMetadata( JnlpResource res, long contentLength, String mimeType, String contentEncoding,
+                      ResourceMetadata[] variants )
+    {
+        _path = res.getPath();
+        _resource = res.getResource();
+        _contentLength = contentLength;
+        _lastModified = res.getLastModified();
+        _mimeType = mimeType;
+        _contentEncoding = contentEncoding;
+        _variants = ( variants == null ) ? NO_VARIANTS : variants;
+    }
+
+    /**
+     * Looks up a file of the web application and its pre-built variants.
+     *
+     * @param context servlet context
+     * @param path    path of the file
+     * @return the metadata, which does not exist if there is no such file
+     */
+    static ResourceMetadata load( ServletContext context, String path )
+    {
+        JnlpResource res = new JnlpResource( context, path );
+        if ( !res.exists() )
+        {
+            return new ResourceMetadata( res, -1, res.getMimeType(), null, null );
+        }
+        List<ResourceMetadata> variants = new ArrayList<ResourceMetadata>( 2 );
+        addVariant( context, variants, res, ".pack.gz", DownloadResponse.PACK200_GZIP_ENCODING );
+        addVariant( context, variants, res, ".gz", DownloadResponse.GZIP_ENCODING );
+        return new ResourceMetadata( res, getContentLength( res.getResource() ), res.getMimeType(), null,
+                                     variants.toArray( new ResourceMetadata[variants.size()] ) );
+    }
+
+    private static void addVariant( ServletContext context, List<ResourceMetadata> variants, JnlpResource res,
+                                    String suffix, String encoding )
+    {
+        JnlpResource variant = new JnlpResource( context, res.getPath() + suffix );
+        if ( variant.exists() )
+        {
+            variants.add( new ResourceMetadata( variant, getContentLength( variant.getResource() ), res.getMimeType(),
+                                                encoding, null ) );
+        }
+    }
+
+    private static long getContentLength( URL resource )
+    {
+        try
+        {
+            URLConnection conn = resource.openConnection();
+            long length = conn.getContentLengthLong();
+            // Connecting to a file: or jar: URL opens the file, release it right away
+            conn.getInputStream().close();
+            return length;
+        }
+        catch ( IOException ioe )
+        {
+            return -1;
+        }
+    }
+
+    public boolean exists()
+    {
+        return _resource != null;
+    }
+
+    /**
+     * @return path of the file, or null if there is none
+     */
+    public String getPath()
+    {
+        return _path;
+    }
+
+    public URL getResource()
+    {
+        return _resource;
+    }
+
+    /**
+     * @return length of the file, or -1 if unknown
+     */
+    public long getContentLength()
+    {
+        return _contentLength;
+    }
+
+    public long getLastModified()
+    {
+        return _lastModified;
+    }
+
+    /**
+     * @return mime type of the resource; an encoded variant has the mime type of the resource it encodes
+     */
+    public String getMimeType()
+    {
+        return _mimeType;
+    }
+
+    /**
+     * @return the content encoding of the file, or null for the resource itself
+     */
+    public String getContentEncoding()
+    {
+        return _contentEncoding;
+    }
+
+    /**
+     * @return true if the resource has encoded variants, so the response depends on Accept-Encoding
+     */
+    public boolean hasVariants()
+    {
+        return _variants.length > 0;
+    }
+
+    /**
+     * Chooses what to send for an Accept-Encoding header: the smallest of the resource
+     * and its variants among those the client accepts, the one with the higher quality
+     * value if they have the same size. The resource itself is sent if nothing is
+     * acceptable.
+     *
+     * @param acceptEncoding Accept-Encoding of the request, may be null
+     * @return this or one of the variants
+     */
+    public ResourceMetadata negotiate( String acceptEncoding )
+    {
+        ResourceMetadata best = null;
+        float bestQuality = 0;
+        for ( int i = -1; i < _variants.length; i++ )
+        {
+            ResourceMetadata candidate = ( i < 0 ) ? this : _variants[i];
+            float quality = DownloadResponse.getEncodingQuality( acceptEncoding, candidate._contentEncoding );
+            if ( quality <= 0 )
+            {
+                continue;
+            }
+            if ( best == null || candidate.getSortLength() < best.getSortLength() ||
+                    ( candidate.getSortLength() == best.getSortLength() && quality > bestQuality ) )
+            {
+                best = candidate;
+                bestQuality = quality;
+            }
+        }
+        return ( best == null ) ? this : best;
+    }
+
+    /* Files of unknown length are only chosen when nothing else is acceptable */
+    private long getSortLength()
+    {
+        return ( _contentLength < 0 ) ? Long.MAX_VALUE : _contentLength;
+    }
+
+    public String toString()
+    {
+        return "ResourceMetadata[" + _path + " length=" + _contentLength + " lastModified=" + _lastModified +
+                " mimeType=" + _mimeType + " encoding=" + _contentEncoding + " variants=" + _variants.length + "]";
+    }
+}
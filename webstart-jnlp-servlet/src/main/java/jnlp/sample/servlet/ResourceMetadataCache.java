@@ -0,0 +1,148 @@
+/*
+ * @(#)ResourceMetadataCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.LruCache;
+
+import javax.servlet.ServletContext;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the metadata of the files served, so that frequently requested files
+ * are served without asking the servlet context for resources, opening URL
+ * connections or checking files on disk.
+ * <p>
+ * Entries are keyed by path and hold the pre-built encoded variants of the file,
+ * so negotiating the content encoding needs no lookup either. An entry is dropped
+ * when its time-to-live expires, or as soon as the catalog snapshot of the requested
+ * directory changes, which for watched directories happens whenever a file changes.
+ * When the cache is full, the least recently used entries make room.
+ */
+public class ResourceMetadataCache
+{
+    private final ServletContext _servletContext;
+
+    private final LruCache<String, Entry> _entries;
+
+    private final int _maxEntries;
+
+    private final long _ttlMillis;
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    private static final class Entry
+    {
+        private final ResourceMetadata _metadata;
+
+        private final long _generation;
+
+        private final long _expires;
+
+        Entry( ResourceMetadata metadata, long generation, long expires )
+        {
+            _metadata = metadata;
+            _generation = generation;
+            _expires = expires;
+        }
+    }
+
+    /**
+     * @param servletContext context the files are looked up in
+     * @param maxEntries     maximum number of files to remember
+     * @param ttlMillis      how long metadata is trusted, 0 disables the cache
+     */
+    public ResourceMetadataCache( ServletContext servletContext, int maxEntries, long ttlMillis )
+    {
+        _servletContext = servletContext;
+        _entries = new LruCache<String, Entry>( maxEntries );
+        _maxEntries = maxEntries;
+        _ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled()
+    {
+        return _ttlMillis > 0 && _maxEntries > 0;
+    }
+
+    /**
+     * Returns the metadata of a file.
+     *
+     * @param path       path of the file in the web application
+     * @param generation current catalog generation for the directory of the request
+     * @return the metadata, which tells whether the file exists
+     */
+    public ResourceMetadata get( String path, long generation )
+    {
+        if ( !isEnabled() )
+        {
+            return ResourceMetadata.load( _servletContext, path );
+        }
+        String key = path;
+        long now = System.currentTimeMillis();
+        Entry entry = _entries.get( key );
+        if ( entry != null )
+        {
+            if ( entry._generation == generation && entry._expires > now )
+            {
+                _hits.incrementAndGet();
+                return entry._metadata;
+            }
+            _entries.remove( key, entry );
+        }
+        _misses.incrementAndGet();
+        ResourceMetadata metadata = ResourceMetadata.load( _servletContext, path );
+        _entries.put( key, new Entry( metadata, generation, now + _ttlMillis ) );
+        return metadata;
+    }
+
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    public int size()
+    {
+        return _entries.size();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * @(#)LruCache.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent map bounded by a number of entries and a total weight, which evicts
+ * the least recently used entries when either budget is exceeded.
+ * <p>
+ * Reads take no lock, they only record the time of the access. When an insertion
+ * takes the cache over budget, whichever thread notices it evicts, while the others
+ * go on; eviction sorts a snapshot of the access times and goes down to a little
+ * below the entry budget, so a cache that is full does not sort on every insertion.
+ * <p>
+ * Subclasses weigh their values, may keep values in use from being evicted, and are
+ * told about evicted values, for instance to delete the file behind them. Values
+ * replaced or removed explicitly are returned to the caller instead.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V>
+{
+    private final ConcurrentMap<K, Node<V>> _nodes = new ConcurrentHashMap<K, Node<V>>();
+
+    private final int _maxEntries;
+
+    private final int _lowEntries;
+
+    private final long _maxWeight;
+
+    private final AtomicLong _weight = new AtomicLong();
+
+    private final AtomicLong _evictions = new AtomicLong();
+
+    private final AtomicBoolean _evicting = new AtomicBoolean();
+
+    private static final class Node<V>
+    {
+        private final V _value;
+
+        private final long _weight;
+
+        private volatile long _lastAccess;
+
+        Node( V value, long weight )
+        {
+            _value = value;
+            _weight = weight;
+            _lastAccess = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param maxEntries maximum number of entries
+     */
+    public LruCache( int maxEntries )
+    {
+        this( maxEntries, Long.MAX_VALUE );
+    }
+
+    /**
+     * @param maxEntries maximum number of entries
+     * @param maxWeight  maximum total weight of the entries
+     */
+    public LruCache( int maxEntries, long maxWeight )
+    {
+        _maxEntries = maxEntries;
+        _lowEntries = maxEntries - maxEntries / 8;
+        _maxWeight = maxWeight;
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value
+     * @return the weight of an entry, counted against the weight budget; 0 by default
+     */
+    protected long weigh( K key, V value )
+    {
+        return 0;
+    }
+
+    /**
+     * Called by the evicting thread before it evicts an entry. An entry that is not
+     * evictable now is skipped, and considered again by the next eviction.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return false to keep the entry; true by default
+     */
+    protected boolean isEvictable( K key, V value )
+    {
+        return true;
+    }
+
+    /**
+     * Called once an entry has been evicted to make room.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    protected void evicted( K key, V value )
+    {
+    }
+
+    /**
+     * @param key the key
+     * @return the value, or null if there is none
+     */
+    public V get( K key )
+    {
+        Node<V> node = _nodes.get( key );
+        if ( node == null )
+        {
+            return null;
+        }
+        node._lastAccess = System.nanoTime();
+        return node._value;
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value
+     * @return the value replaced, or null if there was none
+     */
+    public V put( K key, V value )
+    {
+        Node<V> node = new Node<V>( value, weigh( key, value ) );
+        Node<V> old = _nodes.put( key, node );
+        _weight.addAndGet( node._weight - ( ( old == null ) ? 0 : old._weight ) );
+        evict();
+        return ( old == null ) ? null : old._value;
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value
+     * @return the value already there, or null if the value was added
+     */
+    public V putIfAbsent( K key, V value )
+    {
+        Node<V> node = new Node<V>( value, weigh( key, value ) );
+        Node<V> old = _nodes.putIfAbsent( key, node );
+        if ( old != null )
+        {
+            old._lastAccess = System.nanoTime();
+            return old._value;
+        }
+        _weight.addAndGet( node._weight );
+        evict();
+        return null;
+    }
+
+    /**
+     * @param key      the key
+     * @param oldValue the value expected, compared by identity
+     * @param newValue the new value
+     * @return true if the value was replaced
+     */
+    public boolean replace( K key, V oldValue, V newValue )
+    {
+        Node<V> old = _nodes.get( key );
+        if ( old == null || old._value != oldValue )
+        {
+            return false;
+        }
+        Node<V> node = new Node<V>( newValue, weigh( key, newValue ) );
+        if ( !_nodes.replace( key, old, node ) )
+        {
+            return false;
+        }
+        _weight.addAndGet( node._weight - old._weight );
+        evict();
+        return true;
+    }
+
+    /**
+     * @param key the key
+     * @return the value removed, or null if there was none
+     */
+    public V remove( K key )
+    {
+        Node<V> old = _nodes.remove( key );
+        if ( old == null )
+        {
+            return null;
+        }
+        _weight.addAndGet( -old._weight );
+        return old._value;
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value expected, compared by identity
+     * @return true if the value was removed
+     */
+    public boolean remove( K key, V value )
+    {
+        Node<V> old = _nodes.get( key );
+        if ( old == null || old._value != value || !_nodes.remove( key, old ) )
+        {
+            return false;
+        }
+        _weight.addAndGet( -old._weight );
+        return true;
+    }
+
+    public int size()
+    {
+        return _nodes.size();
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public long getWeight()
+    {
+        return _weight.get();
+    }
+
+    /**
+     * @return the number of entries evicted to make room
+     */
+    public long getEvictionCount()
+    {
+        return _evictions.get();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits its budget. Insertions
+     * do this on their own; it is only needed when entries become evictable again.
+     */
+    public void evict()
+    {
+        // Threads that found another one evicting left it to check again once done
+        boolean evicted = true;
+        while ( evicted && isOverBudget( _maxEntries ) && _evicting.compareAndSet( false, true ) )
+        {
+            try
+            {
+                evicted = evictOnce();
+            }
+            finally
+            {
+                _evicting.set( false );
+            }
+        }
+    }
+
+    private boolean isOverBudget( int maxEntries )
+    {
+        return _nodes.size() > maxEntries || _weight.get() > _maxWeight;
+    }
+
+    /* Returns false if nothing could be evicted */
+    private boolean evictOnce()
+    {
+        List<Map.Entry<K, Node<V>>> nodes = new ArrayList<Map.Entry<K, Node<V>>>( _nodes.entrySet() );
+        final Map<Node<V>, Long> lastAccess = new IdentityHashMap<Node<V>, Long>( nodes.size() );
+        for ( Map.Entry<K, Node<V>> node : nodes )
+        {
+            lastAccess.put( node.getValue(), node.getValue()._lastAccess );
+        }
+        // Sorted on a snapshot of the access times, which change while sorting
+        Collections.sort( nodes, new Comparator<Map.Entry<K, Node<V>>>()
+        {
+            public int compare( Map.Entry<K, Node<V>> n1, Map.Entry<K, Node<V>> n2 )
+            {
+                return Long.compare( lastAccess.get( n1.getValue() ), lastAccess.get( n2.getValue() ) );
+            }
+        } );
+        boolean evicted = false;
+        for ( Map.Entry<K, Node<V>> entry : nodes )
+        {
+            if ( !isOverBudget( _lowEntries ) )
+            {
+                break;
+            }
+            K key = entry.getKey();
+            Node<V> node = entry.getValue();
+            if ( isEvictable( key, node._value ) && _nodes.remove( key, node ) )
+            {
+                _weight.addAndGet( -node._weight );
+                _evictions.incrementAndGet();
+                evicted( key, node._value );
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+}
@@ -37,7 +37,6 @@
 package jnlp.sample.util;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -49,15 +48,23 @@ import java.util.List;
 public class VersionID
         implements Comparable
 {
-    private String[] _tuple;   // Array of Integer or String objects
+    /* Comparison key for tuple elements that are not plain numbers */
+    private static final int NOT_NUMERIC = -1;
 
-    private boolean _usePrefixMatch;   // star (*) prefix
+    /* A missing tuple element compares as "0" */
+    private static final String PADDING = "0";
 
-    private boolean _useGreaterThan;  // plus (+) greather-than
+    private final String[] _tuple;   // Array of Integer or String objects
 
-    private boolean _isCompound;       // and (&) operator
+    private final int[] _numbers;   // Precomputed numeric value of each tuple element, or NOT_NUMERIC
 
-    private VersionID _rest;            // remaining part after the &
+    private final boolean _usePrefixMatch;   // star (*) prefix
+
+    private final boolean _useGreaterThan;  // plus (+) greather-than
+
+    private final boolean _isCompound;       // and (&) operator
+
+    private final VersionID _rest;            // remaining part after the &
 
     /**
      * Creates a VersionID object
@@ -66,12 +73,14 @@ public class VersionID
      */
     public VersionID( String str )
     {
-        _usePrefixMatch = false;
-        _useGreaterThan = false;
-        _isCompound = false;
         if ( str == null || str.length() == 0 )
         {
             _tuple = new String[0];
+            _numbers = new int[0];
+            _usePrefixMatch = false;
+            _useGreaterThan = false;
+            _isCompound = false;
+            _rest = null;
             return;
         }
 
@@ -83,22 +92,32 @@ public class VersionID
             VersionID firstPart = new VersionID( str.substring( 0, amp ) );
             _rest = new VersionID( str.substring( amp + 1 ) );
             _tuple = firstPart._tuple;
+            _numbers = firstPart._numbers;
             _usePrefixMatch = firstPart._usePrefixMatch;
             _useGreaterThan = firstPart._useGreaterThan;
         }
         else
         {
+            _isCompound = false;
+            _rest = null;
             // Check for postfix
             if ( str.endsWith( "+" ) )
             {
                 _useGreaterThan = true;
+                _usePrefixMatch = false;
                 str = str.substring( 0, str.length() - 1 );
             }
             else if ( str.endsWith( "*" ) )
             {
+                _useGreaterThan = false;
                 _usePrefixMatch = true;
                 str = str.substring( 0, str.length() - 1 );
             }
+            else
+            {
+                _useGreaterThan = false;
+                _usePrefixMatch = false;
+            }
 
             List<String> list = new ArrayList<>();
             int start = 0;
@@ -119,8 +138,12 @@ public class VersionID
             {
                 list.add( str.substring( start, str.length() ) );
             }
-            _tuple = new String[list.size()];
-            _tuple = list.toArray( _tuple );
+            _tuple = list.toArray( new String[list.size()] );
+            _numbers = new int[_tuple.length];
+            for ( int i = 0; i < _tuple.length; i++ )
+            {
+                _numbers[i] = getNumericValue( _tuple[i] );
+            }
         }
     }
 
@@ -192,16 +215,11 @@ public class VersionID
         }
         VersionID vid = (VersionID) o;
 
-        // Normalize arrays
-        String[] t1 = normalize( _tuple, vid._tuple.length );
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
-        // Check contents
-        for ( int i = 0; i < t1.length; i++ )
+        // Check contents, the shorter tuple is padded with zeros
+        int length = Math.max( _tuple.length, vid._tuple.length );
+        for ( int i = 0; i < length; i++ )
         {
-            Object o1 = getValueAsObject( t1[i] );
-            Object o2 = getValueAsObject( t2[i] );
-            if ( !o1.equals( o2 ) )
+            if ( !elementEquals( vid, i ) )
             {
                 return false;
             }
@@ -209,18 +227,46 @@ public class VersionID
         return true;
     }
 
-    private Object getValueAsObject( String value )
+    /**
+     * Returns the value an element compares with when it is a number, or
+     * NOT_NUMERIC when it must be compared as a string.
+     */
+    private static int getNumericValue( String value )
     {
         if ( value.length() > 0 && value.charAt( 0 ) != '-' )
         {
             try
             {
-                return Integer.valueOf( value );
+                return Integer.parseInt( value );
             }
             catch ( NumberFormatException nfe )
             { /* fall through */ }
         }
-        return value;
+        return NOT_NUMERIC;
+    }
+
+    /* Tuple element at index i, padded with "0" */
+    private String elementAt( int i )
+    {
+        return ( i < _tuple.length ) ? _tuple[i] : PADDING;
+    }
+
+    /* Numeric key of the tuple element at index i, padded with 0 */
+    private int numberAt( int i )
+    {
+        return ( i < _numbers.length ) ? _numbers[i] : 0;
+    }
+
+    /* Compares element i of this and vid the same way Integer/String objects would */
+    private boolean elementEquals( VersionID vid, int i )
+    {
+        int n1 = numberAt( i );
+        int n2 = vid.numberAt( i );
+        if ( n1 != NOT_NUMERIC || n2 != NOT_NUMERIC )
+        {
+            return n1 == n2;
+        }
+        return elementAt( i ).equals( vid.elementAt( i ) );
     }
 
     public boolean isGreaterThan( VersionID vid )
@@ -250,30 +296,25 @@ public class VersionID
                 return false;
             }
         }
-        // Normalize the two strings
-        String[] t1 = normalize( _tuple, vid._tuple.length );
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
-        for ( int i = 0; i < t1.length; i++ )
+        int length = Math.max( _tuple.length, vid._tuple.length );
+        for ( int i = 0; i < length; i++ )
         {
             // Compare current element
-            Object e1 = getValueAsObject( t1[i] );
-            Object e2 = getValueAsObject( t2[i] );
-            if ( e1.equals( e2 ) )
+            if ( elementEquals( vid, i ) )
             {
                 // So far so good
             }
             else
             {
-                if ( e1 instanceof Integer && e2 instanceof Integer )
+                int n1 = numberAt( i );
+                int n2 = vid.numberAt( i );
+                if ( n1 != NOT_NUMERIC && n2 != NOT_NUMERIC )
                 {
-                    return (Integer) e1 > (Integer) e2;
+                    return n1 > n2;
                 }
                 else
                 {
-                    String s1 = t1[i];
-                    String s2 = t2[i];
-                    return s1.compareTo( s2 ) > 0;
+                    return elementAt( i ).compareTo( vid.elementAt( i ) ) > 0;
                 }
 
             }
@@ -299,17 +340,9 @@ public class VersionID
             }
         }
         // Make sure that vid is at least as long as the prefix
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
         for ( int i = 0; i < _tuple.length; i++ )
         {
-            Object e1 = _tuple[i];
-            Object e2 = t2[i];
-            if ( e1.equals( e2 ) )
-            {
-                // So far so good
-            }
-            else
+            if ( !_tuple[i].equals( vid.elementAt( i ) ) )
             {
                 // Not a prefix
                 return false;
@@ -318,29 +351,6 @@ public class VersionID
         return true;
     }
 
-    /**
-     * Normalize an array to a certain length
-     *
-     * @param list      TODO
-     * @param minlength TODO
-     * @return TODO
-     */
-    private String[] normalize( String[] list, int minlength )
-    {
-        if ( list.length < minlength )
-        {
-            // Need to do padding
-            String[] newlist = new String[minlength];
-            System.arraycopy( list, 0, newlist, 0, list.length );
-            Arrays.fill( newlist, list.length, newlist.length, "0" );
-            return newlist;
-        }
-        else
-        {
-            return list;
-        }
-    }
-
     @Override
     public int compareTo( Object o )
     {
@@ -372,4 +382,3 @@ public class VersionID
         return sb.toString();
     }
 }
-
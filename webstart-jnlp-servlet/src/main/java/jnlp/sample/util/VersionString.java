@@ -49,7 +49,9 @@ import java.util.StringTokenizer;
  */
 public class VersionString
 {
-    private List<VersionID> _versionIds;
+    private static final VersionString EMPTY = new VersionString( null );
+
+    private final VersionID[] _versionIds;
 
     /**
      * Constructs a VersionString object from string
@@ -58,16 +60,30 @@ public class VersionString
      */
     public VersionString( String vs )
     {
-        _versionIds = new ArrayList<>();
+        List<VersionID> versionIds = new ArrayList<>();
         if ( vs != null )
         {
             StringTokenizer st = new StringTokenizer( vs, " ", false );
             while ( st.hasMoreElements() )
             {
                 // Note: The VersionID class takes care of a postfixed '+'
-                _versionIds.add( new VersionID( st.nextToken() ) );
+                versionIds.add( new VersionID( st.nextToken() ) );
             }
         }
+        _versionIds = versionIds.toArray( new VersionID[versionIds.size()] );
+    }
+
+    /**
+     * Returns a compiled VersionString for the given string. VersionString objects are
+     * immutable, so callers that see the same strings over and over may keep and share
+     * the instances; the download servlet keeps a bounded number per catalog.
+     *
+     * @param vs the version string, may be null
+     * @return the compiled version string
+     */
+    public static VersionString getInstance( String vs )
+    {
+        return ( vs == null ) ? EMPTY : new VersionString( vs );
     }
 
     /**
@@ -78,9 +94,8 @@ public class VersionString
      */
     public boolean contains( VersionID m )
     {
-        for ( Object _versionId : _versionIds )
+        for ( VersionID vi : _versionIds )
         {
-            VersionID vi = (VersionID) _versionId;
             boolean check = vi.match( m );
             if ( check )
             {
@@ -109,9 +124,8 @@ public class VersionString
      */
     public boolean containsGreaterThan( VersionID m )
     {
-        for ( Object _versionId : _versionIds )
+        for ( VersionID vi : _versionIds )
         {
-            VersionID vi = (VersionID) _versionId;
             boolean check = vi.isGreaterThan( m );
             if ( check )
             {
@@ -141,14 +155,14 @@ public class VersionString
      */
     static public boolean contains( String vs, String vi )
     {
-        return ( new VersionString( vs ) ).contains( vi );
+        return getInstance( vs ).contains( vi );
     }
 
     @Override
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
-        for ( Object _versionId : _versionIds )
+        for ( VersionID _versionId : _versionIds )
         {
             sb.append( _versionId.toString() );
             sb.append( ' ' );
@@ -156,6 +170,3 @@ public class VersionString
         return sb.toString();
     }
 }
-
-
-
@@ -0,0 +1,174 @@
+/*
+ * @(#)AsyncFileDownloadWriter.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Servlet 3.1 implementation of AsyncDownloadWriter. The request is put in async
+ * mode and the file is read from its channel whenever the container reports that
+ * the socket can take more data, so no thread waits for slow clients.
+ */
+public class AsyncFileDownloadWriter
+        implements AsyncDownloadWriter
+{
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    public boolean write( HttpServletRequest request, HttpServletResponse response, RandomAccessFile file,
+                          long start, long length )
+            throws IOException
+    {
+        if ( !request.isAsyncSupported() )
+        {
+            return false;
+        }
+        AsyncContext context = request.startAsync( request, response );
+        // Large downloads to slow clients take long, the socket timeouts still apply
+        context.setTimeout( 0 );
+        FileTransfer transfer = new FileTransfer( context, response.getOutputStream(), file, start, length );
+        context.addListener( transfer );
+        transfer._out.setWriteListener( transfer );
+        return true;
+    }
+
+    /**
+     * Copies the file in chunks while the output stream is ready, and releases the
+     * file once the transfer completed, failed or timed out.
+     */
+    private static class FileTransfer
+            implements WriteListener, AsyncListener
+    {
+        private final AsyncContext _context;
+
+        private final ServletOutputStream _out;
+
+        private final RandomAccessFile _file;
+
+        private final FileChannel _channel;
+
+        private final ByteBuffer _buffer;
+
+        private long _position;
+
+        private final long _end;
+
+        private boolean _closed;
+
+        FileTransfer( AsyncContext context, ServletOutputStream out, RandomAccessFile file, long start, long length )
+        {
+            _context = context;
+            _out = out;
+            _file = file;
+            _channel = file.getChannel();
+            _buffer = ByteBuffer.allocate( (int) Math.min( CHUNK_SIZE, Math.max( length, 1 ) ) );
+            _position = start;
+            _end = start + length;
+        }
+
+        public void onWritePossible()
+                throws IOException
+        {
+            while ( _out.isReady() )
+            {
+                if ( _position >= _end )
+                {
+                    close();
+                    _context.complete();
+                    return;
+                }
+                _buffer.clear();
+                _buffer.limit( (int) Math.min( _buffer.capacity(), _end - _position ) );
+                int read = _channel.read( _buffer, _position );
+                if ( read < 0 )
+                {
+                    throw new IOException( "Unexpected end of file at position " + _position );
+                }
+                _position += read;
+                _out.write( _buffer.array(), 0, read );
+            }
+            // Called again by the container when the socket becomes writable
+        }
+
+        public void onError( Throwable t )
+        {
+            close();
+            _context.complete();
+        }
+
+        public void onComplete( AsyncEvent event )
+        {
+            close();
+        }
+
+        public void onTimeout( AsyncEvent event )
+        {
+            close();
+        }
+
+        public void onError( AsyncEvent event )
+        {
+            close();
+        }
+
+        public void onStartAsync( AsyncEvent event )
+        { /* do nothing */ }
+
+        private synchronized void close()
+        {
+            if ( !_closed )
+            {
+                _closed = true;
+                try
+                {
+                    _file.close();
+                }
+                catch ( IOException ioe )
+                { /* ignore */ }
+            }
+        }
+    }
+}
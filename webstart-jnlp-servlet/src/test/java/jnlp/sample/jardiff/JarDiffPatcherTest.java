@@ -0,0 +1,363 @@
+/*
+ * @(#)JarDiffPatcherTest.java
+ *
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+package jnlp.sample.jardiff;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * JarDiffs applied to the old jar give the new jar, signatures included, and JarDiffs
+ * written by JarOutputStream, as before entries were copied raw, still apply.
+ */
+public class JarDiffPatcherTest
+        extends TestCase
+{
+    private static final String MANIFEST = "Manifest-Version: 1.0\r\n\r\n";
+
+    private File _dir;
+
+    protected void setUp()
+            throws Exception
+    {
+        _dir = Files.createTempDirectory( "jardiff" ).toFile();
+    }
+
+    protected void tearDown()
+            throws Exception
+    {
+        JarDiffTestSupport.delete( _dir );
+    }
+
+    public void testPatchedJarMatchesNewJar()
+            throws Exception
+    {
+        File oldJar = createOldJar();
+        File newJar = createNewJar();
+        for ( boolean minimal : new boolean[]{ true, false } )
+        {
+            File patched = patch( oldJar, createPatch( oldJar, newJar, minimal ) );
+            assertSameEntries( newJar, patched );
+        }
+    }
+
+    /**
+     * Entries of the old jar not named by the JarDiff keep the order of the old jar,
+     * so its manifest stays in front of the other entries.
+     */
+    public void testImplicitMovesKeepOldJarOrder()
+            throws Exception
+    {
+        List<String> entries = new ArrayList<String>();
+        Collections.addAll( entries, "META-INF/MANIFEST.MF", MANIFEST );
+        for ( int i = 40; i > 0; i-- )
+        {
+            Collections.addAll( entries, "entry" + i + ".txt", "content " + i );
+        }
+        String[] old = entries.toArray( new String[entries.size()] );
+        File oldJar = JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), old );
+        Collections.addAll( entries, "added.txt", "added" );
+        File newJar = JarDiffTestSupport.createJar( new File( _dir, "new.jar" ),
+                                                    entries.toArray( new String[entries.size()] ) );
+
+        List<String> names = new ArrayList<String>( JarDiffTestSupport.readEntries(
+                patch( oldJar, createPatch( oldJar, newJar, true ) ) ).keySet() );
+        assertEquals( "added.txt", names.remove( 0 ) );
+        assertEquals( new ArrayList<String>( JarDiffTestSupport.readEntries( oldJar ).keySet() ), names );
+    }
+
+    /**
+     * Entries moved from the old jar and copied from the JarDiff are the bytes that were
+     * signed, so the patched jar verifies with JarFile and JarInputStream.
+     */
+    public void testSignedJarStillVerifies()
+            throws Exception
+    {
+        File oldJar = createOldJar();
+        File newJar = createNewJar();
+        if ( !JarDiffTestSupport.sign( oldJar, _dir ) || !JarDiffTestSupport.sign( newJar, _dir ) )
+        {
+            // No jarsigner in this JDK
+            return;
+        }
+        File patched = patch( oldJar, createPatch( oldJar, newJar, true ) );
+        assertSameEntries( newJar, patched );
+
+        JarFile jar = new JarFile( patched, true );
+        try
+        {
+            int signed = 0;
+            for ( Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); )
+            {
+                JarEntry entry = e.nextElement();
+                InputStream in = jar.getInputStream( entry );
+                try
+                {
+                    // Fails on a digest that does not match
+                    JarDiffTestSupport.read( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+                if ( isSignable( entry ) )
+                {
+                    assertNotNull( entry.getName(), entry.getCodeSigners() );
+                    signed++;
+                }
+            }
+            assertEquals( 4, signed );
+        }
+        finally
+        {
+            jar.close();
+        }
+
+        JarInputStream jis = new JarInputStream( new FileInputStream( patched ), true );
+        try
+        {
+            assertNotNull( jis.getManifest() );
+            int signed = 0;
+            for ( JarEntry entry = jis.getNextJarEntry(); entry != null; entry = jis.getNextJarEntry() )
+            {
+                JarDiffTestSupport.read( jis );
+                if ( isSignable( entry ) )
+                {
+                    assertNotNull( entry.getName(), entry.getCodeSigners() );
+                    signed++;
+                }
+            }
+            assertEquals( 4, signed );
+        }
+        finally
+        {
+            jis.close();
+        }
+    }
+
+    /**
+     * A JarDiff written with JarOutputStream, whose entries have data descriptors.
+     */
+    public void testAppliesOldFormatJarDiff()
+            throws Exception
+    {
+        File oldJar = createOldJar();
+        File jarDiff = JarDiffTestSupport.createJar(
+                new File( _dir, "old-format.jardiff" ), JarDiffConstants.INDEX_NAME,
+                "version 1.0\r\nremove gone.txt\r\nmove dir/c.txt dir/renamed\\ c.txt\r\n", "b.txt", "b changed",
+                "new.txt", "new" );
+        assertSameEntries( createNewJar(), patch( oldJar, jarDiff ) );
+    }
+
+    /**
+     * A JarDiff written now applies with a patcher reading it as before, through
+     * JarFile and ZipInputStream, and writing the result with JarOutputStream.
+     */
+    public void testNewJarDiffAppliesAsBefore()
+            throws Exception
+    {
+        File oldJar = createOldJar();
+        File newJar = createNewJar();
+        File jarDiff = createPatch( oldJar, newJar, true );
+        File patched = new File( _dir, "patched-before.jar" );
+        OutputStream out = new FileOutputStream( patched );
+        try
+        {
+            applyAsBefore( oldJar, jarDiff, out );
+        }
+        finally
+        {
+            out.close();
+        }
+        assertSameEntries( newJar, patched );
+    }
+
+    private File createOldJar()
+            throws IOException
+    {
+        return JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), "META-INF/MANIFEST.MF", MANIFEST,
+                                             "a.txt", "a", "b.txt", "b", "dir/", "dir/c.txt", "c", "gone.txt",
+                                             "gone" );
+    }
+
+    /* a.txt is kept, b.txt changed, dir/c.txt renamed, gone.txt removed and new.txt added */
+    private File createNewJar()
+            throws IOException
+    {
+        return JarDiffTestSupport.createJar( new File( _dir, "new.jar" ), "META-INF/MANIFEST.MF", MANIFEST,
+                                             "a.txt", "a", "b.txt", "b changed", "dir/", "dir/renamed c.txt", "c",
+                                             "new.txt", "new" );
+    }
+
+    private File createPatch( File oldJar, File newJar, boolean minimal )
+            throws IOException
+    {
+        File jarDiff = new File( _dir, "patch.jardiff" );
+        OutputStream out = new FileOutputStream( jarDiff );
+        try
+        {
+            JarDiff.createPatch( oldJar.getPath(), newJar.getPath(), out, minimal );
+        }
+        finally
+        {
+            out.close();
+        }
+        return jarDiff;
+    }
+
+    private File patch( File oldJar, File jarDiff )
+            throws IOException
+    {
+        File patched = new File( _dir, "patched.jar" );
+        OutputStream out = new FileOutputStream( patched );
+        try
+        {
+            new JarDiffPatcher().applyPatch( null, oldJar.getPath(), jarDiff.getPath(), out );
+        }
+        finally
+        {
+            out.close();
+        }
+        return patched;
+    }
+
+    private static boolean isSignable( JarEntry entry )
+    {
+        return !entry.isDirectory() && !entry.getName().startsWith( "META-INF/" );
+    }
+
+    private static void assertSameEntries( File expected, File actual )
+            throws IOException
+    {
+        Map<String, byte[]> expectedEntries = JarDiffTestSupport.readEntries( expected );
+        Map<String, byte[]> actualEntries = JarDiffTestSupport.readEntries( actual );
+        assertEquals( expectedEntries.keySet(), actualEntries.keySet() );
+        for ( Map.Entry<String, byte[]> entry : expectedEntries.entrySet() )
+        {
+            assertTrue( entry.getKey(), Arrays.equals( entry.getValue(), actualEntries.get( entry.getKey() ) ) );
+        }
+    }
+
+    /* Applies a JarDiff the way the patcher did before it copied entries raw */
+    private static void applyAsBefore( File oldFile, File jarDiff, OutputStream result )
+            throws IOException
+    {
+        Set<String> removed = new HashSet<String>();
+        Map<String, String> moved = new HashMap<String, String>();
+        Set<String> written = new HashSet<String>();
+        JarFile oldJar = new JarFile( oldFile );
+        ZipInputStream zis = new ZipInputStream( new FileInputStream( jarDiff ) );
+        JarOutputStream jos = new JarOutputStream( result );
+        try
+        {
+            for ( ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry() )
+            {
+                byte[] data = JarDiffTestSupport.read( zis );
+                if ( JarDiffConstants.INDEX_NAME.equals( entry.getName() ) )
+                {
+                    JarDiffTestSupport.readIndex( data, removed, moved );
+                }
+                else
+                {
+                    write( jos, entry.getName(), data );
+                    written.add( entry.getName() );
+                }
+            }
+            for ( Map.Entry<String, String> move : moved.entrySet() )
+            {
+                write( jos, move.getKey(), read( oldJar, move.getValue() ) );
+                written.add( move.getValue() );
+            }
+            for ( Enumeration<JarEntry> e = oldJar.entries(); e.hasMoreElements(); )
+            {
+                String name = e.nextElement().getName();
+                if ( !removed.contains( name ) && !written.contains( name ) )
+                {
+                    write( jos, name, read( oldJar, name ) );
+                }
+            }
+        }
+        finally
+        {
+            jos.finish();
+            zis.close();
+            oldJar.close();
+        }
+    }
+
+    private static byte[] read( JarFile jar, String name )
+            throws IOException
+    {
+        InputStream in = jar.getInputStream( jar.getEntry( name ) );
+        try
+        {
+            return JarDiffTestSupport.read( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void write( JarOutputStream jos, String name, byte[] data )
+            throws IOException
+    {
+        jos.putNextEntry( new JarEntry( name ) );
+        jos.write( data );
+        jos.closeEntry();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * @(#)JarDiffTest.java
+ *
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.jardiff;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Entries of the new jar are matched with the entries of the old jar of the same content,
+ * looked up by CRC, and by name only if the name is exactly the same.
+ */
+public class JarDiffTest
+        extends TestCase
+{
+    private File _dir;
+
+    private final Set<String> _removed = new HashSet<String>();
+
+    private final Map<String, String> _moved = new HashMap<String, String>();
+
+    protected void setUp()
+            throws Exception
+    {
+        _dir = Files.createTempDirectory( "jardiff" ).toFile();
+    }
+
+    protected void tearDown()
+            throws Exception
+    {
+        JarDiffTestSupport.delete( _dir );
+    }
+
+    /**
+     * Of the old entries with the content of a renamed entry, the first one in the old jar
+     * is moved, whatever the order of their names.
+     */
+    public void testDuplicateCrcsMatchInJarOrder()
+            throws Exception
+    {
+        File newJar = JarDiffTestSupport.createJar( new File( _dir, "new.jar" ), "renamed.txt", "same" );
+
+        createPatch( JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), "z.txt", "same", "a.txt", "same",
+                                                   "m.txt", "same" ), newJar );
+        assertEquals( Collections.singletonMap( "renamed.txt", "z.txt" ), _moved );
+        assertEquals( new HashSet<String>( Arrays.asList( "a.txt", "m.txt" ) ), _removed );
+
+        createPatch( JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), "m.txt", "same", "a.txt", "same",
+                                                   "z.txt", "same" ), newJar );
+        assertEquals( Collections.singletonMap( "renamed.txt", "m.txt" ), _moved );
+    }
+
+    /**
+     * Entries of the same CRC but of another size or content are skipped for the next one.
+     */
+    public void testDuplicateCrcOfOtherContentSkipped()
+            throws Exception
+    {
+        byte[] content = "content".getBytes( StandardCharsets.UTF_8 );
+        // Seven bytes as well
+        byte[] other = withCrc( "tne".getBytes( StandardCharsets.UTF_8 ), crc( content ) );
+        Map<String, byte[]> oldEntries = new LinkedHashMap<String, byte[]>();
+        oldEntries.put( "longer.txt", withCrc( "longer content".getBytes( StandardCharsets.UTF_8 ), crc( content ) ) );
+        oldEntries.put( "other.txt", other );
+        oldEntries.put( "content.txt", content );
+        Map<String, byte[]> newEntries = new LinkedHashMap<String, byte[]>();
+        newEntries.put( "renamed.txt", content );
+
+        createPatch( JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), oldEntries ),
+                     JarDiffTestSupport.createJar( new File( _dir, "new.jar" ), newEntries ) );
+        assertEquals( Collections.singletonMap( "renamed.txt", "content.txt" ), _moved );
+    }
+
+    /**
+     * CRCs take the upper bits of the sorted index, positions the lower ones: entries are
+     * found whatever their CRC, from 0 to 0xFFFFFFFF, -1 as an int.
+     */
+    public void testCrcIndexCoversAllCrcs()
+            throws Exception
+    {
+        Map<String, byte[]> oldEntries = new LinkedHashMap<String, byte[]>();
+        Map<String, byte[]> newEntries = new LinkedHashMap<String, byte[]>();
+        Map<String, String> expected = new HashMap<String, String>();
+        long[] crcs = { 0, 1, 0x7FFFFFFFL, 0x80000000L, 0xFFFFFFFEL, 0xFFFFFFFFL };
+        for ( int i = 0; i < crcs.length; i++ )
+        {
+            byte[] content = withCrc( ( "content " + i ).getBytes( StandardCharsets.UTF_8 ), crcs[i] );
+            assertEquals( crcs[i], crc( content ) );
+            oldEntries.put( "old" + i + ".bin", content );
+            newEntries.put( "new" + i + ".bin", content );
+            expected.put( "new" + i + ".bin", "old" + i + ".bin" );
+        }
+        // Many more entries around them
+        for ( int i = 0; i < 500; i++ )
+        {
+            byte[] content = ( "entry " + i ).getBytes( StandardCharsets.UTF_8 );
+            oldEntries.put( "entry" + i + ".txt", content );
+            newEntries.put( "renamed" + i + ".txt", content );
+            expected.put( "renamed" + i + ".txt", "entry" + i + ".txt" );
+        }
+
+        createPatch( JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), oldEntries ),
+                     JarDiffTestSupport.createJar( new File( _dir, "new.jar" ), newEntries ) );
+        assertEquals( expected, _moved );
+        assertTrue( _removed.isEmpty() );
+    }
+
+    /**
+     * An empty file named like a directory of the old jar is not that directory, which
+     * JarFile would find by the name without its trailing slash.
+     */
+    public void testDirectoryNotTakenForFile()
+            throws Exception
+    {
+        File oldJar = JarDiffTestSupport.createJar( new File( _dir, "old.jar" ), "dir/", "dir/a.txt", "a" );
+        File newJar =
+                JarDiffTestSupport.createJar( new File( _dir, "new.jar" ), "dir/", "dir/a.txt", "a", "dir", "" );
+
+        // Taken for the directory, the file would be an implicit move of an entry the old jar does not have
+        File jarDiff = createPatch( oldJar, newJar );
+        assertFalse( _removed.contains( "dir/" ) );
+
+        File patched = new File( _dir, "patched.jar" );
+        OutputStream out = new FileOutputStream( patched );
+        try
+        {
+            new JarDiffPatcher().applyPatch( null, oldJar.getPath(), jarDiff.getPath(), out );
+        }
+        finally
+        {
+            out.close();
+        }
+        Map<String, byte[]> patchedEntries = JarDiffTestSupport.readEntries( patched );
+        assertEquals( JarDiffTestSupport.readEntries( newJar ).keySet(), patchedEntries.keySet() );
+        assertEquals( 0, patchedEntries.get( "dir" ).length );
+    }
+
+    /* Creates a minimal JarDiff and reads its index */
+    private File createPatch( File oldJar, File newJar )
+            throws IOException
+    {
+        File jarDiff = new File( _dir, "patch.jardiff" );
+        OutputStream out = new FileOutputStream( jarDiff );
+        try
+        {
+            JarDiff.createPatch( oldJar.getPath(), newJar.getPath(), out, true );
+        }
+        finally
+        {
+            out.close();
+        }
+        _removed.clear();
+        _moved.clear();
+        JarDiffTestSupport.readIndex( JarDiffTestSupport.readEntries( jarDiff ).get( JarDiffConstants.INDEX_NAME ),
+                                      _removed, _moved );
+        return jarDiff;
+    }
+
+    private static long crc( byte[] content )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        return crc.getValue();
+    }
+
+    /**
+     * Appends four bytes to a content so its CRC-32 is the one given: the table entries
+     * giving the CRC are found backwards, their top bytes being all different, then the
+     * bytes selecting them.
+     */
+    private static byte[] withCrc( byte[] content, long crc )
+    {
+        long[] table = new long[256];
+        for ( int n = 0; n < 256; n++ )
+        {
+            long c = n;
+            for ( int k = 0; k < 8; k++ )
+            {
+                c = ( c & 1 ) != 0 ? 0xEDB88320L ^ ( c >>> 1 ) : c >>> 1;
+            }
+            table[n] = c;
+        }
+
+        int[] indexes = new int[4];
+        long register = crc ^ 0xFFFFFFFFL;
+        for ( int i = 3; i >= 0; i-- )
+        {
+            for ( int n = 0; n < 256; n++ )
+            {
+                if ( ( table[n] >>> 24 ) == ( register >>> 24 ) )
+                {
+                    indexes[i] = n;
+                    break;
+                }
+            }
+            register = ( ( register ^ table[indexes[i]] ) << 8 ) & 0xFFFFFFFFL;
+        }
+
+        byte[] result = Arrays.copyOf( content, content.length + 4 );
+        register = crc( content ) ^ 0xFFFFFFFFL;
+        for ( int i = 0; i < 4; i++ )
+        {
+            result[content.length + i] = (byte) ( register ^ indexes[i] );
+            register = ( register >>> 8 ) ^ table[indexes[i]];
+        }
+        return result;
+    }
+}
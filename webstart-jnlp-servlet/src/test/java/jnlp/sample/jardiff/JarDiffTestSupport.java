@@ -0,0 +1,271 @@
+/*
+ * @(#)JarDiffTestSupport.java
+ *
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+package jnlp.sample.jardiff;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Jars for the tests, written and read with the java.util.jar classes.
+ */
+final class JarDiffTestSupport
+{
+    // Entries get a fixed time, so jars written twice are the same
+    private static final long TIME = 1300000000000L;
+
+    private JarDiffTestSupport()
+    {
+    }
+
+    /**
+     * Writes a jar with JarOutputStream, which deflates its entries and puts their
+     * sizes in data descriptors.
+     *
+     * @param file    the jar
+     * @param entries names and contents, in the order they are written; names ending
+     *                with a slash are directories and take no content
+     * @return the jar
+     */
+    static File createJar( File file, String... entries )
+            throws IOException
+    {
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        int i = 0;
+        while ( i < entries.length )
+        {
+            String name = entries[i++];
+            contents.put( name, name.endsWith( "/" ) ? null : entries[i++].getBytes( StandardCharsets.UTF_8 ) );
+        }
+        return createJar( file, contents );
+    }
+
+    /**
+     * Same as {@link #createJar(File, String...)} with binary contents.
+     *
+     * @param file    the jar
+     * @param entries contents by name, in the order they are written; directories take null
+     * @return the jar
+     */
+    static File createJar( File file, Map<String, byte[]> entries )
+            throws IOException
+    {
+        JarOutputStream jos = new JarOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            for ( Map.Entry<String, byte[]> e : entries.entrySet() )
+            {
+                JarEntry entry = new JarEntry( e.getKey() );
+                entry.setTime( TIME );
+                jos.putNextEntry( entry );
+                if ( e.getValue() != null )
+                {
+                    jos.write( e.getValue() );
+                }
+            }
+        }
+        finally
+        {
+            jos.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the contents of the entries of a jar by name, in the order of its central directory
+     */
+    static Map<String, byte[]> readEntries( File file )
+            throws IOException
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        JarFile jar = new JarFile( file, false );
+        try
+        {
+            for ( Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); )
+            {
+                JarEntry entry = e.nextElement();
+                InputStream in = jar.getInputStream( entry );
+                try
+                {
+                    entries.put( entry.getName(), read( in ) );
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        finally
+        {
+            jar.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a stream to its end, without closing it.
+     */
+    static byte[] read( InputStream in )
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ( ( read = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, read );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the index of a JarDiff.
+     *
+     * @param index   content of the index entry
+     * @param removed gets the names of the removed entries
+     * @param moved   gets the old names of the moved entries by new name
+     */
+    static void readIndex( byte[] index, Set<String> removed, Map<String, String> moved )
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader( new ByteArrayInputStream( index ), StandardCharsets.UTF_8 ) );
+        String header = reader.readLine();
+        if ( !JarDiffConstants.VERSION_HEADER.equals( header ) )
+        {
+            throw new IOException( "Not a JarDiff index: " + header );
+        }
+        for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+        {
+            // Names are separated by spaces not escaped with a backslash
+            String[] args = line.split( "(?<!\\\\) " );
+            for ( int i = 0; i < args.length; i++ )
+            {
+                args[i] = args[i].replace( "\\ ", " " );
+            }
+            if ( args[0].equals( JarDiffConstants.REMOVE_COMMAND ) )
+            {
+                removed.add( args[1] );
+            }
+            else if ( args[0].equals( JarDiffConstants.MOVE_COMMAND ) )
+            {
+                moved.put( args[2], args[1] );
+            }
+        }
+    }
+
+    /**
+     * Signs a jar in place with a key generated for the test, using the keytool and
+     * jarsigner of the JDK running the test.
+     *
+     * @param jar the jar
+     * @param dir directory for the key store
+     * @return false if the JDK has no keytool or jarsigner
+     */
+    static boolean sign( File jar, File dir )
+            throws IOException, InterruptedException
+    {
+        File keytool = findTool( "keytool" );
+        File jarsigner = findTool( "jarsigner" );
+        if ( keytool == null || jarsigner == null )
+        {
+            return false;
+        }
+        File keystore = new File( dir, "test.jks" );
+        if ( !keystore.exists() )
+        {
+            run( keytool.getPath(), "-genkeypair", "-keystore", keystore.getPath(), "-storetype", "JKS",
+                 "-storepass", "secret", "-keypass", "secret", "-alias", "test", "-dname", "CN=test", "-keyalg",
+                 "RSA", "-validity", "1" );
+        }
+        run( jarsigner.getPath(), "-keystore", keystore.getPath(), "-storepass", "secret", "-keypass", "secret",
+             jar.getPath(), "test" );
+        return true;
+    }
+
+    static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if ( files != null )
+        {
+            for ( File child : files )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /* Looks in the bin directory of the JDK, java.home being its jre directory up to Java 8 */
+    private static File findTool( String name )
+    {
+        File home = new File( System.getProperty( "java.home" ) );
+        String executable = System.getProperty( "os.name" ).startsWith( "Windows" ) ? name + ".exe" : name;
+        for ( File bin : new File[]{ new File( home, "bin" ), new File( home.getParentFile(), "bin" ) } )
+        {
+            File tool = new File( bin, executable );
+            if ( tool.isFile() )
+            {
+                return tool;
+            }
+        }
+        return null;
+    }
+
+    private static void run( String... command )
+            throws IOException, InterruptedException
+    {
+        Process process = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+        String output = new String( read( process.getInputStream() ), StandardCharsets.UTF_8 );
+        if ( process.waitFor() != 0 )
+        {
+            throw new IOException( command[0] + " failed: " + output );
+        }
+    }
+}
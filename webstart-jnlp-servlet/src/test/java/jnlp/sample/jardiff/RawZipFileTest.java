@@ -0,0 +1,427 @@
+/*
+ * @(#)RawZipFileTest.java
+ *
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.jardiff;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Entries copied by RawZipWriter from a RawZipFile read back, with JarFile and
+ * ZipInputStream, exactly as they were written.
+ */
+public class RawZipFileTest
+        extends TestCase
+{
+    private File _dir;
+
+    protected void setUp()
+            throws Exception
+    {
+        _dir = Files.createTempDirectory( "rawzip" ).toFile();
+    }
+
+    protected void tearDown()
+            throws Exception
+    {
+        JarDiffTestSupport.delete( _dir );
+    }
+
+    public void testRoundTrip()
+            throws Exception
+    {
+        File in = new File( _dir, "in.jar" );
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue( "Manifest-Version", "1.0" );
+        JarOutputStream jos = new JarOutputStream( new FileOutputStream( in ), manifest );
+        try
+        {
+            jos.putNextEntry( new JarEntry( "dir/" ) );
+            JarEntry deflated = new JarEntry( "dir/deflated.txt" );
+            deflated.setTime( 1000000000000L );
+            deflated.setComment( "a comment" );
+            deflated.setExtra( new byte[]{ (byte) 0xfe, (byte) 0xca, 2, 0, 1, 2 } );
+            jos.putNextEntry( deflated );
+            jos.write( repeat( "deflated ", 100 ) );
+            byte[] data = repeat( "stored ", 10 );
+            JarEntry stored = new JarEntry( "stored.txt" );
+            stored.setMethod( ZipEntry.STORED );
+            stored.setSize( data.length );
+            stored.setCrc( crc( data ) );
+            jos.putNextEntry( stored );
+            jos.write( data );
+            jos.putNextEntry( new JarEntry( "empty.txt" ) );
+        }
+        finally
+        {
+            jos.close();
+        }
+
+        File out = copy( in, new File( _dir, "out.jar" ) );
+
+        JarFile expected = new JarFile( in );
+        JarFile actual = new JarFile( out );
+        try
+        {
+            assertEquals( getNames( expected ), getNames( actual ) );
+            for ( Enumeration<JarEntry> e = expected.entries(); e.hasMoreElements(); )
+            {
+                JarEntry entry = e.nextElement();
+                JarEntry copied = actual.getJarEntry( entry.getName() );
+                assertEquals( entry.getName(), entry.getMethod(), copied.getMethod() );
+                assertEquals( entry.getName(), entry.getCrc(), copied.getCrc() );
+                assertEquals( entry.getName(), entry.getSize(), copied.getSize() );
+                assertEquals( entry.getName(), entry.getCompressedSize(), copied.getCompressedSize() );
+                assertEquals( entry.getName(), entry.getTime(), copied.getTime() );
+                assertEquals( entry.getName(), entry.getComment(), copied.getComment() );
+                assertTrue( entry.getName(), Arrays.equals( entry.getExtra(), copied.getExtra() ) );
+                assertTrue( entry.getName(), Arrays.equals( read( expected, entry.getName() ),
+                                                            read( actual, entry.getName() ) ) );
+            }
+            assertEquals( "1.0", actual.getManifest().getMainAttributes().getValue( "Manifest-Version" ) );
+        }
+        finally
+        {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /**
+     * ZipOutputStream writes the sizes of deflated entries in data descriptors after
+     * their data; the copies carry them in their local headers, for streaming readers.
+     */
+    public void testDataDescriptors()
+            throws Exception
+    {
+        File in = new File( _dir, "in.zip" );
+        ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( in ) );
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                zos.putNextEntry( new ZipEntry( "entry" + i + ".txt" ) );
+                zos.write( repeat( "entry " + i, 50 + i ) );
+            }
+        }
+        finally
+        {
+            zos.close();
+        }
+        RawZipFile raw = new RawZipFile( in );
+        try
+        {
+            for ( RawZipFile.Entry entry : raw.getEntries() )
+            {
+                assertEquals( entry.getName(), 0x08, entry._flags & 0x08 );
+            }
+        }
+        finally
+        {
+            raw.close();
+        }
+
+        File out = copy( in, new File( _dir, "out.zip" ) );
+
+        ZipInputStream zis = new ZipInputStream( new FileInputStream( out ) );
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                ZipEntry entry = zis.getNextEntry();
+                assertEquals( "entry" + i + ".txt", entry.getName() );
+                byte[] expected = repeat( "entry " + i, 50 + i );
+                // Known before the data is read
+                assertEquals( expected.length, entry.getSize() );
+                assertEquals( crc( expected ), entry.getCrc() );
+                assertTrue( Arrays.equals( expected, JarDiffTestSupport.read( zis ) ) );
+            }
+            assertNull( zis.getNextEntry() );
+        }
+        finally
+        {
+            zis.close();
+        }
+    }
+
+    /**
+     * Sizes and offsets given in zip64 extra fields and the zip64 end of central directory
+     * are read, and the copies get plain headers again as they are small.
+     */
+    public void testZip64SizesAndOffsets()
+            throws Exception
+    {
+        byte[] first = "first".getBytes( StandardCharsets.UTF_8 );
+        byte[] second = "second entry, zip64".getBytes( StandardCharsets.UTF_8 );
+        ByteBuffer zip = ByteBuffer.allocate( 1024 ).order( ByteOrder.LITTLE_ENDIAN );
+        // A plain entry, then one whose sizes and offset are only found in its zip64 extra fields
+        putLocalHeader( zip, "a.txt", first, false );
+        long secondOffset = zip.position();
+        putLocalHeader( zip, "b.txt", second, true );
+        long centralOffset = zip.position();
+        putCentralHeader( zip, "a.txt", first, 0, false );
+        putCentralHeader( zip, "b.txt", second, secondOffset, true );
+        long centralSize = zip.position() - centralOffset;
+        long zip64EndOffset = zip.position();
+        zip.putInt( RawZipFile.ZIP64_END_SIGNATURE ).putLong( 44 ).putShort( (short) 45 ).putShort( (short) 45 );
+        zip.putInt( 0 ).putInt( 0 ).putLong( 2 ).putLong( 2 ).putLong( centralSize ).putLong( centralOffset );
+        zip.putInt( RawZipFile.ZIP64_LOCATOR_SIGNATURE ).putInt( 0 ).putLong( zip64EndOffset ).putInt( 1 );
+        zip.putInt( RawZipFile.END_SIGNATURE ).putShort( (short) 0 ).putShort( (short) 0 );
+        zip.putShort( (short) RawZipFile.ZIP64_MAGIC_COUNT ).putShort( (short) RawZipFile.ZIP64_MAGIC_COUNT );
+        zip.putInt( (int) RawZipFile.ZIP64_MAGIC ).putInt( (int) RawZipFile.ZIP64_MAGIC ).putShort( (short) 0 );
+        File in = new File( _dir, "in.zip" );
+        Files.write( in.toPath(), Arrays.copyOf( zip.array(), zip.position() ) );
+
+        RawZipFile raw = new RawZipFile( in );
+        try
+        {
+            assertEquals( 2, raw.getEntries().size() );
+            RawZipFile.Entry entry = raw.getEntry( "b.txt" );
+            assertEquals( second.length, entry._size );
+            assertEquals( second.length, entry._compressedSize );
+            assertEquals( secondOffset, entry._localHeaderOffset );
+        }
+        finally
+        {
+            raw.close();
+        }
+
+        File out = copy( in, new File( _dir, "out.zip" ) );
+        ZipFile zipFile = new ZipFile( out );
+        try
+        {
+            assertTrue( Arrays.equals( first, read( zipFile, "a.txt" ) ) );
+            assertTrue( Arrays.equals( second, read( zipFile, "b.txt" ) ) );
+        }
+        finally
+        {
+            zipFile.close();
+        }
+        raw = new RawZipFile( out );
+        try
+        {
+            assertNull( RawZipFile.findExtra( raw.getEntry( "b.txt" )._extra, RawZipFile.ZIP64_EXTRA_ID ) );
+            assertNull( RawZipFile.findExtra( raw.readLocalExtra( raw.getEntry( "b.txt" ) ),
+                                              RawZipFile.ZIP64_EXTRA_ID ) );
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+
+    /**
+     * More entries than the end of central directory can count take a zip64 end record.
+     */
+    public void testZip64EntryCount()
+            throws Exception
+    {
+        File in = new File( _dir, "in.zip" );
+        byte[] data = "x".getBytes( StandardCharsets.UTF_8 );
+        ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( in ) );
+        try
+        {
+            ZipEntry entry = new ZipEntry( "x" );
+            entry.setMethod( ZipEntry.STORED );
+            entry.setSize( data.length );
+            entry.setCrc( crc( data ) );
+            zos.putNextEntry( entry );
+            zos.write( data );
+        }
+        finally
+        {
+            zos.close();
+        }
+
+        int count = RawZipFile.ZIP64_MAGIC_COUNT + 10;
+        File out = new File( _dir, "out.zip" );
+        RawZipFile raw = new RawZipFile( in );
+        RawZipWriter writer = new RawZipWriter( new FileOutputStream( out ) );
+        try
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                writer.copyEntry( raw, raw.getEntry( "x" ), Integer.toString( i ) );
+            }
+        }
+        finally
+        {
+            writer.close();
+            raw.close();
+        }
+
+        ZipFile zipFile = new ZipFile( out );
+        try
+        {
+            assertEquals( count, zipFile.size() );
+            assertTrue( Arrays.equals( data, read( zipFile, "65544" ) ) );
+        }
+        finally
+        {
+            zipFile.close();
+        }
+        raw = new RawZipFile( out );
+        try
+        {
+            assertEquals( count, raw.getEntries().size() );
+            assertEquals( "65544", raw.getEntries().get( count - 1 ).getName() );
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+
+    /* Copies every entry of a zip file with RawZipWriter */
+    private static File copy( File in, File out )
+            throws IOException
+    {
+        RawZipFile raw = new RawZipFile( in );
+        RawZipWriter writer = new RawZipWriter( new FileOutputStream( out ) );
+        try
+        {
+            for ( RawZipFile.Entry entry : raw.getEntries() )
+            {
+                writer.copyEntry( raw, entry );
+            }
+        }
+        finally
+        {
+            writer.close();
+            raw.close();
+        }
+        return out;
+    }
+
+    /* A stored entry, its sizes in a zip64 extra field if asked for */
+    private static void putLocalHeader( ByteBuffer zip, String name, byte[] data, boolean zip64 )
+    {
+        byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+        zip.putInt( RawZipFile.LOCAL_HEADER_SIGNATURE ).putShort( (short) ( zip64 ? 45 : 10 ) );
+        zip.putShort( (short) 0 ).putShort( (short) ZipEntry.STORED ).putInt( 0x21 << 16 ).putInt( (int) crc( data ) );
+        zip.putInt( zip64 ? (int) RawZipFile.ZIP64_MAGIC : data.length );
+        zip.putInt( zip64 ? (int) RawZipFile.ZIP64_MAGIC : data.length );
+        zip.putShort( (short) nameBytes.length ).putShort( (short) ( zip64 ? 20 : 0 ) ).put( nameBytes );
+        if ( zip64 )
+        {
+            zip.putShort( (short) RawZipFile.ZIP64_EXTRA_ID ).putShort( (short) 16 );
+            zip.putLong( data.length ).putLong( data.length );
+        }
+        zip.put( data );
+    }
+
+    /* The central header of a stored entry, its sizes and offset in a zip64 extra field if asked for */
+    private static void putCentralHeader( ByteBuffer zip, String name, byte[] data, long offset, boolean zip64 )
+    {
+        byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+        zip.putInt( RawZipFile.CENTRAL_HEADER_SIGNATURE ).putShort( (short) ( zip64 ? 45 : 10 ) );
+        zip.putShort( (short) ( zip64 ? 45 : 10 ) ).putShort( (short) 0 ).putShort( (short) ZipEntry.STORED );
+        zip.putInt( 0x21 << 16 ).putInt( (int) crc( data ) );
+        zip.putInt( zip64 ? (int) RawZipFile.ZIP64_MAGIC : data.length );
+        zip.putInt( zip64 ? (int) RawZipFile.ZIP64_MAGIC : data.length );
+        zip.putShort( (short) nameBytes.length ).putShort( (short) ( zip64 ? 28 : 0 ) ).putShort( (short) 0 );
+        zip.putShort( (short) 0 ).putShort( (short) 0 ).putInt( 0 );
+        zip.putInt( zip64 ? (int) RawZipFile.ZIP64_MAGIC : (int) offset ).put( nameBytes );
+        if ( zip64 )
+        {
+            zip.putShort( (short) RawZipFile.ZIP64_EXTRA_ID ).putShort( (short) 24 );
+            zip.putLong( data.length ).putLong( data.length ).putLong( offset );
+        }
+    }
+
+    private static byte[] read( ZipFile zip, String name )
+            throws IOException
+    {
+        InputStream in = zip.getInputStream( zip.getEntry( name ) );
+        try
+        {
+            return JarDiffTestSupport.read( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static List<String> getNames( JarFile jar )
+    {
+        List<String> names = new ArrayList<String>();
+        for ( Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); )
+        {
+            names.add( e.nextElement().getName() );
+        }
+        return names;
+    }
+
+    private static byte[] repeat( String s, int count )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < count; i++ )
+        {
+            sb.append( s ).append( i );
+        }
+        return sb.toString().getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static long crc( byte[] data )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, data.length );
+        return crc.getValue();
+    }
+}
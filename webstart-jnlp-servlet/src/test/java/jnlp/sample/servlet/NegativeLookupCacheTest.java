@@ -0,0 +1,269 @@
+/*
+ * @(#)NegativeLookupCacheTest.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * Failed lookups are remembered until the catalog of their directory changes.
+ */
+public class NegativeLookupCacheTest
+        extends TestCase
+{
+    private File _root;
+
+    private File _app;
+
+    private ServletContext _context;
+
+    private Logger _log;
+
+    private ResourceCatalog _catalog;
+
+    private NegativeLookupCache _cache;
+
+    protected void setUp()
+            throws Exception
+    {
+        _root = Files.createTempDirectory( "webapp" ).toFile();
+        File webapp = new File( _root, "webapp" );
+        _app = new File( webapp, "app" );
+        _app.mkdirs();
+        Files.write( new File( _app, "lib__V1.0.jar" ).toPath(), "one".getBytes( "UTF-8" ) );
+        _context = ServletTestSupport.createContext( webapp, new File( _root, "tmp" ) );
+        _log = new Logger( ServletTestSupport.createConfig( _context, Collections.<String, String>emptyMap() ),
+                           JnlpDownloadServlet.getResourceBundle() );
+        _catalog = new ResourceCatalog( _context, _log );
+        _cache = new NegativeLookupCache( 100, 60 * 1000L );
+    }
+
+    protected void tearDown()
+            throws Exception
+    {
+        _catalog.destroy();
+        ServletTestSupport.delete( _root );
+    }
+
+    public void testFailureRememberedUntilDirectoryModified()
+            throws Exception
+    {
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=2.0" );
+        ErrorResponseException error = lookupAndRemember( dreq );
+        assertEquals( DownloadResponse.ERR_11_NO_VERSION, getJnlpErrorCode( error ) );
+
+        ErrorResponseException cached = lookup( dreq );
+        assertNotNull( cached );
+        assertEquals( DownloadResponse.ERR_11_NO_VERSION, getJnlpErrorCode( cached ) );
+        assertEquals( 1, _cache.getHitCount() );
+        // Other versions, platforms or files are looked up
+        assertNull( lookup( createRequest( "/app/lib.jar?version-id=3.0" ) ) );
+        assertNull( lookup( createRequest( "/app/lib.jar?version-id=2.0&os=Linux" ) ) );
+
+        Files.write( new File( _app, "lib__V2.0.jar" ).toPath(), "two".getBytes( "UTF-8" ) );
+        _app.setLastModified( System.currentTimeMillis() + 2000 );
+        assertNull( lookup( dreq ) );
+        assertEquals( "/app/lib__V2.0.jar", _catalog.lookupResource( dreq ).getPath() );
+    }
+
+    public void testFailureDroppedWhenVersionXmlModified()
+            throws Exception
+    {
+        DownloadRequest dreq = createRequest( "/app/other.jar?version-id=1.0" );
+        lookupAndRemember( dreq );
+        assertNotNull( lookup( dreq ) );
+
+        Files.write( new File( _app, "lib-1.jar" ).toPath(), "one".getBytes( "UTF-8" ) );
+        File versionXml = new File( _app, ResourceCatalog.VERSION_XML_FILENAME );
+        Files.write( versionXml.toPath(), ( "<jnlp-versions><resource><pattern><name>other.jar</name>"
+                + "<version-id>1.0</version-id></pattern><file>lib-1.jar</file></resource></jnlp-versions>" ).getBytes(
+                "UTF-8" ) );
+        versionXml.setLastModified( System.currentTimeMillis() + 2000 );
+        assertNull( lookup( dreq ) );
+        assertEquals( "/app/lib-1.jar", _catalog.lookupResource( dreq ).getPath() );
+    }
+
+    /**
+     * Missing another file rescans the directory, which finds nothing new and keeps what is remembered.
+     */
+    public void testFailureRememberedAfterOtherMiss()
+            throws Exception
+    {
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=2.0" );
+        lookupAndRemember( dreq );
+        long generation = _catalog.getGeneration( dreq );
+        lookupAndRemember( createRequest( "/app/other.jar?version-id=1.0" ) );
+        assertEquals( generation, _catalog.getGeneration( dreq ) );
+        assertNotNull( lookup( dreq ) );
+    }
+
+    /**
+     * A watched directory is not checked on each request; the watcher bumps the
+     * generation of the catalog snapshot instead.
+     */
+    public void testFailureDroppedWhenWatchedEntryChanges()
+            throws Exception
+    {
+        _catalog.startWatching();
+        // The directory is watched from its first scan on
+        assertEquals( "/app/lib__V1.0.jar",
+                      _catalog.lookupResource( createRequest( "/app/lib.jar?version-id=1.0" ) ).getPath() );
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=2.0" );
+        lookupAndRemember( dreq );
+        assertEquals( 0, _catalog.getDirectoryLastModified( dreq ) );
+        long generation = _catalog.getGeneration( dreq );
+        assertNotNull( lookup( dreq ) );
+
+        Files.write( new File( _app, "lib__V2.0.jar" ).toPath(), "two".getBytes( "UTF-8" ) );
+        waitForGenerationChange( dreq, generation );
+        assertNull( lookup( dreq ) );
+        assertEquals( "/app/lib__V2.0.jar", _catalog.lookupResource( dreq ).getPath() );
+
+        // Going away is seen as well
+        generation = _catalog.getGeneration( dreq );
+        new File( _app, "lib__V2.0.jar" ).delete();
+        waitForGenerationChange( dreq, generation );
+        lookupAndRemember( dreq );
+        assertNotNull( lookup( dreq ) );
+    }
+
+    /**
+     * A full cache makes room by dropping the least recently used failures, not all of them.
+     */
+    public void testFullCacheKeepsRecentFailures()
+            throws Exception
+    {
+        _cache = new NegativeLookupCache( 8, 60 * 1000L );
+        DownloadRequest recent = createRequest( "/app/lib.jar?version-id=2.0" );
+        lookupAndRemember( recent );
+        for ( int i = 0; i < 20; i++ )
+        {
+            lookupAndRemember( createRequest( "/app/lib.jar?version-id=3." + i ) );
+            assertNotNull( lookup( recent ) );
+        }
+        assertTrue( _cache.size() <= 8 );
+        assertTrue( _cache.size() > 1 );
+        assertNull( lookup( createRequest( "/app/lib.jar?version-id=3.0" ) ) );
+    }
+
+    /**
+     * Requests that did not fail before cost no stat of their directory.
+     */
+    public void testDirectoryCheckedForFailedRequestsOnly()
+            throws Exception
+    {
+        final int[] checks = new int[1];
+        _catalog.destroy();
+        _catalog = new ResourceCatalog( _context, _log )
+        {
+            public long getDirectoryLastModified( DownloadRequest dreq )
+            {
+                checks[0]++;
+                return super.getDirectoryLastModified( dreq );
+            }
+        };
+        assertNull( lookup( createRequest( "/app/lib.jar?version-id=1.0" ) ) );
+        assertEquals( 0, checks[0] );
+
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=2.0" );
+        lookupAndRemember( dreq );
+        assertEquals( 1, checks[0] );
+        assertNotNull( lookup( dreq ) );
+        assertEquals( 2, checks[0] );
+    }
+
+    public void testDisabled()
+            throws Exception
+    {
+        _cache = new NegativeLookupCache( 100, 0 );
+        assertFalse( _cache.isEnabled() );
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=2.0" );
+        lookupAndRemember( dreq );
+        assertNull( lookup( dreq ) );
+        assertEquals( 0, _cache.size() );
+    }
+
+    private DownloadRequest createRequest( String uri )
+    {
+        return new DownloadRequest( _context, ServletTestSupport.createRequest(
+                "GET", uri, Collections.<String, String>emptyMap() ) );
+    }
+
+    /* Looks a request up in the catalog, as the servlet does on a miss */
+    private ErrorResponseException lookupAndRemember( DownloadRequest dreq )
+    {
+        try
+        {
+            _catalog.lookupResource( dreq );
+            fail( "Found " + dreq.getPath() );
+            return null;
+        }
+        catch ( ErrorResponseException ere )
+        {
+            _cache.put( dreq, _catalog, ere );
+            return ere;
+        }
+    }
+
+    private ErrorResponseException lookup( DownloadRequest dreq )
+    {
+        return _cache.lookup( dreq, _catalog );
+    }
+
+    /* Waits for the watcher thread to push a change of the directory into the catalog */
+    private void waitForGenerationChange( DownloadRequest dreq, long generation )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( _catalog.getGeneration( dreq ) == generation )
+        {
+            assertTrue( "watcher did not see the change", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+        // Let the remaining events of the same change through
+        Thread.sleep( 200 );
+    }
+
+    private static int getJnlpErrorCode( ErrorResponseException ere )
+    {
+        return ( (DownloadResponse.JnlpErrorResponse) ere.getDownloadResponse() ).getJnlpErrorCode();
+    }
+}
@@ -0,0 +1,267 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lookups are answered from per-directory snapshots, indexed by name with the highest
+ * version first.
+ */
+public class ResourceCatalogTest
+        extends TestCase
+{
+    private static final String[] VERSIONS = { "1.0", "1.1", "1.2", "1.10", "1.2.1", "2.0", "2.0-beta", "10.0" };
+
+    private static final String[] REQUESTED = {
+            "1.0", "1.2", "1.0%2B", "1.2%2B", "1.2*", "1.1%201.10", "2.0%201.0%2B", "2*", "3.0", "0.9%2B", "1.10*"};
+
+    private File _root;
+
+    private File _app;
+
+    private ServletContext _context;
+
+    private ResourceCatalog _catalog;
+
+    protected void setUp()
+            throws Exception
+    {
+        _root = Files.createTempDirectory( "webapp" ).toFile();
+        File webapp = new File( _root, "webapp" );
+        _app = new File( webapp, "app" );
+        _app.mkdirs();
+        _context = ServletTestSupport.createContext( webapp, new File( _root, "tmp" ) );
+        Logger log = new Logger( ServletTestSupport.createConfig( _context, Collections.<String, String>emptyMap() ),
+                                 JnlpDownloadServlet.getResourceBundle() );
+        _catalog = new ResourceCatalog( _context, log );
+    }
+
+    protected void tearDown()
+            throws Exception
+    {
+        _catalog.destroy();
+        ServletTestSupport.delete( _root );
+    }
+
+    public void testHighestVersionFirst()
+            throws Exception
+    {
+        for ( String version : VERSIONS )
+        {
+            touch( "lib__V" + version + ".jar" );
+        }
+        assertEquals( "/app/lib__V10.0.jar", lookup( "/app/lib.jar?version-id=1.0%2B" ).getPath() );
+        assertEquals( "/app/lib__V1.10.jar", lookup( "/app/lib.jar?version-id=1*" ).getPath() );
+        assertEquals( "/app/lib__V1.2.1.jar", lookup( "/app/lib.jar?version-id=1.2*" ).getPath() );
+        assertEquals( "/app/lib__V2.0.jar", lookup( "/app/lib.jar?version-id=2.0%201.1" ).getPath() );
+        assertEquals( "/app/lib__V10.0.jar", lookup( "/app/lib.jar?version-id=2.0%2B" ).getPath() );
+        assertEquals( "/app/lib__V1.0.jar", lookup( "/app/lib.jar?version-id=1.0" ).getPath() );
+    }
+
+    /**
+     * The index gives the same answer as the linear search over all entries of the
+     * directory, for any set of versions on disk.
+     */
+    public void testSameMatchAsLinearSearch()
+            throws Exception
+    {
+        Random random = new Random( 1 );
+        for ( int round = 0; round < 20; round++ )
+        {
+            for ( File file : _app.listFiles() )
+            {
+                file.delete();
+            }
+            for ( String version : VERSIONS )
+            {
+                if ( random.nextBoolean() )
+                {
+                    touch( "lib__V" + version + ".jar" );
+                }
+            }
+            touch( "other__V1.0.jar" );
+            ResourceCatalog catalog = new ResourceCatalog( _context, new Logger(
+                    ServletTestSupport.createConfig( _context, Collections.<String, String>emptyMap() ),
+                    JnlpDownloadServlet.getResourceBundle() ) );
+            List<JnlpResource> entries = new ArrayList<JnlpResource>();
+            for ( String name : _app.list() )
+            {
+                entries.add( parse( name ) );
+            }
+            for ( String requested : REQUESTED )
+            {
+                DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=" + requested );
+                JnlpResource[] expected = new JnlpResource[1];
+                int sts = catalog.findMatch( entries, "lib.jar", dreq, expected );
+                try
+                {
+                    JnlpResource found = catalog.lookupResource( dreq );
+                    assertEquals( requested, DownloadResponse.STS_00_OK, sts );
+                    assertEquals( requested, expected[0].getPath(), found.getPath() );
+                }
+                catch ( ErrorResponseException ere )
+                {
+                    assertEquals( requested, sts, getJnlpErrorCode( ere ) );
+                }
+            }
+        }
+    }
+
+    public void testMostSpecificError()
+            throws Exception
+    {
+        touch( "lib__V1.0.jar" );
+        assertEquals( DownloadResponse.ERR_10_NO_RESOURCE, lookupError( "/app/missing.jar?version-id=1.0" ) );
+        assertEquals( DownloadResponse.ERR_11_NO_VERSION, lookupError( "/app/lib.jar?version-id=2.0" ) );
+    }
+
+    public void testVersionXmlBeforeDirectory()
+            throws Exception
+    {
+        touch( "lib__V1.0.jar" );
+        touch( "renamed.jar" );
+        writeVersionXml( "lib.jar", "1.0", "renamed.jar" );
+        assertEquals( "/app/renamed.jar", lookup( "/app/lib.jar?version-id=1.0" ).getPath() );
+    }
+
+    /**
+     * A file added after the directory was scanned is found by the rescan on a miss,
+     * and a modified version.xml replaces the whole snapshot.
+     */
+    public void testSnapshotReplacedWhenDirectoryChanges()
+            throws Exception
+    {
+        touch( "lib__V1.0.jar" );
+        DownloadRequest dreq = createRequest( "/app/lib.jar?version-id=1.0" );
+        lookup( "/app/lib.jar?version-id=1.0" );
+        long generation = _catalog.getGeneration( dreq );
+        assertEquals( 1, _catalog.getScanCount() );
+
+        touch( "lib__V2.0.jar" );
+        assertEquals( "/app/lib__V2.0.jar", lookup( "/app/lib.jar?version-id=2.0" ).getPath() );
+        assertTrue( _catalog.getGeneration( dreq ) != generation );
+        generation = _catalog.getGeneration( dreq );
+
+        touch( "renamed.jar" );
+        File versionXml = writeVersionXml( "lib.jar", "3.0", "renamed.jar" );
+        versionXml.setLastModified( System.currentTimeMillis() + 2000 );
+        assertEquals( "/app/renamed.jar", lookup( "/app/lib.jar?version-id=3.0" ).getPath() );
+        assertTrue( _catalog.getGeneration( dreq ) != generation );
+        // Still there after the rebuild
+        assertEquals( "/app/lib__V2.0.jar", lookup( "/app/lib.jar?version-id=2.0" ).getPath() );
+    }
+
+    /**
+     * Snapshots are swapped in while other threads look up resources; every lookup sees
+     * a complete snapshot.
+     */
+    public void testLookupsWhileSnapshotsSwapped()
+            throws Exception
+    {
+        touch( "lib__V1.0.jar" );
+        touch( "renamed.jar" );
+        final File versionXml = writeVersionXml( "other.jar", "1.0", "renamed.jar" );
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool( 5 );
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for ( int t = 0; t < 4; t++ )
+        {
+            futures.add( executor.submit( new Callable<Void>()
+            {
+                public Void call()
+                        throws Exception
+                {
+                    while ( !done.get() )
+                    {
+                        assertEquals( "/app/lib__V1.0.jar", lookup( "/app/lib.jar?version-id=1.0" ).getPath() );
+                        assertEquals( "/app/renamed.jar", lookup( "/app/other.jar?version-id=1.0" ).getPath() );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+        long time = System.currentTimeMillis();
+        for ( int i = 0; i < 50; i++ )
+        {
+            // Files coming and going, and version.xml rebuilding the snapshot
+            File file = touch( "lib__V2." + i + ".jar" );
+            lookupError( "/app/lib.jar?version-id=9.0" );
+            file.delete();
+            versionXml.setLastModified( time + 1000 * ( i + 1 ) );
+            _catalog.directoryChanged( "/app/" );
+        }
+        done.set( true );
+        for ( Future<Void> future : futures )
+        {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private File touch( String name )
+            throws Exception
+    {
+        File file = new File( _app, name );
+        Files.write( file.toPath(), name.getBytes( "UTF-8" ) );
+        return file;
+    }
+
+    private File writeVersionXml( String name, String versionId, String file )
+            throws Exception
+    {
+        File versionXml = new File( _app, ResourceCatalog.VERSION_XML_FILENAME );
+        Files.write( versionXml.toPath(), ( "<jnlp-versions><resource><pattern><name>" + name + "</name><version-id>"
+                + versionId + "</version-id></pattern><file>" + file + "</file></resource></jnlp-versions>" ).getBytes(
+                "UTF-8" ) );
+        return versionXml;
+    }
+
+    private JnlpResource parse( String filename )
+    {
+        String name = filename.substring( 0, filename.indexOf( "__" ) ) + ".jar";
+        String version = filename.substring( filename.indexOf( "__V" ) + 3, filename.length() - 4 );
+        return new JnlpResource( _context, name, version, null, null, null, "/app/" + filename, null );
+    }
+
+    private DownloadRequest createRequest( String uri )
+    {
+        return new DownloadRequest( _context, ServletTestSupport.createRequest(
+                "GET", uri, Collections.<String, String>emptyMap() ) );
+    }
+
+    private JnlpResource lookup( String uri )
+            throws ErrorResponseException
+    {
+        return _catalog.lookupResource( createRequest( uri ) );
+    }
+
+    private int lookupError( String uri )
+    {
+        try
+        {
+            fail( "Found " + lookup( uri ).getPath() );
+            return 0;
+        }
+        catch ( ErrorResponseException ere )
+        {
+            return getJnlpErrorCode( ere );
+        }
+    }
+
+    private static int getJnlpErrorCode( ErrorResponseException ere )
+    {
+        return ( (DownloadResponse.JnlpErrorResponse) ere.getDownloadResponse() ).getJnlpErrorCode();
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * @(#)ServletTestSupport.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.servlet;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Servlet container objects for the tests, backed by a directory holding the web
+ * application. They are dynamic proxies, so they work with every version of the
+ * servlet API the servlet is built against; methods the servlet does not use return
+ * null, zero or false.
+ */
+final class ServletTestSupport
+{
+    static final String CONTEXT_PATH = "/ctx";
+
+    private ServletTestSupport()
+    {
+    }
+
+    /**
+     * @param root    directory of the exploded web application
+     * @param tempDir directory given to the web application as its temporary directory
+     * @return a servlet context serving the files below root
+     */
+    static ServletContext createContext( final File root, File tempDir )
+    {
+        final Map<String, Object> attributes = Collections.synchronizedMap( new HashMap<String, Object>() );
+        attributes.put( "javax.servlet.context.tempdir", tempDir );
+        return proxy( ServletContext.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+                    throws Throwable
+            {
+                String name = method.getName();
+                if ( name.equals( "getResource" ) )
+                {
+                    File file = new File( root, (String) args[0] );
+                    return file.exists() ? file.toURI().toURL() : null;
+                }
+                if ( name.equals( "getResourceAsStream" ) )
+                {
+                    File file = new File( root, (String) args[0] );
+                    return file.isFile() ? new FileInputStream( file ) : null;
+                }
+                if ( name.equals( "getRealPath" ) )
+                {
+                    return new File( root, (String) args[0] ).getPath();
+                }
+                if ( name.equals( "getMimeType" ) )
+                {
+                    return getMimeType( (String) args[0] );
+                }
+                if ( name.equals( "getAttribute" ) )
+                {
+                    return attributes.get( args[0] );
+                }
+                if ( name.equals( "setAttribute" ) )
+                {
+                    attributes.put( (String) args[0], args[1] );
+                    return null;
+                }
+                if ( name.equals( "getContextPath" ) )
+                {
+                    return CONTEXT_PATH;
+                }
+                return defaultValue( method );
+            }
+        } );
+    }
+
+    /**
+     * @param context    the servlet context
+     * @param initParams init-params of the servlet
+     * @return the configuration of a servlet named jnlp
+     */
+    static ServletConfig createConfig( final ServletContext context, final Map<String, String> initParams )
+    {
+        return proxy( ServletConfig.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+                    throws Throwable
+            {
+                String name = method.getName();
+                if ( name.equals( "getServletName" ) )
+                {
+                    return "jnlp";
+                }
+                if ( name.equals( "getServletContext" ) )
+                {
+                    return context;
+                }
+                if ( name.equals( "getInitParameter" ) )
+                {
+                    return initParams.get( args[0] );
+                }
+                if ( name.equals( "getInitParameterNames" ) )
+                {
+                    return Collections.enumeration( initParams.keySet() );
+                }
+                return defaultValue( method );
+            }
+        } );
+    }
+
+    /**
+     * @param method  the HTTP method
+     * @param uri     path of the request below the context path, with its query string if any
+     * @param headers request headers, by lower case name
+     * @return a request sent by Java Web Start
+     */
+    static HttpServletRequest createRequest( final String method, String uri, Map<String, String> headers )
+    {
+        int idx = uri.indexOf( '?' );
+        final String path = CONTEXT_PATH + ( ( idx == -1 ) ? uri : uri.substring( 0, idx ) );
+        final String query = ( idx == -1 ) ? null : uri.substring( idx + 1 );
+        final Map<String, String> parameters = parseQuery( query );
+        final Map<String, String> requestHeaders = new HashMap<String, String>( headers );
+        requestHeaders.put( "user-agent", "JNLP/6.0 javaws/1.6.0 (b04) Java/1.6.0" );
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy( HttpServletRequest.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method m, Object[] args )
+                    throws Throwable
+            {
+                String name = m.getName();
+                if ( name.equals( "getMethod" ) )
+                {
+                    return method;
+                }
+                if ( name.equals( "getRequestURI" ) )
+                {
+                    return path;
+                }
+                if ( name.equals( "getQueryString" ) )
+                {
+                    return query;
+                }
+                if ( name.equals( "getContextPath" ) )
+                {
+                    return CONTEXT_PATH;
+                }
+                if ( name.equals( "getParameter" ) )
+                {
+                    return parameters.get( args[0] );
+                }
+                if ( name.equals( "getHeader" ) )
+                {
+                    return requestHeaders.get( ( (String) args[0] ).toLowerCase() );
+                }
+                if ( name.equals( "getHeaders" ) )
+                {
+                    String value = requestHeaders.get( ( (String) args[0] ).toLowerCase() );
+                    return Collections.enumeration(
+                            ( value == null ) ? Collections.<String>emptyList() : Collections.singletonList( value ) );
+                }
+                if ( name.equals( "getDateHeader" ) )
+                {
+                    return parseDate( requestHeaders.get( ( (String) args[0] ).toLowerCase() ) );
+                }
+                if ( name.equals( "getAttribute" ) )
+                {
+                    return attributes.get( args[0] );
+                }
+                if ( name.equals( "setAttribute" ) )
+                {
+                    attributes.put( (String) args[0], args[1] );
+                    return null;
+                }
+                if ( name.equals( "getScheme" ) )
+                {
+                    return "http";
+                }
+                if ( name.equals( "getServerName" ) )
+                {
+                    return "host";
+                }
+                if ( name.equals( "getServerPort" ) )
+                {
+                    return 8080;
+                }
+                if ( name.equals( "getRequestURL" ) )
+                {
+                    return new StringBuffer( "http://host:8080" + path );
+                }
+                return defaultValue( m );
+            }
+        } );
+    }
+
+    static String getMimeType( String file )
+    {
+        if ( file.endsWith( ".jar" ) )
+        {
+            return "application/x-java-archive";
+        }
+        if ( file.endsWith( ".jnlp" ) )
+        {
+            return "application/x-java-jnlp-file";
+        }
+        if ( file.endsWith( ".xml" ) )
+        {
+            return "application/xml";
+        }
+        return file.endsWith( ".txt" ) ? "text/plain" : null;
+    }
+
+    private static long parseDate( String value )
+    {
+        if ( value == null )
+        {
+            return -1;
+        }
+        try
+        {
+            return new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US ).parse( value ).getTime();
+        }
+        catch ( ParseException pe )
+        {
+            throw new IllegalArgumentException( value );
+        }
+    }
+
+    private static Map<String, String> parseQuery( String query )
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if ( query == null )
+        {
+            return parameters;
+        }
+        try
+        {
+            for ( String pair : query.split( "&" ) )
+            {
+                int idx = pair.indexOf( '=' );
+                parameters.put( ( idx == -1 ) ? pair : pair.substring( 0, idx ),
+                                ( idx == -1 ) ? "" : URLDecoder.decode( pair.substring( idx + 1 ), "UTF-8" ) );
+            }
+        }
+        catch ( UnsupportedEncodingException uee )
+        {
+            throw new IllegalStateException( uee );
+        }
+        return parameters;
+    }
+
+    private static <T> T proxy( Class<T> type, InvocationHandler handler )
+    {
+        return type.cast( Proxy.newProxyInstance( ServletTestSupport.class.getClassLoader(), new Class<?>[]{type},
+                                                  handler ) );
+    }
+
+    private static Object defaultValue( Method method )
+    {
+        Class<?> type = method.getReturnType();
+        if ( type == boolean.class )
+        {
+            return Boolean.FALSE;
+        }
+        if ( type == int.class )
+        {
+            return 0;
+        }
+        if ( type == long.class )
+        {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Deletes a directory tree created by a test.
+     *
+     * @param file the directory or file
+     */
+    static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if ( files != null )
+        {
+            for ( File child : files )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
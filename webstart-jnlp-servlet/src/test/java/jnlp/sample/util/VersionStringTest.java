@@ -0,0 +1,82 @@
+/*
+ * @(#)VersionStringTest.java
+ * 
+ * Copyright (c) 2006 Sun Microsystems, Inc. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistribution of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * -Redistribution in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of Sun Microsystems, Inc. or the names of contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * This software is provided "AS IS," without a warranty of any kind. ALL
+ * EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND WARRANTIES, INCLUDING
+ * ANY IMPLIED WARRANTY OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE
+ * OR NON-INFRINGEMENT, ARE HEREBY EXCLUDED. SUN MIDROSYSTEMS, INC. ("SUN")
+ * AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY DAMAGES SUFFERED BY LICENSEE
+ * AS A RESULT OF USING, MODIFYING OR DISTRIBUTING THIS SOFTWARE OR ITS
+ * DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE FOR ANY LOST
+ * REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, SPECIAL, CONSEQUENTIAL,
+ * INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS OF THE THEORY
+ * OF LIABILITY, ARISING OUT OF THE USE OF OR INABILITY TO USE THIS SOFTWARE,
+ * EVEN IF SUN HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * You acknowledge that this software is not designed, licensed or intended
+ * for use in the design, construction, operation or maintenance of any
+ * nuclear facility.
+ */
+
+package jnlp.sample.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Version-ids are compared through their precomputed keys, with the ordering and
+ * matching rules of the JNLP specification.
+ */
+public class VersionStringTest
+        extends TestCase
+{
+    public void testOrdering()
+    {
+        assertTrue( new VersionID( "1.10" ).isGreaterThan( new VersionID( "1.9" ) ) );
+        assertTrue( new VersionID( "1.2.1" ).isGreaterThan( new VersionID( "1.2" ) ) );
+        // Padded with zeros, and an alphanumeric element is greater than a numeric one
+        assertTrue( new VersionID( "2.0-beta" ).isGreaterThan( new VersionID( "2.0" ) ) );
+        assertTrue( new VersionID( "1.0.a" ).isGreaterThan( new VersionID( "1.0.9" ) ) );
+        assertFalse( new VersionID( "1.0" ).isGreaterThan( new VersionID( "1.0" ) ) );
+        assertTrue( new VersionID( "1.0" ).isGreaterThanOrEqual( new VersionID( "1.0.0" ) ) );
+        assertEquals( new VersionID( "1.0" ), new VersionID( "1.0.0" ) );
+        assertEquals( new VersionID( "1-0_0" ), new VersionID( "1.0.0" ) );
+    }
+
+    public void testMatch()
+    {
+        VersionString versions = new VersionString( "1.2* 2.0+ 1.0" );
+        assertTrue( versions.contains( "1.2" ) );
+        assertTrue( versions.contains( "1.2.5" ) );
+        assertTrue( versions.contains( "2.0" ) );
+        assertTrue( versions.contains( "10.0" ) );
+        assertTrue( versions.contains( "1.0" ) );
+        assertFalse( versions.contains( "1.1" ) );
+        assertFalse( versions.contains( "1.3" ) );
+        assertFalse( versions.contains( "1.20" ) );
+        assertTrue( versions.containsGreaterThan( new VersionID( "1.9" ) ) );
+        assertFalse( new VersionString( "1.0 1.2" ).containsGreaterThan( new VersionID( "1.2" ) ) );
+    }
+
+    public void testNoVersions()
+    {
+        assertFalse( VersionString.getInstance( null ).contains( "1.0" ) );
+        assertFalse( VersionString.getInstance( "" ).contains( "1.0" ) );
+        assertTrue( VersionString.contains( "1.0*", "1.0.1" ) );
+    }
+}
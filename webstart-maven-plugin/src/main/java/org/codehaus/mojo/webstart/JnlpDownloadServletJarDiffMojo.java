@@ -0,0 +1,356 @@
+package org.codehaus.mojo.webstart;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with work for additional information
+ * regarding copyright ownership.  The ASF licenses file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import jnlp.sample.jardiff.JarDiff;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pregenerates the JarDiffs from previous released versions of the jars served by the
+ * JnlpDownloadServlet, so the servlet does not have to generate them on the first request.
+ * <p>
+ * Must run after the <code>jnlp-download-servlet</code> goal in the same build. The JarDiffs
+ * are written to a <code>jardiff</code> directory next to the jars, named after the content of
+ * both jars, which is where the servlet looks for them before generating one.
+ */
+@Mojo( name = "jnlp-download-servlet-jardiff", defaultPhase = LifecyclePhase.PREPARE_PACKAGE,
+        requiresProject = true )
+public class JnlpDownloadServletJarDiffMojo
+        extends AbstractMojo
+{
+
+    // ----------------------------------------------------------------------
+    // Constants
+    // ----------------------------------------------------------------------
+
+    /**
+     * Directory next to the jars the servlet looks for pregenerated JarDiffs in.
+     */
+    private static final String JARDIFF_DIRECTORY = "jardiff";
+
+    /**
+     * Extension of pregenerated JarDiffs.
+     */
+    private static final String JARDIFF_EXTENSION = ".jardiff";
+
+    // ----------------------------------------------------------------------
+    // Mojo Parameters
+    // ----------------------------------------------------------------------
+
+    /**
+     * Set this to <code>true</code> to skip generating JarDiffs.
+     */
+    @Parameter( property = "jnlp.jardiff.skip", defaultValue = "false" )
+    private boolean skip;
+
+    /**
+     * Number of previous released versions of each jar to generate a JarDiff from.
+     */
+    @Parameter( property = "jnlp.jardiff.previousVersions", defaultValue = "3" )
+    private int previousVersions;
+
+    /**
+     * Directory laid out as a Maven repository to take the previous versions from.
+     * <p>
+     * A JarDiff is only served to clients having exactly the jar it was generated from. If the jars are
+     * signed while deployed, point this to a repository of the jars as they were deployed.
+     */
+    @Parameter( property = "jnlp.jardiff.previousVersionsRepository", defaultValue = "${settings.localRepository}" )
+    private File previousVersionsRepository;
+
+    /**
+     * Number of JarDiffs generated in parallel, 0 for one per processor.
+     */
+    @Parameter( property = "jnlp.jardiff.parallel", defaultValue = "0" )
+    private int parallel;
+
+    /**
+     * Maven project.
+     */
+    @Parameter( defaultValue = "${project}", required = true, readonly = true )
+    private MavenProject project;
+
+    // ----------------------------------------------------------------------
+    // Mojo Implementation
+    // ----------------------------------------------------------------------
+
+    @Override
+    public void execute()
+            throws MojoExecutionException
+    {
+        if ( skip )
+        {
+            getLog().info( "Skipping JarDiff generation" );
+            return;
+        }
+
+        @SuppressWarnings( "unchecked" ) Map<ResolvedJarResource, File> servedJarFiles =
+                (Map<ResolvedJarResource, File>) project.getContextValue(
+                        JnlpDownloadServletMojo.SERVED_JAR_FILES_KEY );
+
+        if ( servedJarFiles == null )
+        {
+            throw new MojoExecutionException(
+                    "No served jars found, the jnlp-download-servlet goal must run before this one in the same build" );
+        }
+
+        getLog().info( "-- Generate jardiffs" );
+
+        int threads = parallel > 0 ? parallel : Runtime.getRuntime().availableProcessors();
+        ExecutorService ex = Executors.newFixedThreadPool( threads );
+
+        Map<String, Future<Boolean>> jarDiffRequests = new LinkedHashMap<>();
+        try
+        {
+            for ( Map.Entry<ResolvedJarResource, File> entry : servedJarFiles.entrySet() )
+            {
+                final File jar = entry.getValue();
+                if ( !jar.isFile() )
+                {
+                    getLog().warn( "Served jar not found, skipping it: " + jar );
+                    continue;
+                }
+
+                List<File> previousJars = getPreviousVersions( entry.getKey().getArtifact() );
+                if ( previousJars.isEmpty() )
+                {
+                    continue;
+                }
+
+                final String jarHash = computeHash( jar );
+                final File jarDiffDirectory = new File( jar.getParentFile(), JARDIFF_DIRECTORY );
+                jarDiffDirectory.mkdirs();
+
+                for ( final File previousJar : previousJars )
+                {
+                    jarDiffRequests.put( previousJar.getName() + " -> " + jar.getName(),
+                                         ex.submit( new Callable<Boolean>()
+                                         {
+                                             public Boolean call()
+                                                     throws Exception
+                                             {
+                                                 return generateJarDiff( previousJar, jar, jarHash, jarDiffDirectory );
+                                             }
+                                         } ) );
+                }
+            }
+
+            int generated = 0;
+            for ( Map.Entry<String, Future<Boolean>> request : jarDiffRequests.entrySet() )
+            {
+                try
+                {
+                    if ( request.getValue().get() )
+                    {
+                        generated++;
+                    }
+                }
+                catch ( ExecutionException ee )
+                {
+                    throw new MojoExecutionException( "Error while generating jardiff " + request.getKey(),
+                                                      ee.getCause() );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException( "Interrupted while generating jardiffs", ie );
+                }
+            }
+            getLog().info( "Generated " + generated + " jardiff(s) out of " + jarDiffRequests.size() + " candidate(s)" );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read served jar", e );
+        }
+        finally
+        {
+            ex.shutdownNow();
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Private methods
+    // ----------------------------------------------------------------------
+
+    /**
+     * Finds the latest released versions of the given artifact older than its own version.
+     *
+     * @param artifact the artifact
+     * @return the jars of the previous versions, the latest last
+     */
+    private List<File> getPreviousVersions( Artifact artifact )
+    {
+        File artifactDirectory = new File( previousVersionsRepository,
+                                           artifact.getGroupId().replace( '.', File.separatorChar ) + File.separator +
+                                                   artifact.getArtifactId() );
+        String[] versions = artifactDirectory.list();
+        if ( versions == null || previousVersions <= 0 )
+        {
+            return Collections.emptyList();
+        }
+
+        DefaultArtifactVersion currentVersion = new DefaultArtifactVersion( artifact.getBaseVersion() );
+        String suffix = ( StringUtils.isEmpty( artifact.getClassifier() ) ? "" : "-" + artifact.getClassifier() ) +
+                "." + artifact.getArtifactHandler().getExtension();
+
+        TreeMap<DefaultArtifactVersion, File> candidates = new TreeMap<>();
+        for ( String version : versions )
+        {
+            if ( ArtifactUtils.isSnapshot( version ) )
+            {
+                continue;
+            }
+            DefaultArtifactVersion candidateVersion = new DefaultArtifactVersion( version );
+            if ( candidateVersion.compareTo( currentVersion ) >= 0 )
+            {
+                continue;
+            }
+            File jar = new File( artifactDirectory, version + File.separator + artifact.getArtifactId() + "-" + version +
+                    suffix );
+            if ( jar.isFile() )
+            {
+                candidates.put( candidateVersion, jar );
+            }
+        }
+
+        List<File> result = new ArrayList<>( candidates.values() );
+        return result.subList( Math.max( 0, result.size() - previousVersions ), result.size() );
+    }
+
+    /**
+     * Generates the minimal JarDiff between two jars, unless it was generated by a previous build.
+     * <p>
+     * The JarDiff is named like in the store of the servlet, by the SHA-1 of both jars and the
+     * minimal flag. It is kept only if it is smaller than the jar, as the servlet does.
+     *
+     * @return true if a JarDiff was generated
+     */
+    private boolean generateJarDiff( File previousJar, File jar, String jarHash, File jarDiffDirectory )
+            throws IOException
+    {
+        File jarDiff =
+                new File( jarDiffDirectory, computeHash( previousJar ) + "-" + jarHash + "-m" + JARDIFF_EXTENSION );
+        if ( jarDiff.isFile() )
+        {
+            getLog().debug( "Jardiff already generated: " + jarDiff );
+            return false;
+        }
+
+        File tempFile = File.createTempFile( "jardiff", ".tmp", jarDiffDirectory );
+        try
+        {
+            OutputStream os = new BufferedOutputStream( new FileOutputStream( tempFile ) );
+            try
+            {
+                JarDiff.createPatch( previousJar.getPath(), jar.getPath(), os, true );
+            }
+            finally
+            {
+                os.close();
+            }
+
+            if ( tempFile.length() >= jar.length() )
+            {
+                getLog().debug( "Jardiff " + previousJar.getName() + " -> " + jar.getName() +
+                                        " discarded, it is not smaller than the jar" );
+                return false;
+            }
+            // Identical previous jars lead to the same JarDiff, which may have been renamed in place meanwhile
+            if ( !tempFile.renameTo( jarDiff ) && !jarDiff.isFile() )
+            {
+                throw new IOException( "Could not rename " + tempFile + " to " + jarDiff );
+            }
+            getLog().debug( "Jardiff " + previousJar.getName() + " -> " + jar.getName() + ": " + jarDiff.length() +
+                                    " bytes" );
+            return true;
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * @return the lower case hex SHA-1 of the file, as used by the servlet in entity tags
+     */
+    private static String computeHash( File file )
+            throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        StringBuilder hash = new StringBuilder();
+        for ( byte b : digest.digest() )
+        {
+            hash.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return hash.toString();
+    }
+}
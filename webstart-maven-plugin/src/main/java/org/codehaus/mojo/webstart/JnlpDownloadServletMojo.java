@@ -42,8 +42,10 @@ import org.codehaus.mojo.webstart.util.IOUtil;
 import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -74,6 +76,12 @@ public class JnlpDownloadServletMojo
      */
     private static final String SERVLET_TEMPLATE_FILENAME = "servlet-template.vm";
 
+    /**
+     * Key of the project context value holding the jar file served for each resolved jar resource,
+     * used by the goals running after this one.
+     */
+    public static final String SERVED_JAR_FILES_KEY = JnlpDownloadServletMojo.class.getName() + ".servedJarFiles";
+
     // ----------------------------------------------------------------------
     // Mojo Parameters
     // ----------------------------------------------------------------------
@@ -210,6 +218,20 @@ public class JnlpDownloadServletMojo
                                    getProject().getBuild().getFinalName() + File.separator + outputDirectoryName );
 
         ioUtil.copyDirectoryStructure( getWorkDirectory(), outputDir );
+
+        // ---
+        // Keep the served jar files for the goals running after this one
+        // ---
+
+        File outputLibDir = getLibPath() == null ? outputDir : new File( outputDir, getLibPath() );
+        Map<ResolvedJarResource, File> servedJarFiles = new LinkedHashMap<>();
+        for ( ResolvedJarResource jarResource : allResolvedJarResources )
+        {
+            String filename = getDependencyFilenameStrategy().getDependencyFilename( jarResource.getArtifact(), false,
+                                                                                     isUseUniqueVersions() );
+            servedJarFiles.put( jarResource, new File( outputLibDir, filename ) );
+        }
+        getProject().setContextValue( SERVED_JAR_FILES_KEY, servedJarFiles );
     }
 
     // ----------------------------------------------------------------------
@@ -0,0 +1,327 @@
+package org.codehaus.mojo.webstart;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import jnlp.sample.jardiff.JarDiffPatcher;
+import jnlp.sample.servlet.JarDiffStore;
+import junit.framework.TestCase;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.ReflectionUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Tests the {@link JnlpDownloadServletJarDiffMojo} class.
+ */
+public class JnlpDownloadServletJarDiffMojoTest
+    extends TestCase
+{
+    private static final int ENTRIES = 20;
+
+    private File root;
+
+    private File repository;
+
+    private File servedJar;
+
+    private MavenProject project;
+
+    private JnlpDownloadServletJarDiffMojo mojo;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        root = File.createTempFile( "jardiff-mojo", "" );
+        root.delete();
+        root.mkdirs();
+        repository = new File( root, "repository" );
+
+        // 1.0 and 1.1 differ from 2.0 in one entry, 0.9 has nothing in common with it
+        createUnrelatedJar( repositoryJar( "0.9" ) );
+        createJar( repositoryJar( "1.0" ), 0, 1 );
+        createJar( repositoryJar( "1.1" ), 0, 2 );
+        createJar( repositoryJar( "2.0-SNAPSHOT" ), 0, 3 );
+        createJar( repositoryJar( "3.0" ), 0, 4 );
+        servedJar = new File( root, "webapp/app/lib__V2.0.jar" );
+        createJar( servedJar, 0, 5 );
+
+        DefaultArtifact artifact =
+            new DefaultArtifact( "com.example", "lib", "2.0", "runtime", "jar", null, new DefaultArtifactHandler( "jar" ) );
+        Map<ResolvedJarResource, File> servedJarFiles = new LinkedHashMap<ResolvedJarResource, File>();
+        servedJarFiles.put( new ResolvedJarResource( artifact ), servedJar );
+        project = new MavenProject();
+        project.setContextValue( JnlpDownloadServletMojo.SERVED_JAR_FILES_KEY, servedJarFiles );
+
+        mojo = new JnlpDownloadServletJarDiffMojo();
+        ReflectionUtils.setVariableValueInObject( mojo, "project", project );
+        ReflectionUtils.setVariableValueInObject( mojo, "previousVersionsRepository", repository );
+        ReflectionUtils.setVariableValueInObject( mojo, "previousVersions", 3 );
+        ReflectionUtils.setVariableValueInObject( mojo, "parallel", 2 );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( root );
+        super.tearDown();
+    }
+
+    /**
+     * Releases older than the served jar are diffed, snapshots and newer releases are not,
+     * and JarDiffs not smaller than the jar are dropped.
+     */
+    public void testPregeneratesJarDiffsFromPreviousReleases()
+        throws Exception
+    {
+        mojo.execute();
+
+        assertEquals( new HashSet<String>( Arrays.asList( getStoreName( "1.0" ), getStoreName( "1.1" ) ) ),
+                      listJarDiffs() );
+        for ( String version : new String[]{ "1.0", "1.1" } )
+        {
+            File jarDiff = new File( getJarDiffDirectory(), getStoreName( version ) );
+            assertTrue( jarDiff.length() < servedJar.length() );
+            assertEquals( readEntries( servedJar ), readEntries( applyPatch( repositoryJar( version ), jarDiff ) ) );
+        }
+    }
+
+    public void testPreviousVersionsLimit()
+        throws Exception
+    {
+        ReflectionUtils.setVariableValueInObject( mojo, "previousVersions", 1 );
+        mojo.execute();
+
+        assertEquals( new HashSet<String>( Arrays.asList( getStoreName( "1.1" ) ) ), listJarDiffs() );
+    }
+
+    public void testKeepsJarDiffsOfPreviousBuild()
+        throws Exception
+    {
+        mojo.execute();
+        File jarDiff = new File( getJarDiffDirectory(), getStoreName( "1.1" ) );
+        long lastModified = jarDiff.lastModified() - 10000;
+        jarDiff.setLastModified( lastModified );
+
+        mojo.execute();
+        assertEquals( lastModified, jarDiff.lastModified() );
+    }
+
+    public void testSkip()
+        throws Exception
+    {
+        ReflectionUtils.setVariableValueInObject( mojo, "skip", true );
+        mojo.execute();
+
+        assertFalse( getJarDiffDirectory().exists() );
+    }
+
+    public void testFailWithoutServedJars()
+        throws Exception
+    {
+        project.setContextValue( JnlpDownloadServletMojo.SERVED_JAR_FILES_KEY, null );
+        try
+        {
+            mojo.execute();
+            fail( "Should have required the jnlp-download-servlet goal to run first" );
+        }
+        catch ( MojoExecutionException e )
+        {
+        }
+    }
+
+    private File repositoryJar( String version )
+    {
+        return new File( repository, "com/example/lib/" + version + "/lib-" + version + ".jar" );
+    }
+
+    private File getJarDiffDirectory()
+    {
+        return new File( servedJar.getParentFile(), "jardiff" );
+    }
+
+    /**
+     * @return the name the servlet looks a minimal JarDiff from a previous version to the served jar up by
+     */
+    private String getStoreName( String version )
+        throws Exception
+    {
+        return JarDiffStore.getKey( computeHash( repositoryJar( version ) ), computeHash( servedJar ), true ) +
+            ".jardiff";
+    }
+
+    private Set<String> listJarDiffs()
+    {
+        String[] names = getJarDiffDirectory().list();
+        return new HashSet<String>( Arrays.asList( names == null ? new String[0] : names ) );
+    }
+
+    /**
+     * Creates a jar of incompressible entries, all of them taken from the same seed but the
+     * one whose seed is given, so a JarDiff to another jar of the same seed is small.
+     */
+    private static void createJar( File jar, int seed, int changedSeed )
+        throws IOException
+    {
+        jar.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            for ( int i = 0; i < ENTRIES; i++ )
+            {
+                byte[] content = new byte[2048];
+                new Random( i == 0 ? changedSeed : seed * ENTRIES + i ).nextBytes( content );
+                out.putNextEntry( new JarEntry( "com/example/Entry" + i + ".class" ) );
+                out.write( content );
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a jar sharing no entry with the others, whose entries take more room to
+     * remove than a jar holds, so no JarDiff from it is worth sending.
+     */
+    private static void createUnrelatedJar( File jar )
+        throws IOException
+    {
+        jar.getParentFile().mkdirs();
+        Random random = new Random( -1 );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            for ( int i = 0; i < 1000; i++ )
+            {
+                out.putNextEntry( new JarEntry( "org/example/Old" + Long.toHexString( random.nextLong() ) +
+                                                    Long.toHexString( random.nextLong() ) + ".class" ) );
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private File applyPatch( File oldJar, File jarDiff )
+        throws IOException
+    {
+        File result = new File( root, "patched.jar" );
+        FileOutputStream out = new FileOutputStream( result );
+        try
+        {
+            new JarDiffPatcher().applyPatch( null, oldJar.getPath(), jarDiff.getPath(), out );
+        }
+        finally
+        {
+            out.close();
+        }
+        return result;
+    }
+
+    private static Map<String, String> readEntries( File jar )
+        throws Exception
+    {
+        Map<String, String> entries = new TreeMap<String, String>();
+        JarFile jarFile = new JarFile( jar );
+        try
+        {
+            for ( Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); )
+            {
+                JarEntry entry = e.nextElement();
+                InputStream in = jarFile.getInputStream( entry );
+                try
+                {
+                    entries.put( entry.getName(), toHex( digest( in ) ) );
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        finally
+        {
+            jarFile.close();
+        }
+        return entries;
+    }
+
+    private static String computeHash( File file )
+        throws Exception
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return toHex( digest( in ) );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static byte[] digest( InputStream in )
+        throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+        byte[] buffer = new byte[8192];
+        int read;
+        while ( ( read = in.read( buffer ) ) != -1 )
+        {
+            digest.update( buffer, 0, read );
+        }
+        return digest.digest();
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder hex = new StringBuilder();
+        for ( byte b : bytes )
+        {
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return hex.toString();
+    }
+}